@@ -0,0 +1,62 @@
+package fi.tuska.tessellagon.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.tuska.tessellagon.data.AssetCache;
+import fi.tuska.tessellagon.data.HexGrid;
+import fi.tuska.tessellagon.data.Hexagon;
+import fi.tuska.tessellagon.data.HexagonPatternLoader;
+import fi.tuska.tessellagon.data.LevelLoader;
+
+/**
+ * Measures loading levels and patterns from the data directory, either
+ * from the compiled forms in the asset cache or by parsing the text files.
+ * Must be run from the project root.
+ *
+ * @author Tuukka Haapasalo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoadingBenchmark {
+
+    @Param( { "Level1" })
+    private String level;
+
+    @Param( { "Glider" })
+    private String pattern;
+
+    @Param( { "true", "false" })
+    private boolean cached;
+
+    @Setup
+    public void setUp() {
+        AssetCache.setEnabled(cached);
+    }
+
+    @Benchmark
+    public HexGrid loadLevel() {
+        return LevelLoader.loadLevel(level);
+    }
+
+    @Benchmark
+    public Hexagon loadPattern() {
+        return HexagonPatternLoader.loadPattern(pattern);
+    }
+
+}
@@ -0,0 +1,85 @@
+package fi.tuska.tessellagon.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.tuska.tessellagon.data.Cell;
+import fi.tuska.tessellagon.data.GridPopulator;
+import fi.tuska.tessellagon.data.HexGrid;
+import fi.tuska.tessellagon.data.Hexagon;
+import fi.tuska.tessellagon.data.HexagonLayout;
+import fi.tuska.tessellagon.data.HexagonRotator;
+
+/**
+ * Measures rotating hexagons: the raw bit vector permutation, rotating a
+ * hexagon in a grid (which writes the shared border cells through to the
+ * neighbors that own them), and editing a single shared cell.
+ *
+ * @author Tuukka Haapasalo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RotationBenchmark {
+
+    private static final int GRID_SIZE = 3;
+
+    private final long[] source = new long[HexagonLayout.WORDS];
+    private final long[] target = new long[HexagonLayout.WORDS];
+
+    private Hexagon hexagon;
+    private Cell sharedCell;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            source[w] = random.nextLong();
+        }
+
+        HexGrid grid = new HexGrid(GRID_SIZE, GRID_SIZE);
+        GridPopulator.populate(grid, 0.5, random);
+        hexagon = grid.getHexagon(GRID_SIZE / 2, GRID_SIZE / 2);
+        for (int x = 0; x < HexagonLayout.WIDTH && sharedCell == null; ++x) {
+            for (int y = 0; y < HexagonLayout.HEIGHT && sharedCell == null; ++y) {
+                if (hexagon.isSharedCell(x, y))
+                    sharedCell = hexagon.getCell(x, y);
+            }
+        }
+    }
+
+    @Benchmark
+    public long[] rotateVector() {
+        HexagonRotator.rotate(source, target, true);
+        return target;
+    }
+
+    @Benchmark
+    public void rotateHexagon() {
+        hexagon.rotate(true);
+    }
+
+    /**
+     * Toggles a shared border cell, which is stored once in the hexagon that
+     * owns it and shown in both of the hexagons.
+     */
+    @Benchmark
+    public void toggleSharedCell() {
+        sharedCell.toggleAlive();
+    }
+
+}
@@ -0,0 +1,76 @@
+package fi.tuska.tessellagon.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.tuska.tessellagon.data.GridPopulator;
+import fi.tuska.tessellagon.data.HexGrid;
+import fi.tuska.tessellagon.data.Hexagon;
+
+/**
+ * Measures stepping the simulation, both for a single hexagon and for
+ * whole grids of different sizes in both step modes. The grid is seeded
+ * again before each iteration so that the population does not die out
+ * during the measurement.
+ *
+ * @author Tuukka Haapasalo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SimulationBenchmark {
+
+    private static final double ALIVE_PROBABILITY = 0.3;
+    private static final long SEED = 1;
+
+    /** The width and height of the grid, in hexagons. */
+    @Param( { "4", "16", "64" })
+    private int size;
+
+    @Param( { "Scalar", "Batched" })
+    private HexGrid.StepMode mode;
+
+    private HexGrid grid;
+    private Hexagon hexagon;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        grid = new HexGrid(size, size);
+        grid.setStepMode(mode);
+        GridPopulator.populate(grid, ALIVE_PROBABILITY, new Random(SEED));
+        grid.step(0);
+        hexagon = grid.getHexagon(size / 2, size / 2);
+    }
+
+    @Benchmark
+    public void stepGrid() {
+        grid.stepSimulation();
+    }
+
+    /**
+     * Calculates the next generation of a single hexagon in the middle of
+     * the grid. The cell buffers are not flipped, so each invocation
+     * calculates the same generation.
+     */
+    @Benchmark
+    public void stepHexagon() {
+        hexagon.stepSimulation();
+    }
+
+}
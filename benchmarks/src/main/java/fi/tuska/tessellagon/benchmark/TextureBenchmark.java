@@ -0,0 +1,57 @@
+package fi.tuska.tessellagon.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.tuska.tessellagon.data.GridPopulator;
+import fi.tuska.tessellagon.data.HexGrid;
+import fi.tuska.tessellagon.data.Hexagon;
+import fi.tuska.tessellagon.j3d.HexagonTextureDrawer;
+
+/**
+ * Measures drawing the texture of a hexagon. The textures are loaded from
+ * the textures directory, so this must be run from the project root, with
+ * Java3D available.
+ *
+ * @author Tuukka Haapasalo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TextureBenchmark {
+
+    /** The fraction of alive cells in the drawn hexagon. */
+    @Param( { "0.0", "0.3", "1.0" })
+    private double aliveProbability;
+
+    private HexagonTextureDrawer drawer;
+
+    @Setup
+    public void setUp() {
+        HexGrid grid = new HexGrid(1, 1);
+        Hexagon hexagon = grid.getHexagon(0, 0);
+        GridPopulator.addRandomCells(hexagon, aliveProbability, new Random(1));
+        drawer = new HexagonTextureDrawer(hexagon);
+    }
+
+    @Benchmark
+    public void drawHexagon() {
+        drawer.drawHexagon();
+    }
+
+}
@@ -0,0 +1,142 @@
+package fi.tuska.tessellagon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import fi.tuska.tessellagon.data.CycleListener;
+import fi.tuska.tessellagon.data.GridPopulator;
+import fi.tuska.tessellagon.data.HexGrid;
+import fi.tuska.tessellagon.data.LevelLoader;
+import fi.tuska.tessellagon.data.TraceRecorder;
+import fi.tuska.tessellagon.data.TraceReplayer;
+
+/**
+ * Runs the simulation without the 3D user interface. Loads a level, fills
+ * it with random cells, steps the given number of generations and reports
+ * the simulation speed, the population and when the grid settles. Only
+ * uses the data package, so Java3D is not needed on the classpath.
+ *
+ * <p>
+ * Usage: Headless [level] [generations] [alive probability] [random seed]
+ * [threads] [step mode] [trace file to record]
+ *
+ * <p>
+ * Or: Headless replay [trace file], to replay a recorded session as fast as
+ * possible.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class Headless {
+
+    private static final String DEFAULT_LEVEL = "Level1";
+    private static final int DEFAULT_GENERATIONS = 10000;
+    private static final double DEFAULT_PROBABILITY = 0.3;
+
+    /** How many progress reports are printed during the run. */
+    private static final int REPORTS = 10;
+
+    private final HexGrid grid;
+
+    public Headless(HexGrid grid) {
+        this.grid = grid;
+        grid.addCycleListener(new CycleListener() {
+            @Override
+            public void cycleDetected(long generation, int period) {
+                System.out.println(String.format("Generation %d: settled into a cycle of period %d",
+                    generation, period));
+            }
+
+            @Override
+            public void extinct(long generation) {
+                System.out.println(String.format("Generation %d: all cells died", generation));
+            }
+        });
+    }
+
+    /**
+     * Steps the given number of generations, printing progress reports.
+     */
+    public void run(int generations) {
+        int reportInterval = Math.max(1, generations / REPORTS);
+        long start = System.nanoTime();
+        int stepped = 0;
+        while (stepped < generations) {
+            int batch = Math.min(reportInterval, generations - stepped);
+            grid.step(batch);
+            stepped += batch;
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("Generation %d: population %d, %.1f generations/s",
+                grid.getGeneration(), grid.getSnapshot().getPopulation(), rate(stepped,
+                    elapsed)));
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format(
+            "Stepped %d generations in %.3f s (%.1f generations/s), final population %d",
+            stepped, elapsed / 1e9, rate(stepped, elapsed), grid.getSnapshot().getPopulation()));
+    }
+
+    private static double rate(long generations, long nanos) {
+        return nanos > 0 ? generations * 1e9 / nanos : 0;
+    }
+
+    /**
+     * Replays the given trace to the end, and reports the replay speed.
+     */
+    public static void replay(File trace) throws IOException {
+        TraceReplayer replayer = TraceReplayer.open(trace);
+        try {
+            HexGrid grid = replayer.getGrid();
+            System.out.println(String.format("Trace %s: %dx%d hexagons, starting at generation %d",
+                trace, grid.getWidth(), grid.getHeight(), grid.getGeneration()));
+            long start = System.nanoTime();
+            long replayed = replayer.replayToEnd();
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format(
+                "Replayed %d generations (%d events) in %.3f s (%.1f generations/s), "
+                    + "final generation %d, population %d", replayed, replayer
+                    .getEventCount(), elapsed / 1e9, rate(replayed, elapsed), grid
+                    .getGeneration(), grid.getSnapshot().getPopulation()));
+        } finally {
+            replayer.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1 && args[0].equals("replay")) {
+            replay(new File(args[1]));
+            return;
+        }
+        String level = args.length > 0 ? args[0] : DEFAULT_LEVEL;
+        int generations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_GENERATIONS;
+        double probability = args.length > 2 ? Double.parseDouble(args[2])
+            : DEFAULT_PROBABILITY;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : System.currentTimeMillis();
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        HexGrid.StepMode mode = args.length > 5 ? HexGrid.StepMode.valueOf(args[5])
+            : HexGrid.StepMode.Scalar;
+        File trace = args.length > 6 ? new File(args[6]) : null;
+
+        HexGrid grid = LevelLoader.loadLevel(level);
+        grid.setParallelism(threads);
+        grid.setStepMode(mode);
+        System.out.println(String.format(
+            "Level %s: %dx%d hexagons, rule %s, %d thread(s), %s stepping", level, grid
+                .getWidth(), grid.getHeight(), grid.getRule(), threads, mode));
+
+        GridPopulator.populate(grid, probability, new Random(seed));
+        // Publish the seeded state as generation zero
+        grid.step(0);
+        System.out.println(String.format("Seeded with probability %.2f (seed %d): population %d",
+            probability, seed, grid.getSnapshot().getPopulation()));
+
+        TraceRecorder recorder = trace != null ? TraceRecorder.start(grid, trace) : null;
+        new Headless(grid).run(generations);
+        if (recorder != null) {
+            recorder.stop();
+            System.out.println(String.format("Recorded %d events into %s%s", recorder
+                .getEventCount(), trace, recorder.isOverflowed() ? " (ended early)" : ""));
+        }
+    }
+
+}
@@ -1,6 +1,10 @@
 package fi.tuska.tessellagon;
 
+import java.io.File;
+import java.io.IOException;
+
 import fi.tuska.tessellagon.data.World;
+import fi.tuska.tessellagon.data.World.PatternType;
 import fi.tuska.tessellagon.j3d.World3d;
 import fi.tuska.tessellagon.proto.WorldPopulator;
 
@@ -11,6 +15,8 @@ public class Tessellagon {
 
     public Tessellagon(int width, int height) {
         world = new World();
+        // The patterns that the user can stamp, before the UI starts
+        world.preloadPatterns(PatternType.Glider, PatternType.Corner);
         w3d = new World3d(world);
     }
 
@@ -22,9 +28,25 @@ public class Tessellagon {
         w3d.run();
     }
 
-    public static void main(String[] args) {
+    /**
+     * Shows the replay of the given recorded session instead of a level.
+     */
+    public void replay(File trace) throws IOException {
+        WorldPopulator pop = new WorldPopulator(w3d);
+        pop.replayTrace(trace);
+        w3d.run();
+    }
+
+    /**
+     * Usage: Tessellagon [trace file to replay]
+     */
+    public static void main(String[] args) throws IOException {
         Tessellagon t = new Tessellagon(10, 10);
-        t.run();
+        if (args.length > 0) {
+            t.replay(new File(args[0]));
+        } else {
+            t.run();
+        }
     }
 
 }
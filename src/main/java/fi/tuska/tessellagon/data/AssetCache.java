@@ -0,0 +1,250 @@
+package fi.tuska.tessellagon.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A cache of the compiled forms of the level and pattern files, so that
+ * the text files are only parsed once. The compiled form of a source file
+ * is written to the cache directory when the file is first loaded, and is
+ * keyed by the path, the modification time and the length of the source
+ * file: a source file that has been edited gets a new entry, and the stale
+ * entries are deleted when the new entry is written.
+ *
+ * <p>
+ * Levels are compiled into {@link GridSaveFile}s, and loaded by mapping the
+ * compiled file. Patterns are compiled into a single hexagon record of the
+ * same format, after a short header, and read directly, as they are tiny.
+ * The cache is only an optimization: if an entry cannot be read or written,
+ * the source file is parsed as before. A mapped entry may not be deleted or
+ * replaced on some platforms until the mapping has been released, so
+ * failing to delete a stale entry is only logged, and it is deleted again
+ * when the next entry of the same source file is written.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class AssetCache {
+
+    private static final Logger log = Logger.getLogger(AssetCache.class);
+
+    private static final File CACHE_DIR = new File("data/cache");
+    private static final String LEVEL_SUFFIX = ".grid";
+    private static final String PATTERN_SUFFIX = ".hex";
+    /** Separates the key of the source file from its path in the entry names. */
+    private static final char KEY_SEPARATOR = '@';
+
+    /** The magic number at the start of a compiled pattern: "TessPatt". */
+    private static final long PATTERN_MAGIC = 0x5465737350617474L;
+    private static final long PATTERN_VERSION = 1;
+    private static final int PATTERN_HEADER_SIZE = 2;
+    private static final int BYTES_PER_LONG = 8;
+
+    private static volatile boolean enabled = true;
+
+    private AssetCache() {
+        // No need to instantiate, just use the static methods
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled false to always parse the source files, for example to
+     * measure the parsing
+     */
+    public static void setEnabled(boolean enabled) {
+        AssetCache.enabled = enabled;
+    }
+
+    /**
+     * @return the level compiled from the given level file, or null if it
+     * has not been cached
+     */
+    static HexGrid loadLevel(File source) {
+        File entry = getEntry(source, LEVEL_SUFFIX);
+        if (entry == null || !entry.isFile())
+            return null;
+        try {
+            return GridSaveFile.load(entry);
+        } catch (IOException e) {
+            discard(entry, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the level parsed from the given level file. Must be called
+     * before the level is modified.
+     */
+    static void storeLevel(File source, HexGrid level) {
+        File entry = getEntry(source, LEVEL_SUFFIX);
+        if (entry == null)
+            return;
+        try {
+            File temp = createTempFile();
+            GridSaveFile.save(level, temp);
+            commit(temp, entry, LEVEL_SUFFIX);
+        } catch (IOException e) {
+            log.warn("Could not cache level " + source + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the pattern compiled from the given pattern file, or null if
+     * it has not been cached
+     */
+    static Hexagon loadPattern(File source) {
+        File entry = getEntry(source, PATTERN_SUFFIX);
+        if (entry == null || !entry.isFile())
+            return null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(entry, "r");
+            try {
+                int longs = PATTERN_HEADER_SIZE + GridSaveFile.RECORD_SIZE;
+                if (raf.length() != longs * BYTES_PER_LONG)
+                    throw new IOException("Invalid length " + raf.length());
+                ByteBuffer bytes = ByteBuffer.allocate(longs * BYTES_PER_LONG);
+                FileChannel channel = raf.getChannel();
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes) < 0)
+                        throw new IOException("Unexpected end of file");
+                }
+                bytes.flip();
+                LongBuffer buffer = bytes.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+                if (buffer.get() != PATTERN_MAGIC || buffer.get() != PATTERN_VERSION)
+                    throw new IOException("Not a compiled pattern");
+                long[] record = new long[GridSaveFile.RECORD_SIZE];
+                buffer.get(record);
+                long[] state = new long[Hexagon.EDIT_STATE_SIZE];
+                GridSaveFile.decode(record, state, 0);
+
+                Hexagon pattern = new Hexagon(-1, -1, true);
+                pattern.setEditState(state, 0, 0);
+                pattern.invalidate();
+                return pattern;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            discard(entry, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the pattern parsed from the given pattern file.
+     */
+    static void storePattern(File source, Hexagon pattern) {
+        File entry = getEntry(source, PATTERN_SUFFIX);
+        if (entry == null)
+            return;
+        long[] state = new long[Hexagon.EDIT_STATE_SIZE];
+        pattern.getEditState(state, 0);
+        long[] record = new long[GridSaveFile.RECORD_SIZE];
+        GridSaveFile.encode(state, 0, 0, record);
+
+        ByteBuffer bytes = ByteBuffer.allocate((PATTERN_HEADER_SIZE + record.length)
+            * BYTES_PER_LONG).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putLong(PATTERN_MAGIC).putLong(PATTERN_VERSION);
+        for (long value : record) {
+            bytes.putLong(value);
+        }
+        bytes.flip();
+        try {
+            File temp = createTempFile();
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            } finally {
+                raf.close();
+            }
+            commit(temp, entry, PATTERN_SUFFIX);
+        } catch (IOException e) {
+            log.warn("Could not cache pattern " + source + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the cache entry for the current version of the given source
+     * file, or null if the cache is disabled or the source does not exist
+     */
+    private static File getEntry(File source, String suffix) {
+        if (!enabled || !source.isFile())
+            return null;
+        String key = Long.toString(source.lastModified(), 36) + "-"
+            + Long.toString(source.length(), 36);
+        return new File(CACHE_DIR, getEntryPrefix(source) + key + suffix);
+    }
+
+    /**
+     * @return the start of the names of all the entries of the given source
+     * file, whatever its version; the key follows the last separator
+     */
+    private static String getEntryPrefix(File source) {
+        return source.getPath().replace(File.separatorChar, '_').replace(':', '_')
+            + KEY_SEPARATOR;
+    }
+
+    private static File createTempFile() throws IOException {
+        if (!CACHE_DIR.isDirectory() && !CACHE_DIR.mkdirs())
+            throw new IOException("Cannot create cache directory " + CACHE_DIR);
+        return File.createTempFile("asset", ".tmp", CACHE_DIR);
+    }
+
+    /**
+     * Moves a completely written entry into place, so that a partially
+     * written entry is never read, and deletes the stale entries of the same
+     * source file. An existing entry, which can only be one that could not
+     * be read, is deleted first if it cannot be replaced directly.
+     */
+    private static void commit(File temp, File entry, String suffix) throws IOException {
+        if (!temp.renameTo(entry) && (!delete(entry) || !temp.renameTo(entry))) {
+            delete(temp);
+            throw new IOException("Cannot rename " + temp + " to " + entry);
+        }
+        String name = entry.getName();
+        String prefix = name.substring(0, name.lastIndexOf(KEY_SEPARATOR) + 1);
+        File[] files = CACHE_DIR.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String other = file.getName();
+            if (other.startsWith(prefix) && other.endsWith(suffix) && !other.equals(name)
+                && other.indexOf(KEY_SEPARATOR, prefix.length()) < 0) {
+                log.debug("Deleting stale cache entry " + file);
+                delete(file);
+            }
+        }
+        log.debug("Cached " + entry);
+    }
+
+    private static void discard(File entry, IOException e) {
+        log.warn("Discarding invalid cache entry " + entry + ": " + e.getMessage());
+        delete(entry);
+    }
+
+    /**
+     * Deletes the given file, logging a failure, for example when the file
+     * is still mapped.
+     *
+     * @return true if the file no longer exists
+     */
+    private static boolean delete(File file) {
+        if (file.delete() || !file.exists())
+            return true;
+        log.warn("Could not delete cache file " + file);
+        return false;
+    }
+
+}
@@ -0,0 +1,20 @@
+package fi.tuska.tessellagon.data;
+
+/**
+ * A step listener that can step several generations at once. The
+ * {@link SimulationScheduler} steps the batches it runs in a single call to
+ * these listeners, and calls {@link #stepSimulation()} once per generation
+ * on the other listeners.
+ *
+ * @author Tuukka Haapasalo
+ */
+public interface BatchStepListener extends SimulatorStepListener {
+
+    /**
+     * Steps the simulation by the given number of generations.
+     *
+     * @param generations the number of generations to step
+     */
+    void step(int generations);
+
+}
@@ -0,0 +1,138 @@
+package fi.tuska.tessellagon.data;
+
+/**
+ * Calculates the next generation for batches of hexagons at once. The
+ * inputs of the hexagons are collected side by side into flat arrays (one
+ * array per source and word, indexed by the position of the hexagon in the
+ * batch), and each step of the calculation is then a simple loop over the
+ * batch. The JIT compiler can vectorize these loops, so that several
+ * hexagons are processed per instruction. The results are identical to
+ * {@link Hexagon#stepSimulation(Hexagon[], LifeRule, Hexagon.StepScratch)}.
+ *
+ * <p>
+ * A stepper holds its scratch arrays between the batches, so each thread
+ * must use its own stepper.
+ *
+ * @author Tuukka Haapasalo
+ * @see HexGrid.StepMode#Batched
+ */
+final class BatchStepper {
+
+    /** The maximum number of hexagons in a batch. */
+    static final int BATCH_SIZE = 256;
+
+    private static final int DIRECTIONS = HexGrid.Direction.values().length;
+
+    private final Hexagon[] hexagons = new Hexagon[BATCH_SIZE];
+    private final int[] indices = new int[BATCH_SIZE];
+    private int size = 0;
+
+    /** The source vectors, by [source * BATCH_SIZE + hexagon]. */
+    private final long[] srcLo = new long[HexagonLayout.SOURCES * BATCH_SIZE];
+    private final long[] srcHi = new long[HexagonLayout.SOURCES * BATCH_SIZE];
+    private final long[] stonesLo = new long[BATCH_SIZE];
+    private final long[] stonesHi = new long[BATCH_SIZE];
+    private final long[] spawnersLo = new long[BATCH_SIZE];
+    private final long[] spawnersHi = new long[BATCH_SIZE];
+    /** Scratch space for importing the shared cells of a hexagon. */
+    private final long[] imported = new long[HexagonLayout.WORDS];
+
+    /** The neighbor vectors, by [direction][hexagon]. */
+    private final long[][] neighborsLo = new long[DIRECTIONS][BATCH_SIZE];
+    private final long[][] neighborsHi = new long[DIRECTIONS][BATCH_SIZE];
+
+    private final long[] bit0 = new long[BATCH_SIZE];
+    private final long[] bit1 = new long[BATCH_SIZE];
+    private final long[] bit2 = new long[BATCH_SIZE];
+    private final long[] nextLo = new long[BATCH_SIZE];
+    private final long[] nextHi = new long[BATCH_SIZE];
+
+    boolean isFull() {
+        return size == BATCH_SIZE;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds a hexagon to the batch.
+     *
+     * @param hexagon an active hexagon
+     * @param index the topology index of the hexagon
+     * @param neighbors the neighbors of the hexagon, in the order of the
+     * direction ordinals
+     */
+    void add(Hexagon hexagon, int index, Hexagon[] neighbors) {
+        assert !isFull();
+        assert hexagon.isActive();
+        int k = size++;
+        hexagons[k] = hexagon;
+        indices[k] = index;
+        hexagon.getStepSources(neighbors, srcLo, srcHi, BATCH_SIZE, k, imported);
+        stonesLo[k] = hexagon.getStones(0);
+        stonesHi[k] = hexagon.getStones(1);
+        spawnersLo[k] = hexagon.getSpawners(0);
+        spawnersHi[k] = hexagon.getSpawners(1);
+    }
+
+    /**
+     * Calculates the next generation of the hexagons in the batch into
+     * their other cell buffers, and empties the batch.
+     *
+     * @param rule the rule of the simulation
+     * @param changed receives, at the topology index of each hexagon in the
+     * batch, whether the cells of the hexagon changed
+     */
+    void step(LifeRule rule, boolean[] changed) {
+        int count = size;
+        for (int d = 0; d < DIRECTIONS; ++d) {
+            HexagonLayout.gatherBatch(d, srcLo, srcHi, BATCH_SIZE, count, neighborsLo[d],
+                neighborsHi[d]);
+        }
+
+        int self = HexagonLayout.SELF * BATCH_SIZE;
+        evaluate(rule, neighborsLo, srcLo, self, stonesLo, spawnersLo,
+            HexagonLayout.ALL_CELLS[0], nextLo, count);
+        evaluate(rule, neighborsHi, srcHi, self, stonesHi, spawnersHi,
+            HexagonLayout.ALL_CELLS[1], nextHi, count);
+
+        for (int k = 0; k < count; ++k) {
+            changed[indices[k]] = hexagons[k].setNextGeneration(nextLo[k], nextHi[k]);
+            hexagons[k] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Counts the neighbors of one word of the cells of each hexagon with
+     * bitwise full adders, as in {@link Hexagon}, and applies the rule.
+     */
+    private void evaluate(LifeRule rule, long[][] neighbors, long[] src, int self,
+        long[] stones, long[] spawners, long allCells, long[] next, int count) {
+        long[] n0 = neighbors[0];
+        long[] n1 = neighbors[1];
+        long[] n2 = neighbors[2];
+        long[] n3 = neighbors[3];
+        long[] n4 = neighbors[4];
+        long[] n5 = neighbors[5];
+        for (int k = 0; k < count; ++k) {
+            // Add up the neighbors in two groups of three
+            long s1 = n0[k] ^ n1[k] ^ n2[k];
+            long c1 = (n0[k] & n1[k]) | (n2[k] & (n0[k] ^ n1[k]));
+            long s2 = n3[k] ^ n4[k] ^ n5[k];
+            long c2 = (n3[k] & n4[k]) | (n5[k] & (n3[k] ^ n4[k]));
+            // Combine the groups into a three-bit count
+            long c0 = s1 & s2;
+            bit0[k] = s1 ^ s2;
+            bit1[k] = c1 ^ c2 ^ c0;
+            bit2[k] = (c1 & c2) | (c0 & (c1 ^ c2));
+        }
+
+        rule.applyBatch(src, self, bit0, bit1, bit2, next, count);
+        for (int k = 0; k < count; ++k) {
+            next[k] = next[k] & ~stones[k] & allCells | spawners[k];
+        }
+    }
+
+}
@@ -8,17 +8,18 @@ public class Cell {
         Dead, Alive, Spawner, Stone
     }
 
-    public Type type;
+    private Type type;
 
     public Cell() {
         this.type = Type.Dead;
     }
 
     public void set(Cell other) {
-        this.type = other.type;
+        setType(other.getType());
     }
 
     public boolean isSpecial() {
+        Type type = getType();
         return !(type == Type.Alive || type == Type.Dead);
     }
 
@@ -26,43 +27,48 @@ public class Cell {
         return type;
     }
 
+    protected void setType(Type type) {
+        this.type = type;
+    }
+
     public boolean isSpawner() {
-        return type == Type.Spawner;
+        return getType() == Type.Spawner;
     }
 
     public boolean isStone() {
-        return type == Type.Stone;
+        return getType() == Type.Stone;
     }
 
     public void setStone() {
-        type = Type.Stone;
+        setType(Type.Stone);
     }
 
     public void setSpawner() {
-        type = Type.Spawner;
+        setType(Type.Spawner);
     }
 
     public boolean isAlive() {
+        Type type = getType();
         return type == Type.Alive || type == Type.Spawner;
     }
 
     public void setAlive() {
-        if (type == Type.Dead)
-            type = Type.Alive;
+        if (getType() == Type.Dead)
+            setType(Type.Alive);
     }
 
     public void setDead() {
-        if (type == Type.Alive)
-            type = Type.Dead;
+        if (getType() == Type.Alive)
+            setType(Type.Dead);
     }
 
     public void toggleAlive() {
-        switch (type) {
+        switch (getType()) {
         case Alive:
-            type = Type.Dead;
+            setType(Type.Dead);
             break;
         case Dead:
-            type = Type.Alive;
+            setType(Type.Alive);
             break;
         default:
             // No change
@@ -71,6 +77,7 @@ public class Cell {
 
     @Override
     public String toString() {
+        Type type = getType();
         switch (type) {
         case Alive:
             return "alive";
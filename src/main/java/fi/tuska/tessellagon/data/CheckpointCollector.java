@@ -0,0 +1,60 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.Arrays;
+
+/**
+ * Packs the states of hexagons into a {@link Timeline.Checkpoint}, for the
+ * timeline, the traces and the saves of a grid. The caller must hold the
+ * step lock of the grid, and the locks of the hexagons while adding them.
+ *
+ * @author Tuukka Haapasalo
+ */
+final class CheckpointCollector {
+
+    private final GridTopology topology;
+    private final int[] hexagons;
+    private final long[] records;
+    private final long[] state = new long[Hexagon.EDIT_STATE_SIZE];
+    private final long[] record = new long[GridSaveFile.RECORD_SIZE];
+    private int count = 0;
+
+    /**
+     * @param capacity the maximum number of hexagons that can be added
+     */
+    CheckpointCollector(GridTopology topology, int capacity) {
+        this.topology = topology;
+        this.hexagons = new int[capacity];
+        this.records = new long[capacity * GridSaveFile.RECORD_SIZE];
+    }
+
+    /**
+     * Adds the state of the given hexagon, in ascending order of the
+     * indices.
+     *
+     * @param required false to skip the hexagon if it is empty
+     */
+    void add(int index, boolean required) {
+        Hexagon hexagon = topology.getHexagon(index);
+        hexagon.getEditState(state, 0);
+        long bits = hexagon.getOrientation();
+        for (long word : state) {
+            bits |= word;
+        }
+        if (bits == 0 && !required)
+            return;
+        GridSaveFile.encode(state, 0, hexagon.getOrientation(), record);
+        hexagons[count] = index;
+        System.arraycopy(record, 0, records, count * record.length, record.length);
+        ++count;
+    }
+
+    /**
+     * @param complete true if the checkpoint holds the whole grid, false for
+     * a patch
+     */
+    Timeline.Checkpoint create(long generation, LifeRule rule, boolean complete) {
+        return new Timeline.Checkpoint(generation, rule, Arrays.copyOf(hexagons, count),
+            Arrays.copyOf(records, count * record.length), complete);
+    }
+
+}
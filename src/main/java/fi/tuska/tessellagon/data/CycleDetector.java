@@ -0,0 +1,368 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.Arrays;
+
+/**
+ * Detects when the simulation of a grid has settled into a cycle: a still
+ * life (period 1), or an oscillator that repeats the whole grid state every
+ * few generations.
+ *
+ * <p>
+ * Each hexagon contributes a fingerprint of its cells to a grid-wide hash,
+ * Zobrist style: the fingerprints are XORed together, so the hash is
+ * updated incrementally for each hexagon that changes, without visiting the
+ * quiescent hexagons. The hashes of the recent generations are kept in a
+ * ring. When the hash of a generation matches one of the previous
+ * {@link #MAX_PERIOD} generations, the changes of the next period are
+ * recorded, and the candidate cycle is confirmed if the cells then match
+ * the recorded starting state exactly. Hash collisions can therefore only
+ * cost a failed confirmation.
+ *
+ * <p>
+ * A confirmed cycle stores the states of the changing hexagons for each
+ * phase of the cycle, so that the grid can be fast-forwarded to any later
+ * generation by copying the states of the target phase. The hash is
+ * relative to the state at the latest {@link #reset(long)}, which must be
+ * called whenever the cells are changed outside of the simulation.
+ *
+ * @author Tuukka Haapasalo
+ */
+final class CycleDetector {
+
+    /** The longest period that is detected. */
+    static final int MAX_PERIOD = 64;
+
+    /**
+     * The maximum number of recorded hexagon states, both for the changes
+     * of a candidate cycle and for the phases of a confirmed cycle.
+     */
+    private static final int MAX_STATES = 1 << 20;
+
+    private static final long KEY_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    /** The hash of the grid, relative to the state at the latest reset. */
+    private long hash;
+    private final long[] history = new long[MAX_PERIOD + 1];
+    /** The generation of the latest reset. */
+    private long start;
+    /** Whether any hexagon changed in the current generation. */
+    private boolean changed;
+
+    /** The recording slot of each hexagon by topology index, or -1. */
+    private final int[] slots;
+    private final int size;
+
+    /** The number of recorded hexagons, or -1 when not recording. */
+    private int recorded = -1;
+    private long recordStart;
+    private int recordPeriod;
+    private int[] recordedHexagons = new int[16];
+    /** The states of the recorded hexagons at the start of the recording. */
+    private long[] initial = new long[32];
+    /** The latest states of the recorded hexagons. */
+    private long[] latest = new long[32];
+    private int changes;
+    private int[] changeSteps = new int[16];
+    private int[] changeSlots = new int[16];
+    private long[] changeStates = new long[32];
+
+    /** The period of the confirmed cycle, or zero if there is none. */
+    private int period;
+    /** The generation of phase zero of the confirmed cycle. */
+    private long cycleStart;
+    /** The hexagons that change during the cycle, in index order. */
+    private int[] cycleHexagons = new int[0];
+    /** The states of the cycle, by [(phase * hexagons + hexagon) * 2 + word]. */
+    private long[] cycleStates = new long[0];
+    /** The periods of the individual hexagons of the cycle. */
+    private int[] hexagonPeriods = new int[0];
+
+    /**
+     * @param size the number of hexagons in the topology of the grid
+     */
+    CycleDetector(int size) {
+        this.size = size;
+        this.slots = new int[size];
+        Arrays.fill(slots, -1);
+        reset(0);
+    }
+
+    /**
+     * Calculates the fingerprint of the given cells of the hexagon at the
+     * given index.
+     */
+    static long fingerprint(int index, long lo, long hi) {
+        return mix(mix(lo ^ (index + 1) * KEY_MULTIPLIER) ^ hi);
+    }
+
+    /** The finalizer of MurmurHash3. */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Forgets the history and any detected cycle. Called when the grid is
+     * changed outside of the simulation.
+     *
+     * @param generation the current generation
+     */
+    void reset(long generation) {
+        hash = 0;
+        start = generation;
+        history[index(generation)] = hash;
+        changed = false;
+        stopRecording();
+        period = 0;
+        cycleHexagons = new int[0];
+        cycleStates = new long[0];
+        hexagonPeriods = new int[0];
+    }
+
+    private static int index(long generation) {
+        return (int) (generation % (MAX_PERIOD + 1));
+    }
+
+    /**
+     * Records the change of a hexagon in the current generation.
+     */
+    void hexagonChanged(int index, long oldLo, long oldHi, long newLo, long newHi) {
+        hash ^= fingerprint(index, oldLo, oldHi) ^ fingerprint(index, newLo, newHi);
+        changed = true;
+        if (recorded < 0)
+            return;
+
+        int slot = slots[index];
+        if (slot < 0) {
+            slot = recorded++;
+            slots[index] = slot;
+            recordedHexagons = ensureCapacity(recordedHexagons, recorded);
+            recordedHexagons[slot] = index;
+            initial = ensureCapacity(initial, 2 * recorded);
+            latest = ensureCapacity(latest, 2 * recorded);
+            initial[2 * slot] = oldLo;
+            initial[2 * slot + 1] = oldHi;
+        }
+        latest[2 * slot] = newLo;
+        latest[2 * slot + 1] = newHi;
+
+        int change = changes++;
+        changeSteps = ensureCapacity(changeSteps, changes);
+        changeSlots = ensureCapacity(changeSlots, changes);
+        changeStates = ensureCapacity(changeStates, 2 * changes);
+        changeSteps[change] = 0;
+        changeSlots[change] = slot;
+        changeStates[2 * change] = newLo;
+        changeStates[2 * change + 1] = newHi;
+        if (changes > MAX_STATES)
+            stopRecording();
+    }
+
+    /**
+     * Completes the current generation, and checks for a cycle.
+     *
+     * @param generation the number of the generation that was completed
+     * @return true if a cycle was confirmed in this generation
+     */
+    boolean generationCompleted(long generation) {
+        if (period > 0)
+            return false;
+        history[index(generation)] = hash;
+
+        if (!changed) {
+            // Nothing changed, so nothing will change in the following
+            // generations either
+            stopRecording();
+            confirm(1, generation, 0);
+            return true;
+        }
+        changed = false;
+
+        if (recorded >= 0) {
+            // Number the changes of this generation with its step
+            int step = (int) (generation - recordStart);
+            for (int c = changes - 1; c >= 0 && changeSteps[c] == 0; --c) {
+                changeSteps[c] = step;
+            }
+            if (step < recordPeriod)
+                return false;
+            if (verifyRecording()) {
+                confirm(recordPeriod, generation, recorded);
+                stopRecording();
+                return true;
+            }
+            stopRecording();
+        }
+
+        int maxPeriod = (int) Math.min(MAX_PERIOD, generation - start);
+        for (int p = 2; p <= maxPeriod; ++p) {
+            if (history[index(generation - p)] == hash) {
+                startRecording(generation, p);
+                break;
+            }
+        }
+        return false;
+    }
+
+    private void startRecording(long generation, int period) {
+        recorded = 0;
+        recordStart = generation;
+        recordPeriod = period;
+        changes = 0;
+    }
+
+    private void stopRecording() {
+        if (recorded > 0) {
+            for (int slot = 0; slot < recorded; ++slot) {
+                slots[recordedHexagons[slot]] = -1;
+            }
+        }
+        recorded = -1;
+        changes = 0;
+    }
+
+    /**
+     * @return true if the recorded hexagons are back in their initial state
+     */
+    private boolean verifyRecording() {
+        for (int i = 0; i < 2 * recorded; ++i) {
+            if (latest[i] != initial[i])
+                return false;
+        }
+        return (long) recorded * recordPeriod <= MAX_STATES;
+    }
+
+    /**
+     * Stores the confirmed cycle. Phase zero is the current state, which
+     * equals the initial state of the recording; the following phases are
+     * rebuilt from the recorded changes.
+     */
+    private void confirm(int period, long generation, int count) {
+        int[] order = new int[count];
+        for (int slot = 0; slot < count; ++slot) {
+            order[slot] = recordedHexagons[slot];
+        }
+        Arrays.sort(order);
+        for (int i = 0; i < count; ++i) {
+            slots[order[i]] = i;
+        }
+
+        long[] states = new long[2 * period * count];
+        for (int slot = 0; slot < count; ++slot) {
+            int i = slots[recordedHexagons[slot]];
+            states[2 * i] = initial[2 * slot];
+            states[2 * i + 1] = initial[2 * slot + 1];
+        }
+        for (int phase = 1; phase < period; ++phase) {
+            System.arraycopy(states, 2 * (phase - 1) * count, states, 2 * phase * count,
+                2 * count);
+        }
+        for (int c = 0; c < changes; ++c) {
+            int phase = changeSteps[c];
+            if (phase >= period)
+                continue;
+            int i = slots[recordedHexagons[changeSlots[c]]];
+            // The change holds for this phase and the following ones
+            for (int p = phase; p < period; ++p) {
+                states[2 * (p * count + i)] = changeStates[2 * c];
+                states[2 * (p * count + i) + 1] = changeStates[2 * c + 1];
+            }
+        }
+
+        this.period = period;
+        this.cycleStart = generation;
+        this.cycleHexagons = order;
+        this.cycleStates = states;
+        this.hexagonPeriods = new int[count];
+        for (int i = 0; i < count; ++i) {
+            hexagonPeriods[i] = calculateHexagonPeriod(i);
+        }
+    }
+
+    /**
+     * @return the smallest period that divides the period of the cycle, and
+     * with which the given hexagon repeats
+     */
+    private int calculateHexagonPeriod(int i) {
+        int count = cycleHexagons.length;
+        for (int q = 1; q < period; ++q) {
+            if (period % q != 0)
+                continue;
+            boolean repeats = true;
+            for (int phase = 0; phase < period && repeats; ++phase) {
+                int other = (phase + q) % period;
+                repeats = cycleStates[2 * (phase * count + i)] == cycleStates[2 * (other
+                    * count + i)]
+                    && cycleStates[2 * (phase * count + i) + 1] == cycleStates[2 * (other
+                        * count + i) + 1];
+            }
+            if (repeats)
+                return q;
+        }
+        return period;
+    }
+
+    /**
+     * @return the period of the detected cycle, or zero if no cycle has been
+     * detected
+     */
+    int getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return the phase of the detected cycle at the given generation
+     */
+    int getPhase(long generation) {
+        return (int) ((generation - cycleStart) % period);
+    }
+
+    /**
+     * @return the number of hexagons that change during the detected cycle
+     */
+    int getHexagonCount() {
+        return cycleHexagons.length;
+    }
+
+    /**
+     * @return the topology index of the given changing hexagon
+     */
+    int getHexagon(int i) {
+        return cycleHexagons[i];
+    }
+
+    /**
+     * @return the given word of the cells of the given changing hexagon at
+     * the given phase of the cycle
+     */
+    long getCells(int phase, int i, int word) {
+        return cycleStates[2 * (phase * cycleHexagons.length + i) + word];
+    }
+
+    /**
+     * @return the period with which the hexagon at the given topology index
+     * repeats in the detected cycle: 1 for the hexagons that do not change,
+     * or zero if no cycle has been detected
+     */
+    int getHexagonPeriod(int index) {
+        if (period == 0 || index < 0 || index >= size)
+            return 0;
+        int i = Arrays.binarySearch(cycleHexagons, index);
+        return i >= 0 ? hexagonPeriods[i] : 1;
+    }
+
+    private static int[] ensureCapacity(int[] array, int length) {
+        return length <= array.length ? array : Arrays.copyOf(array, Math.max(length,
+            2 * array.length));
+    }
+
+    private static long[] ensureCapacity(long[] array, int length) {
+        return length <= array.length ? array : Arrays.copyOf(array, Math.max(length,
+            2 * array.length));
+    }
+
+}
@@ -0,0 +1,28 @@
+package fi.tuska.tessellagon.data;
+
+/**
+ * Receives notifications when the simulation of a {@link HexGrid} has
+ * settled. The notifications are sent from the thread that steps the grid,
+ * after the generation has been published.
+ *
+ * @author Tuukka Haapasalo
+ */
+public interface CycleListener {
+
+    /**
+     * Called when the grid is found to repeat itself. The grid is then
+     * fast-forwarded instead of calculated, until it is modified.
+     *
+     * @param generation the generation at which the cycle was detected
+     * @param period the period of the cycle; 1 for a still life
+     */
+    void cycleDetected(long generation, int period);
+
+    /**
+     * Called when all the cells of the grid have died.
+     *
+     * @param generation the generation at which the extinction was detected
+     */
+    void extinct(long generation);
+
+}
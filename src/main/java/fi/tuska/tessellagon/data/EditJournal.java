@@ -0,0 +1,264 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+import fi.tuska.tessellagon.data.HexGrid.Direction;
+
+/**
+ * A bounded undo/redo journal of the edits made to a grid by the user.
+ *
+ * <p>
+ * An edit of the cells is recorded by collecting the state of the edited
+ * hexagon and its neighbors before the edit (see {@link #begin(Hexagon)}),
+ * and storing only the XOR delta of the hexagons that changed when the edit
+ * is committed. The shared border cells are stored once, in their owners,
+ * so the deltas are exact. Rotations are recorded as the number of sixths,
+ * and undone by rotating back.
+ *
+ * <p>
+ * Undoing and redoing an edit flips the cells of its delta in the current
+ * state of the grid, whichever generation the grid has advanced to, so the
+ * entries stay usable however far the simulation has run. The edited
+ * stones and spawners are restored exactly, as only the edits change them;
+ * the edited cells that have evolved since are toggled.
+ *
+ * <p>
+ * The edits must be recorded while holding the lock of the neighborhood of
+ * the edited hexagon. Undo and redo hold the step lock and lock the whole
+ * grid. The edits, and the undos and redos, are also sent to the
+ * {@link TraceRecorder} of the grid, if it is being recorded.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class EditJournal {
+
+    private static final Logger log = Logger.getLogger(EditJournal.class);
+
+    /** The default maximum number of edits that can be undone. */
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final HexGrid grid;
+    private int capacity = DEFAULT_CAPACITY;
+    private final LinkedList<Entry> undoEntries = new LinkedList<Entry>();
+    private final LinkedList<Entry> redoEntries = new LinkedList<Entry>();
+
+    /**
+     * The state of a hexagon and its neighbors before an edit, from
+     * {@link EditJournal#begin(Hexagon)}.
+     */
+    public static final class Edit {
+        private final Hexagon[] hexagons;
+        private final long[] before;
+
+        private Edit(Hexagon[] hexagons, long[] before) {
+            this.hexagons = hexagons;
+            this.before = before;
+        }
+    }
+
+    /** A recorded edit. */
+    private static final class Entry {
+        /** The generation in which the edit was made. */
+        private final long generation;
+        private final Hexagon[] hexagons;
+        /** The XOR deltas of the hexagons, or null for a rotation. */
+        private final long[] delta;
+        private final int sixths;
+
+        private Entry(long generation, Hexagon[] hexagons, long[] delta, int sixths) {
+            this.generation = generation;
+            this.hexagons = hexagons;
+            this.delta = delta;
+            this.sixths = sixths;
+        }
+    }
+
+    EditJournal(HexGrid grid) {
+        this.grid = grid;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param capacity the maximum number of edits that can be undone; the
+     * oldest edits are forgotten
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        while (undoEntries.size() > capacity) {
+            undoEntries.removeFirst();
+        }
+        while (redoEntries.size() > capacity) {
+            redoEntries.removeLast();
+        }
+    }
+
+    /**
+     * Collects the state of the given hexagon and its neighbors before an
+     * edit. The edit can change the shared cells stored in the neighbors.
+     */
+    public Edit begin(Hexagon hexagon) {
+        Hexagon[] hexagons = new Hexagon[DIRECTIONS.length + 1];
+        hexagons[0] = hexagon;
+        for (int d = 0; d < DIRECTIONS.length; ++d) {
+            Hexagon neighbor = hexagon.getNeighbor(DIRECTIONS[d]);
+            if (neighbor != null && neighbor.isAlive())
+                hexagons[d + 1] = neighbor;
+        }
+        long[] before = new long[hexagons.length * Hexagon.EDIT_STATE_SIZE];
+        for (int i = 0; i < hexagons.length; ++i) {
+            if (hexagons[i] != null)
+                hexagons[i].getEditState(before, i * Hexagon.EDIT_STATE_SIZE);
+        }
+        return new Edit(hexagons, before);
+    }
+
+    /**
+     * Records the cells changed since the given edit was begun. Edits that
+     * did not change any cells are not recorded. Clears the redo history.
+     */
+    public void commit(Edit edit) {
+        int size = Hexagon.EDIT_STATE_SIZE;
+        long[] after = new long[size];
+        int changed = 0;
+        Hexagon[] hexagons = new Hexagon[edit.hexagons.length];
+        long[] delta = new long[edit.before.length];
+        for (int i = 0; i < edit.hexagons.length; ++i) {
+            if (edit.hexagons[i] == null)
+                continue;
+            edit.hexagons[i].getEditState(after, 0);
+            long bits = 0;
+            for (int k = 0; k < size; ++k) {
+                delta[changed * size + k] = edit.before[i * size + k] ^ after[k];
+                bits |= delta[changed * size + k];
+            }
+            if (bits != 0)
+                hexagons[changed++] = edit.hexagons[i];
+        }
+        if (changed == 0)
+            return;
+
+        Hexagon[] changedHexagons = new Hexagon[changed];
+        System.arraycopy(hexagons, 0, changedHexagons, 0, changed);
+        long[] changedDelta = new long[changed * size];
+        System.arraycopy(delta, 0, changedDelta, 0, changedDelta.length);
+        long generation = grid.getCurrentGeneration();
+        record(new Entry(generation, changedHexagons, changedDelta, 0));
+        TraceRecorder recorder = grid.getTraceRecorder();
+        if (recorder != null)
+            recorder.edit(generation, changedHexagons, changedDelta);
+    }
+
+    /**
+     * Records a rotation of the given hexagon. Clears the redo history.
+     *
+     * @param sixths the number of clockwise sixths that the hexagon was
+     * rotated; negative for counterclockwise rotation
+     */
+    public void recordRotation(Hexagon hexagon, int sixths) {
+        long generation = grid.getCurrentGeneration();
+        record(new Entry(generation, new Hexagon[] { hexagon }, null, sixths));
+        TraceRecorder recorder = grid.getTraceRecorder();
+        if (recorder != null)
+            recorder.rotation(generation, hexagon, sixths);
+    }
+
+    private synchronized void record(Entry entry) {
+        undoEntries.addLast(entry);
+        if (undoEntries.size() > capacity)
+            undoEntries.removeFirst();
+        redoEntries.clear();
+    }
+
+    public synchronized boolean canUndo() {
+        return !undoEntries.isEmpty();
+    }
+
+    public synchronized boolean canRedo() {
+        return !redoEntries.isEmpty();
+    }
+
+    /**
+     * @return the generation at which the edit that would be undone next was
+     * made, or -1 if there is nothing to undo
+     */
+    public synchronized long getUndoGeneration() {
+        return undoEntries.isEmpty() ? -1 : undoEntries.getLast().generation;
+    }
+
+    /**
+     * Undoes the latest edit in the current generation of the grid.
+     *
+     * @return true if an edit was undone; false if there was nothing to
+     * undo, or if the edited hexagons are being rotated
+     */
+    public boolean undo() {
+        return apply(undoEntries, redoEntries, true);
+    }
+
+    /**
+     * Redoes the latest undone edit in the current generation of the grid.
+     *
+     * @return true if an edit was redone; false if there was nothing to
+     * redo, or if the edited hexagons are being rotated
+     */
+    public boolean redo() {
+        return apply(redoEntries, undoEntries, false);
+    }
+
+    /**
+     * Forgets all the recorded edits.
+     */
+    public synchronized void clear() {
+        undoEntries.clear();
+        redoEntries.clear();
+    }
+
+    private boolean apply(LinkedList<Entry> from, LinkedList<Entry> to, boolean undo) {
+        // The edits lock the grid before the journal, so do the same here
+        RegionLock lock = grid.lockAll();
+        try {
+            synchronized (this) {
+                if (from.isEmpty())
+                    return false;
+                Entry entry = from.getLast();
+                for (Hexagon hexagon : entry.hexagons) {
+                    if (hexagon.isRotating())
+                        return false;
+                }
+                TraceRecorder recorder = grid.getTraceRecorder();
+                long generation = grid.getCurrentGeneration();
+                if (entry.delta != null) {
+                    for (int i = 0; i < entry.hexagons.length; ++i) {
+                        entry.hexagons[i].applyEditDelta(entry.delta, i
+                            * Hexagon.EDIT_STATE_SIZE);
+                    }
+                    if (recorder != null)
+                        recorder.edit(generation, entry.hexagons, entry.delta);
+                } else {
+                    int sixths = undo ? -entry.sixths : entry.sixths;
+                    entry.hexagons[0].rotate(sixths);
+                    if (recorder != null)
+                        recorder.rotation(generation, entry.hexagons[0], sixths);
+                }
+                from.removeLast();
+                to.addLast(entry);
+                if (log.isDebugEnabled())
+                    log.debug((undo ? "Undid" : "Redid") + " an edit of generation "
+                        + entry.generation + " in " + entry.hexagons.length + " hexagon(s)");
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
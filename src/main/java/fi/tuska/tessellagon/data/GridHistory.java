@@ -0,0 +1,194 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.List;
+
+/**
+ * Records the history of a grid into its {@link Timeline}, and moves the
+ * grid to any generation of the history.
+ *
+ * <p>
+ * A checkpoint of the whole grid is recorded every
+ * {@link Timeline#getInterval()} generations. The edits, and the rule
+ * changes, are recorded as patches of the hexagons that they changed, in
+ * the step that follows them. A patch replaces the later history, so
+ * moving the grid forward again recalculates the generations after it.
+ *
+ * <p>
+ * Everything here is guarded by the step lock of the grid.
+ *
+ * @author Tuukka Haapasalo
+ */
+final class GridHistory {
+
+    private final HexGrid grid;
+    private final GridTopology topology;
+    /** The checkpoints of the history of the grid. */
+    private final Timeline timeline = new Timeline();
+    /**
+     * Hexagons that have been modified outside of the simulation since the
+     * previous patch of the timeline was recorded.
+     */
+    private final HexagonSet patchHexagons;
+    /** Set when the rule changes, so that the next step records a patch. */
+    private boolean diverged = false;
+
+    GridHistory(HexGrid grid, GridTopology topology) {
+        this.grid = grid;
+        this.topology = topology;
+        this.patchHexagons = new HexagonSet(topology.size());
+    }
+
+    Timeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Marks the given hexagon to be included in the next patch.
+     */
+    void hexagonModified(int index) {
+        patchHexagons.add(index);
+    }
+
+    /**
+     * Makes the next step record a patch for the new rule.
+     */
+    void ruleChanged() {
+        diverged = true;
+    }
+
+    /**
+     * Forgets the modified hexagons, when the whole grid has been replaced.
+     */
+    void restored() {
+        patchHexagons.clear();
+    }
+
+    /**
+     * Schedules the hexagons modified outside of the simulation, and records
+     * them as a patch if they, or the rule, have changed.
+     */
+    void recordEdits() {
+        if (grid.scheduleModifiedHexagons() || diverged)
+            recordPatch();
+    }
+
+    /**
+     * Records a checkpoint of the current generation if one is due.
+     */
+    void recordCheckpointIfDue() {
+        if (timeline.isDue(grid.getCurrentGeneration()))
+            recordCheckpoint();
+    }
+
+    /**
+     * Records a checkpoint of the current generation in the timeline. The
+     * stripes are locked one at a time, so edits are only held up while
+     * their own stripes are being collected. An edit made while collecting
+     * may be split between the stripes, so the edits made meanwhile are
+     * recorded as a patch right after the checkpoint.
+     */
+    private void recordCheckpoint() {
+        CheckpointCollector collector = new CheckpointCollector(topology, topology.size());
+        int index = 0;
+        for (int s = 0; s < grid.getStripeCount(); ++s) {
+            RegionLock lock = grid.lockStripe(s);
+            try {
+                for (; index < topology.size() && grid.getStripe(index) == s; ++index) {
+                    collector.add(index, false);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        timeline.add(collector.create(grid.getCurrentGeneration(), grid.getRule(), true));
+        if (grid.scheduleModifiedHexagons())
+            recordPatch();
+    }
+
+    /**
+     * Records the current states of the hexagons modified outside of the
+     * simulation since the previous patch, and of their neighbors, and the
+     * rule, as a patch of the timeline. The neighbors are included, as an
+     * edit made while a generation was being calculated may already have
+     * changed them. The later history is dropped.
+     */
+    private void recordPatch() {
+        diverged = false;
+        if (!timeline.isEnabled()) {
+            patchHexagons.clear();
+            return;
+        }
+        HexagonSet hexagons = new HexagonSet(topology.size());
+        for (int k = 0; k < patchHexagons.size(); ++k) {
+            grid.schedule(hexagons, patchHexagons.get(k));
+        }
+        patchHexagons.clear();
+        hexagons.sort();
+        CheckpointCollector collector = new CheckpointCollector(topology, hexagons.size());
+        RegionLock lock = grid.lockHexagons(hexagons, false);
+        try {
+            for (int k = 0; k < hexagons.size(); ++k) {
+                collector.add(hexagons.get(k), true);
+            }
+        } finally {
+            lock.unlock();
+        }
+        timeline.add(collector.create(grid.getCurrentGeneration(), grid.getRule(), false));
+    }
+
+    /**
+     * Moves the grid to the given generation (see {@link HexGrid#seek(long)}).
+     * The trace recorder of the grid, if any, is detached while the history
+     * is being recalculated from a checkpoint or through patches, as the
+     * trace does not have them, and gets the resulting state instead.
+     *
+     * @throws IllegalArgumentException if the generation is before the first
+     * checkpoint of the timeline
+     */
+    void seek(long target) {
+        TraceRecorder recorder = grid.getTraceRecorder();
+        try {
+            // Pending edits replace the later history
+            recordEdits();
+            long generation = grid.getCurrentGeneration();
+            Timeline.Checkpoint checkpoint = timeline.find(target);
+            List<Timeline.Checkpoint> patches;
+            if (target < generation || (checkpoint != null
+                && checkpoint.getGeneration() > generation)) {
+                if (checkpoint == null)
+                    throw new IllegalArgumentException("Generation " + target
+                        + " is before the first checkpoint");
+                grid.setTraceRecorder(null);
+                grid.restoreCheckpoint(checkpoint);
+                patches = timeline.getPatches(checkpoint, target);
+            } else {
+                patches = timeline.getPatches(generation, target);
+            }
+            if (!patches.isEmpty())
+                grid.setTraceRecorder(null);
+
+            int p = 0;
+            boolean patched = false;
+            while (true) {
+                generation = grid.getCurrentGeneration();
+                while (p < patches.size() && patches.get(p).getGeneration() <= generation) {
+                    grid.applyPatch(patches.get(p++));
+                    patched = true;
+                }
+                if (generation >= target)
+                    break;
+                long next = p < patches.size() ? patches.get(p).getGeneration() : target;
+                grid.step((int) Math.min(next - generation, Integer.MAX_VALUE));
+                patched = false;
+            }
+            // The steps publish their results, but the patches do not
+            if (patched)
+                grid.publishSnapshot();
+        } finally {
+            // The trace does not have the patches, so record the result
+            if (grid.getTraceRecorder() != recorder)
+                grid.setTraceRecorder(recorder);
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.Random;
+
+/**
+ * Fills grids and hexagons with random cells.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class GridPopulator {
+
+    private GridPopulator() {
+        // No need to instantiate, just use the static methods
+    }
+
+    /**
+     * Sets each cell of each active hexagon of the grid alive with the given
+     * probability. Stones and spawners are not changed.
+     */
+    public static void populate(HexGrid grid, double aliveProbability, Random random) {
+        for (int y = 0; y < grid.getHeight(); ++y) {
+            for (int x = 0; x < grid.getWidth(); ++x) {
+                Hexagon hex = grid.getHexagon(x, y);
+                if (!hex.isActive())
+                    continue;
+                RegionLock lock = hex.lockNeighborhood();
+                try {
+                    addRandomCells(hex, aliveProbability, random);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets each cell of the hexagon alive with the given probability, and
+     * the rest of the cells dead. Stones and spawners are not changed.
+     */
+    public static void addRandomCells(Hexagon hexagon, double aliveProbability, Random random) {
+        for (int x = 0; x < HexagonLayout.WIDTH; ++x) {
+            for (int y = 0; y < HexagonLayout.HEIGHT; ++y) {
+                Cell cell = hexagon.getCell(x, y);
+                if (cell != null) {
+                    if (random.nextDouble() < aliveProbability)
+                        cell.setAlive();
+                    else
+                        cell.setDead();
+                }
+            }
+        }
+        hexagon.invalidate();
+    }
+
+}
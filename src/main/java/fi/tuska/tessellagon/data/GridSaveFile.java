@@ -0,0 +1,448 @@
+package fi.tuska.tessellagon.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A compact binary file for saving and restoring the state of a
+ * {@link HexGrid}: the dimensions, the missing hexagons, the orientations of
+ * the hexagons, the cells, the rule and the generation.
+ *
+ * <p>
+ * The file starts with a header, followed by a fixed-size record for each
+ * hexagon position x + y * width. A record takes {@link #RECORD_SIZE}
+ * little-endian longs: the {@link Cell.Type} of each cell is packed into two
+ * bits, by its ordinal, so that cell c is stored in bits 2 * (c % 32) and
+ * 2 * (c % 32) + 1 of long c / 32, and the flags of the hexagon are stored
+ * in the top byte of the last long. Only the cells stored in each hexagon
+ * are saved; the shared border cells are saved once, in their owners.
+ *
+ * <p>
+ * As the records have fixed positions, saves are incremental: the file is
+ * memory-mapped, and when the grid was last saved to the same file, only
+ * the records of the hexagons that the grid has marked as changed since
+ * are written, without reading the rest of the grid. Saving over any other
+ * save of a grid of the same size still only rewrites the records that
+ * differ. The header is marked incomplete while the records are being
+ * written, so a save that was interrupted is not loaded. Loading maps the
+ * file read-only and decodes the records directly from the mapping.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class GridSaveFile {
+
+    private static final Logger log = Logger.getLogger(GridSaveFile.class);
+
+    /** The magic number at the start of the file: "TessSave". */
+    private static final long MAGIC = 0x5465737353617665L;
+    private static final long VERSION = 1;
+
+    /** The size of the header, in longs. */
+    private static final int HEADER_SIZE = 8;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 1;
+    private static final int HEADER_WIDTH = 2;
+    private static final int HEADER_HEIGHT = 3;
+    /** The generation, or -1 while a save is in progress. */
+    private static final int HEADER_GENERATION = 4;
+    private static final int HEADER_RULE = 5;
+
+    /** The size of a hexagon record, in longs. */
+    static final int RECORD_SIZE = 4;
+    private static final int CELLS_PER_LONG = 32;
+    private static final int FLAGS_SHIFT = 56;
+    private static final long PRESENT = 1L << FLAGS_SHIFT;
+    private static final int ORIENTATION_SHIFT = FLAGS_SHIFT + 1;
+    private static final long ORIENTATION = 7L << ORIENTATION_SHIFT;
+    /** The bits of the cells in the last long of a record. */
+    private static final long LAST_CELLS = (1L << 2 * (Hexagon.NUMBER_OF_CELLS
+        - (RECORD_SIZE - 1) * CELLS_PER_LONG)) - 1;
+
+    private static final int RULE_SURVIVAL_SHIFT = 8;
+    private static final int BYTES_PER_LONG = 8;
+    private static final long EVEN_BITS = 0x5555555555555555L;
+
+    /** The maximum number of hexagon positions mapped at once. */
+    private static final int SEGMENT_POSITIONS = 1 << 20;
+
+    private GridSaveFile() {
+        // No need to instantiate, just use the static methods
+    }
+
+    /**
+     * Saves the state of the given grid. If the grid was last saved to the
+     * same file, and the file still holds that save, only the hexagons that
+     * changed since are written. Otherwise the whole grid is collected, and
+     * if the file holds an earlier save of a grid of the same size, only the
+     * records that differ are rewritten; if not, a new file is written next
+     * to it and then renamed over it. The existing file is never truncated,
+     * as parts of it may still be mapped, for example by an earlier load.
+     *
+     * @return the number of hexagon records written
+     * @throws IOException if the file cannot be written
+     */
+    public static int save(HexGrid grid, File file) throws IOException {
+        file = file.getAbsoluteFile();
+        SaveTracker saves = grid.getSaves();
+        saves.lock();
+        try {
+            return save(grid, saves, file, grid.getWidth(), grid.getHeight());
+        } finally {
+            saves.unlock();
+        }
+    }
+
+    private static int save(HexGrid grid, SaveTracker saves, File file, int width,
+        int height) throws IOException {
+        int positions = getPositions(width, height);
+        long started = System.currentTimeMillis();
+
+        Timeline.Checkpoint checkpoint = null;
+        File temp = null;
+        boolean saved = false;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer header = null;
+            LongBuffer headerLongs = null;
+            if (raf.length() == getFileSize(positions)) {
+                header = map(raf.getChannel(), MapMode.READ_WRITE, 0, HEADER_SIZE);
+                headerLongs = header.asLongBuffer();
+            }
+            boolean sameSize = headerLongs != null && headerLongs.get(HEADER_MAGIC) == MAGIC
+                && headerLongs.get(HEADER_VERSION) == VERSION
+                && headerLongs.get(HEADER_WIDTH) == width
+                && headerLongs.get(HEADER_HEIGHT) == height;
+            boolean incremental = sameSize
+                && saves.isSavedTo(file, headerLongs.get(HEADER_GENERATION));
+            checkpoint = saves.collect(incremental);
+            if (!sameSize) {
+                // A new file reads as zeros, so only the present hexagons
+                // need to be written
+                raf.close();
+                temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+                raf = new RandomAccessFile(temp, "rw");
+                raf.setLength(getFileSize(positions));
+                header = map(raf.getChannel(), MapMode.READ_WRITE, 0, HEADER_SIZE);
+                headerLongs = header.asLongBuffer();
+                headerLongs.put(HEADER_MAGIC, MAGIC);
+                headerLongs.put(HEADER_VERSION, VERSION);
+                headerLongs.put(HEADER_WIDTH, width);
+                headerLongs.put(HEADER_HEIGHT, height);
+            }
+            headerLongs.put(HEADER_GENERATION, -1);
+            header.force();
+
+            FileChannel channel = raf.getChannel();
+            int written = checkpoint.isComplete() ? writeRecords(grid, checkpoint, channel,
+                positions) : writeChangedRecords(grid, checkpoint, channel, positions);
+
+            headerLongs.put(HEADER_GENERATION, checkpoint.getGeneration());
+            headerLongs.put(HEADER_RULE, encodeRule(checkpoint.getRule()));
+            header.force();
+            raf.close();
+            if (temp != null)
+                replace(temp, file);
+            saved = true;
+            log.info("Saved generation " + checkpoint.getGeneration() + " to " + file + ": "
+                + written + " of " + positions + " hexagon(s) written in "
+                + (System.currentTimeMillis() - started) + " ms");
+            return written;
+        } finally {
+            raf.close();
+            if (temp != null && !saved && temp.exists() && !temp.delete())
+                log.warn("Could not delete the incomplete save " + temp);
+            if (saved) {
+                saves.completed(file, checkpoint);
+            } else if (checkpoint != null) {
+                saves.failed(checkpoint);
+            }
+        }
+    }
+
+    /**
+     * Renames the given new save over the target file. If the target cannot
+     * be replaced directly, it is deleted first.
+     *
+     * @throws IOException if the target cannot be replaced
+     */
+    private static void replace(File save, File target) throws IOException {
+        if (save.renameTo(target))
+            return;
+        if (!target.delete() && target.exists())
+            throw new IOException("Could not replace " + target);
+        if (!save.renameTo(target))
+            throw new IOException("Could not rename " + save + " to " + target);
+    }
+
+    /**
+     * Writes the records of the hexagons of the given patch, which holds the
+     * hexagons changed since the state in the file was saved.
+     */
+    private static int writeChangedRecords(HexGrid grid, Timeline.Checkpoint patch,
+        FileChannel channel, int positions) throws IOException {
+        long[] record = new long[RECORD_SIZE];
+        int width = grid.getWidth();
+        // The patch is in topology order, which is the position order
+        int segment = -1;
+        MappedByteBuffer buffer = null;
+        LongBuffer records = null;
+        for (int k = 0; k < patch.getHexagonCount(); ++k) {
+            Hexagon hexagon = grid.getTopology().getHexagon(patch.getHexagon(k));
+            int position = hexagon.getX() + hexagon.getY() * width;
+            if (position / SEGMENT_POSITIONS != segment) {
+                if (buffer != null)
+                    buffer.force();
+                segment = position / SEGMENT_POSITIONS;
+                int first = segment * SEGMENT_POSITIONS;
+                buffer = map(channel, MapMode.READ_WRITE, getRecordOffset(first), Math.min(
+                    SEGMENT_POSITIONS, positions - first) * RECORD_SIZE);
+                records = buffer.asLongBuffer();
+            }
+            patch.getRecord(k, record);
+            records.position((position % SEGMENT_POSITIONS) * RECORD_SIZE);
+            records.put(record);
+        }
+        if (buffer != null)
+            buffer.force();
+        return patch.getHexagonCount();
+    }
+
+    /**
+     * Writes the records that differ from the ones in the file.
+     */
+    private static int writeRecords(HexGrid grid, Timeline.Checkpoint checkpoint,
+        FileChannel channel, int positions) throws IOException {
+        int stateSize = Hexagon.EDIT_STATE_SIZE;
+        long[] empty = new long[stateSize];
+        long[] record = new long[RECORD_SIZE];
+        int width = grid.getWidth();
+        int written = 0;
+        // The checkpoint is in topology order, which is the position order
+        int k = 0;
+        for (int first = 0; first < positions; first += SEGMENT_POSITIONS) {
+            int count = Math.min(SEGMENT_POSITIONS, positions - first);
+            MappedByteBuffer buffer = map(channel, MapMode.READ_WRITE, getRecordOffset(first),
+                count * RECORD_SIZE);
+            LongBuffer records = buffer.asLongBuffer();
+            for (int p = 0; p < count; ++p) {
+                int position = first + p;
+                Hexagon hexagon = grid.getHexagon(position % width, position / width);
+                if (!hexagon.isAlive()) {
+                    // Missing hexagon
+                    for (int r = 0; r < RECORD_SIZE; ++r) {
+                        record[r] = 0;
+                    }
+                } else if (k < checkpoint.getHexagonCount()
+                    && checkpoint.getHexagon(k) == hexagon.getIndex()) {
+                    // The checkpoint holds the records packed already
+                    checkpoint.getRecord(k, record);
+                    ++k;
+                } else {
+                    encode(empty, 0, 0, record);
+                }
+
+                boolean changed = false;
+                for (int r = 0; r < RECORD_SIZE; ++r) {
+                    changed |= records.get(p * RECORD_SIZE + r) != record[r];
+                }
+                if (changed) {
+                    records.position(p * RECORD_SIZE);
+                    records.put(record);
+                    ++written;
+                }
+            }
+            buffer.force();
+        }
+        return written;
+    }
+
+    /**
+     * Loads a saved grid.
+     *
+     * @throws IOException if the file cannot be read, or is not a complete
+     * save file
+     */
+    public static HexGrid load(File file) throws IOException {
+        long started = System.currentTimeMillis();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (raf.length() < HEADER_SIZE * BYTES_PER_LONG)
+                throw new IOException("Not a grid save file: " + file);
+            LongBuffer header = map(channel, MapMode.READ_ONLY, 0, HEADER_SIZE).asLongBuffer();
+            if (header.get(HEADER_MAGIC) != MAGIC)
+                throw new IOException("Not a grid save file: " + file);
+            if (header.get(HEADER_VERSION) != VERSION)
+                throw new IOException("Unsupported grid save file version "
+                    + header.get(HEADER_VERSION) + " in " + file);
+            long width = header.get(HEADER_WIDTH);
+            long height = header.get(HEADER_HEIGHT);
+            if (width < 1 || height < 1 || width * height * RECORD_SIZE > Integer.MAX_VALUE)
+                throw new IOException("Invalid grid size " + width + "x" + height + " in "
+                    + file);
+            int positions = (int) (width * height);
+            if (raf.length() != getFileSize(positions))
+                throw new IOException("Grid save file " + file + " is truncated");
+            long generation = header.get(HEADER_GENERATION);
+            if (generation < 0)
+                throw new IOException("Grid save file " + file + " is incomplete");
+            LifeRule rule = decodeRule(header.get(HEADER_RULE));
+
+            LongBuffer[] segments = new LongBuffer[(positions + SEGMENT_POSITIONS - 1)
+                / SEGMENT_POSITIONS];
+            for (int i = 0; i < segments.length; ++i) {
+                int first = i * SEGMENT_POSITIONS;
+                segments[i] = map(channel, MapMode.READ_ONLY, getRecordOffset(first),
+                    Math.min(SEGMENT_POSITIONS, positions - first) * RECORD_SIZE).asLongBuffer();
+            }
+
+            // Create the hexagons that are present
+            Hexagon[][] hexagons = new Hexagon[(int) width][(int) height];
+            int count = 0;
+            for (int position = 0; position < positions; ++position) {
+                LongBuffer records = segments[position / SEGMENT_POSITIONS];
+                int flags = (position % SEGMENT_POSITIONS + 1) * RECORD_SIZE - 1;
+                if ((records.get(flags) & PRESENT) == 0)
+                    continue;
+                int x = (int) (position % width);
+                int y = (int) (position / width);
+                if (x == width - 1 && y % 2 == 0)
+                    throw new IOException("Invalid hexagon at " + x + "," + y + " in " + file);
+                hexagons[x][y] = new Hexagon(x, y, true);
+                ++count;
+            }
+            HexGrid grid = new HexGrid((int) width, (int) height, hexagons);
+
+            // Copy the records; the topology order is the position order
+            int[] indices = new int[count];
+            long[] records = new long[count * RECORD_SIZE];
+            int k = 0;
+            for (int position = 0; position < positions; ++position) {
+                Hexagon hexagon = hexagons[(int) (position % width)][(int) (position / width)];
+                if (hexagon == null)
+                    continue;
+                LongBuffer segment = segments[position / SEGMENT_POSITIONS];
+                segment.position((position % SEGMENT_POSITIONS) * RECORD_SIZE);
+                segment.get(records, k * RECORD_SIZE, RECORD_SIZE);
+                indices[k] = hexagon.getIndex();
+                ++k;
+            }
+            grid.restore(new Timeline.Checkpoint(generation, rule, indices, records, true));
+            log.info("Loaded generation " + generation + " of " + width + "x" + height
+                + " hexagons from " + file + " in " + (System.currentTimeMillis() - started)
+                + " ms");
+            return grid;
+        } finally {
+            // The mappings stay valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Packs a state collected with {@link Hexagon#getEditState(long[], int)}
+     * into a record of a present hexagon.
+     */
+    static void encode(long[] state, int offset, int orientation, long[] record) {
+        int words = HexagonLayout.WORDS;
+        for (int w = 0; w < words; ++w) {
+            long cells = state[offset + w];
+            long stones = state[offset + words + w];
+            long spawners = state[offset + 2 * words + w];
+            // The ordinals of the types: Dead 00, Alive 01, Spawner 10, Stone 11
+            long low = (cells & ~spawners) | stones;
+            long high = spawners | stones;
+            record[2 * w] = spread(low) | spread(high) << 1;
+            record[2 * w + 1] = spread(low >>> CELLS_PER_LONG)
+                | spread(high >>> CELLS_PER_LONG) << 1;
+        }
+        record[RECORD_SIZE - 1] |= PRESENT | (long) orientation << ORIENTATION_SHIFT;
+    }
+
+    /**
+     * Unpacks a record into a state for
+     * {@link Hexagon#setEditState(long[], int, int)}.
+     *
+     * @return the orientation of the hexagon
+     */
+    static int decode(long[] record, long[] state, int offset) {
+        int words = HexagonLayout.WORDS;
+        for (int w = 0; w < words; ++w) {
+            long first = record[2 * w];
+            long second = record[2 * w + 1];
+            if (2 * w + 1 == RECORD_SIZE - 1)
+                second &= LAST_CELLS;
+            long low = compact(first) | compact(second) << CELLS_PER_LONG;
+            long high = compact(first >>> 1) | compact(second >>> 1) << CELLS_PER_LONG;
+            long stones = low & high;
+            long spawners = high & ~low;
+            state[offset + w] = (low & ~high) | spawners;
+            state[offset + words + w] = stones;
+            state[offset + 2 * words + w] = spawners;
+        }
+        return (int) ((record[RECORD_SIZE - 1] & ORIENTATION) >>> ORIENTATION_SHIFT);
+    }
+
+    /**
+     * Spreads the low 32 bits of the given value to the even bits.
+     */
+    private static long spread(long bits) {
+        bits &= 0xFFFFFFFFL;
+        bits = (bits | bits << 16) & 0x0000FFFF0000FFFFL;
+        bits = (bits | bits << 8) & 0x00FF00FF00FF00FFL;
+        bits = (bits | bits << 4) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | bits << 2) & 0x3333333333333333L;
+        return (bits | bits << 1) & EVEN_BITS;
+    }
+
+    /**
+     * Collects the even bits of the given value to the low 32 bits; the
+     * inverse of {@link #spread(long)}.
+     */
+    private static long compact(long bits) {
+        bits &= EVEN_BITS;
+        bits = (bits | bits >>> 1) & 0x3333333333333333L;
+        bits = (bits | bits >>> 2) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | bits >>> 4) & 0x00FF00FF00FF00FFL;
+        bits = (bits | bits >>> 8) & 0x0000FFFF0000FFFFL;
+        return (bits | bits >>> 16) & 0xFFFFFFFFL;
+    }
+
+    private static long encodeRule(LifeRule rule) {
+        return rule.getBirthMask() | (long) rule.getSurvivalMask() << RULE_SURVIVAL_SHIFT;
+    }
+
+    private static LifeRule decodeRule(long bits) {
+        int mask = (1 << RULE_SURVIVAL_SHIFT) - 1;
+        return LifeRule.fromMasks((int) bits & mask, (int) (bits >>> RULE_SURVIVAL_SHIFT) & mask);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, MapMode mode, long offset,
+        int longs) throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, offset, (long) longs * BYTES_PER_LONG);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static int getPositions(int width, int height) {
+        if (width < 1 || height < 1 || (long) width * height * RECORD_SIZE > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid grid size: " + width + "x" + height);
+        return width * height;
+    }
+
+    private static long getRecordOffset(int position) {
+        return (HEADER_SIZE + (long) position * RECORD_SIZE) * BYTES_PER_LONG;
+    }
+
+    private static long getFileSize(int positions) {
+        return getRecordOffset(positions);
+    }
+
+}
@@ -0,0 +1,69 @@
+package fi.tuska.tessellagon.data;
+
+/**
+ * An immutable snapshot of a whole grid after a completed generation. The
+ * grid publishes a new snapshot after each step, so that readers (such as
+ * statistics) see a consistent generation without locking the grid.
+ *
+ * <p>
+ * The snapshot shares the immutable hexagon snapshots with the hexagons, so
+ * publishing it only costs a single array of references.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class GridSnapshot {
+
+    private final long generation;
+    private final int width;
+    private final int height;
+    /** Hexagon snapshots indexed by x + y * width; null for missing hexagons. */
+    private final HexagonSnapshot[] hexagons;
+    private final long population;
+
+    GridSnapshot(long generation, int width, int height, HexagonSnapshot[] hexagons) {
+        this.generation = generation;
+        this.width = width;
+        this.height = height;
+        this.hexagons = hexagons;
+        long population = 0;
+        for (HexagonSnapshot hex : hexagons) {
+            if (hex != null)
+                population += hex.getPopulation();
+        }
+        this.population = population;
+    }
+
+    /**
+     * @return the number of generations stepped before this snapshot
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the snapshot of the given hexagon, or null if there is no
+     * hexagon at the given location
+     */
+    public HexagonSnapshot getHexagon(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return null;
+        return hexagons[x + y * width];
+    }
+
+    /**
+     * @return the total number of alive cells in the grid; each shared
+     * border cell is counted once, in the hexagon that owns it
+     */
+    public long getPopulation() {
+        return population;
+    }
+
+}
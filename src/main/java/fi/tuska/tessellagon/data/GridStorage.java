@@ -0,0 +1,277 @@
+package fi.tuska.tessellagon.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Off-heap storage for the cell state of a {@link HexGrid}. The hexagons of
+ * a grid created on a storage are views over it: the state of the hexagon
+ * at (x, y) is stored at position x + y * width, and takes
+ * {@link Hexagon#STATE_SIZE} longs. No cell state is kept on the heap, so
+ * the grid is not limited by the heap size, and the state does not add to
+ * the work of the garbage collector.
+ *
+ * <p>
+ * The storage is either plain direct memory, or a memory-mapped file that
+ * can be reopened with {@link #open(File)} after a restart. The positions
+ * are split into segments of at most {@link #SEGMENT_POSITIONS} positions,
+ * as a single buffer cannot exceed 2 GB. The mapped files are written in
+ * little-endian order, and start with a header that stores the dimensions
+ * of the grid and the number of generations stepped.
+ *
+ * <p>
+ * The mapped file is updated as the simulation runs; {@link #force()}
+ * flushes the changes to the disk. Java does not unmap the buffers
+ * explicitly, so the mappings stay alive until they are garbage collected,
+ * even after {@link #close()}.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class GridStorage {
+
+    private static final Logger log = Logger.getLogger(GridStorage.class);
+
+    /** The magic number at the start of the file: "TessGrid". */
+    private static final long MAGIC = 0x5465737347726964L;
+    private static final long VERSION = 1;
+
+    /** The size of the header, in longs. */
+    private static final int HEADER_SIZE = 8;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 1;
+    private static final int HEADER_WIDTH = 2;
+    private static final int HEADER_HEIGHT = 3;
+    private static final int HEADER_GENERATION = 4;
+
+    private static final int BYTES_PER_LONG = 8;
+
+    /** The maximum number of hexagon positions in a single buffer. */
+    public static final int SEGMENT_POSITIONS = 1 << 20;
+
+    private final int width;
+    private final int height;
+    private final LongBuffer header;
+    private final LongBuffer[] segments;
+    /** The mapped buffers, for flushing; empty for direct memory. */
+    private final MappedByteBuffer[] mapped;
+    private final RandomAccessFile file;
+
+    private GridStorage(int width, int height, LongBuffer header, LongBuffer[] segments,
+        MappedByteBuffer[] mapped, RandomAccessFile file) {
+        this.width = width;
+        this.height = height;
+        this.header = header;
+        this.segments = segments;
+        this.mapped = mapped;
+        this.file = file;
+    }
+
+    /**
+     * Allocates storage for a grid of the given size from direct memory.
+     * The amount of direct memory is limited by the -XX:MaxDirectMemorySize
+     * option of the JVM.
+     */
+    public static GridStorage allocateDirect(int width, int height) {
+        int positions = getPositions(width, height);
+        LongBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE * BYTES_PER_LONG).order(
+            ByteOrder.nativeOrder()).asLongBuffer();
+        LongBuffer[] segments = new LongBuffer[getSegmentCount(positions)];
+        for (int i = 0; i < segments.length; ++i) {
+            segments[i] = ByteBuffer.allocateDirect(getSegmentBytes(positions, i)).order(
+                ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        writeHeader(header, width, height);
+        return new GridStorage(width, height, header, segments, new MappedByteBuffer[0], null);
+    }
+
+    /**
+     * Creates a new storage file for a grid of the given size. An existing
+     * file is overwritten.
+     *
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static GridStorage create(File file, int width, int height) throws IOException {
+        int positions = getPositions(width, height);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Truncate first, so that the whole file reads as zeros
+            raf.setLength(0);
+            raf.setLength(getFileSize(positions));
+            GridStorage storage = map(raf, width, height);
+            writeHeader(storage.header, width, height);
+            log.info("Created grid storage " + file + " for " + width + "x" + height
+                + " hexagons");
+            return storage;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reopens an existing storage file.
+     *
+     * @throws IOException if the file cannot be read or is not a valid
+     * storage file
+     */
+    public static GridStorage open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < HEADER_SIZE * BYTES_PER_LONG)
+                throw new IOException("Not a grid storage file: " + file);
+            LongBuffer header = mapLongs(raf.getChannel(), 0, HEADER_SIZE * BYTES_PER_LONG,
+                null);
+            if (header.get(HEADER_MAGIC) != MAGIC)
+                throw new IOException("Not a grid storage file: " + file);
+            if (header.get(HEADER_VERSION) != VERSION)
+                throw new IOException("Unsupported grid storage version "
+                    + header.get(HEADER_VERSION) + " in " + file);
+            int width = (int) header.get(HEADER_WIDTH);
+            int height = (int) header.get(HEADER_HEIGHT);
+            if (raf.length() < getFileSize(getPositions(width, height)))
+                throw new IOException("Grid storage file " + file + " is truncated");
+            log.info("Opened grid storage " + file + " with " + width + "x" + height
+                + " hexagons at generation " + header.get(HEADER_GENERATION));
+            return map(raf, width, height);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static GridStorage map(RandomAccessFile raf, int width, int height)
+        throws IOException {
+        int positions = getPositions(width, height);
+        FileChannel channel = raf.getChannel();
+        LongBuffer[] segments = new LongBuffer[getSegmentCount(positions)];
+        MappedByteBuffer[] mapped = new MappedByteBuffer[segments.length + 1];
+        LongBuffer header = mapLongs(channel, 0, HEADER_SIZE * BYTES_PER_LONG, mapped);
+        long offset = HEADER_SIZE * BYTES_PER_LONG;
+        for (int i = 0; i < segments.length; ++i) {
+            int bytes = getSegmentBytes(positions, i);
+            segments[i] = mapLongs(channel, offset, bytes, mapped);
+            offset += bytes;
+        }
+        return new GridStorage(width, height, header, segments, mapped, raf);
+    }
+
+    /**
+     * Maps the given region of the file, and adds the mapped buffer to the
+     * first free slot of the given array, if any.
+     */
+    private static LongBuffer mapLongs(FileChannel channel, long offset, int bytes,
+        MappedByteBuffer[] mapped) throws IOException {
+        MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, offset, bytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (mapped != null) {
+            for (int i = 0; i < mapped.length; ++i) {
+                if (mapped[i] == null) {
+                    mapped[i] = buffer;
+                    break;
+                }
+            }
+        }
+        return buffer.asLongBuffer();
+    }
+
+    private static void writeHeader(LongBuffer header, int width, int height) {
+        header.put(HEADER_MAGIC, MAGIC);
+        header.put(HEADER_VERSION, VERSION);
+        header.put(HEADER_WIDTH, width);
+        header.put(HEADER_HEIGHT, height);
+        header.put(HEADER_GENERATION, 0);
+    }
+
+    private static int getPositions(int width, int height) {
+        if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid grid size: " + width + "x" + height);
+        return width * height;
+    }
+
+    private static int getSegmentCount(int positions) {
+        return (positions + SEGMENT_POSITIONS - 1) / SEGMENT_POSITIONS;
+    }
+
+    private static int getSegmentBytes(int positions, int segment) {
+        int count = Math.min(SEGMENT_POSITIONS, positions - segment * SEGMENT_POSITIONS);
+        return count * Hexagon.STATE_SIZE * BYTES_PER_LONG;
+    }
+
+    private static long getFileSize(int positions) {
+        return (HEADER_SIZE + (long) positions * Hexagon.STATE_SIZE) * BYTES_PER_LONG;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if the state is stored in a memory-mapped file
+     */
+    public boolean isMapped() {
+        return file != null;
+    }
+
+    /**
+     * @return the buffer that holds the state of the given position
+     */
+    LongBuffer getBuffer(int position) {
+        return segments[position / SEGMENT_POSITIONS];
+    }
+
+    /**
+     * @return the offset of the state of the given position in its buffer
+     */
+    int getBase(int position) {
+        return (position % SEGMENT_POSITIONS) * Hexagon.STATE_SIZE;
+    }
+
+    /**
+     * @return the number of generations stepped, as stored in the header
+     */
+    long getGeneration() {
+        return header.get(HEADER_GENERATION);
+    }
+
+    void setGeneration(long generation) {
+        header.put(HEADER_GENERATION, generation);
+    }
+
+    /**
+     * Writes the changes of a memory-mapped storage to the disk. The grid
+     * should be locked with {@link HexGrid#lockAll()} while flushing, so
+     * that the file is consistent.
+     */
+    public void force() {
+        for (MappedByteBuffer buffer : mapped) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Flushes and closes a memory-mapped storage. The grid must not be used
+     * after the storage has been closed.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        if (file != null) {
+            force();
+            file.close();
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import fi.tuska.tessellagon.data.HexGrid.Direction;
+
+/**
+ * Compiled topology of a hexagon grid. The hexagons of the grid are
+ * flattened into a single index space, and the indices of the six neighbors
+ * of each hexagon are stored in a flat int array. Neighbors that are
+ * missing from the grid or outside of it refer to the out-of-bounds hexagon,
+ * which is stored at index {@link #size()}.
+ *
+ * <p>
+ * The cell-level neighbor relations are the same for every hexagon, and
+ * they are compiled into shift plans by {@link HexagonLayout}. Together
+ * these allow the simulation to be stepped without any lookups or branching
+ * on the grid geometry.
+ *
+ * @author Tuukka Haapasalo
+ */
+final class GridTopology {
+
+    static final int DIRECTIONS = Direction.values().length;
+
+    private final Hexagon[] hexagons;
+    private final int[] neighbors;
+    private final int size;
+
+    GridTopology(HexGrid grid, Collection<Hexagon> gridHexagons, Hexagon oobHexagon) {
+        this.size = gridHexagons.size();
+        this.hexagons = new Hexagon[size + 1];
+        this.neighbors = new int[size * DIRECTIONS];
+
+        Map<Hexagon, Integer> indices = new IdentityHashMap<Hexagon, Integer>(2 * size);
+        int i = 0;
+        for (Hexagon hex : gridHexagons) {
+            hexagons[i] = hex;
+            hex.setIndex(i);
+            indices.put(hex, i);
+            ++i;
+        }
+        hexagons[size] = oobHexagon;
+        oobHexagon.setIndex(size);
+        indices.put(oobHexagon, size);
+
+        for (i = 0; i < size; ++i) {
+            Hexagon hex = hexagons[i];
+            for (Direction dir : Direction.values()) {
+                Hexagon neighbor = grid.getNeighbor(hex.getX(), hex.getY(), dir);
+                Integer index = indices.get(neighbor);
+                assert index != null;
+                neighbors[i * DIRECTIONS + dir.ordinal()] = index;
+            }
+        }
+    }
+
+    /**
+     * @return the number of hexagons in the grid, excluding the
+     * out-of-bounds hexagon
+     */
+    int size() {
+        return size;
+    }
+
+    Hexagon getHexagon(int index) {
+        return hexagons[index];
+    }
+
+    int getNeighbor(int index, int direction) {
+        return neighbors[index * DIRECTIONS + direction];
+    }
+
+    /**
+     * Collects the six neighbors of the given hexagon into the given array,
+     * in the order of the direction ordinals.
+     */
+    void getNeighbors(int index, Hexagon[] result) {
+        int base = index * DIRECTIONS;
+        for (int d = 0; d < DIRECTIONS; ++d) {
+            result[d] = hexagons[neighbors[base + d]];
+        }
+    }
+
+}
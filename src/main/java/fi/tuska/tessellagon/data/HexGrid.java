@@ -1,10 +1,18 @@
 package fi.tuska.tessellagon.data;
 
-import java.awt.Point;
-import java.util.Comparator;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
 
 import fi.tuska.util.Bug;
 
@@ -33,41 +41,175 @@ import fi.tuska.util.Bug;
  *        \_____/   \_____/   \_____/
  * </pre>
  * 
+ * <p>
+ * Locking: the hexagons are split into lock stripes of contiguous hexagon
+ * indices. Edits lock the stripes of the neighborhood of the edited hexagon
+ * (see {@link #lockNeighborhood(Hexagon)}), and each generation locks the
+ * stripes of the hexagons that it calculates and reads. Edits in different
+ * parts of the grid can therefore proceed concurrently with each other and
+ * with the simulation of unaffected regions. The stripes are always
+ * acquired in ascending order. The scheduling state of the simulation is
+ * guarded by a separate step lock, which is acquired before any stripes.
+ * 
  * @author Tuukka Haapasalo
  */
-public class HexGrid implements SimulatorStepListener {
+public class HexGrid extends HexagonContainer implements BatchStepListener {
+
+    /** The maximum number of lock stripes per grid. */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The number of tasks per worker thread that the hexagons are split into
+     * when stepping in parallel. Using several tasks per thread evens out
+     * the load when some ranges contain more inactive hexagons than others.
+     */
+    private static final int TASKS_PER_THREAD = 4;
 
-    public static final Object HEX_LOCK = new Object();
+    private static final Logger log = Logger.getLogger(HexGrid.class);
 
     public enum Direction {
         North, NorthEast, SouthEast, South, SouthWest, NorthWest
     };
 
-    private final int height;
-    private final int width;
-    private final Map<Point, Hexagon> grid;
-    private final Hexagon oobHexagon;
-    private static final Comparator<Point> pointComparator = new Comparator<Point>() {
+    /**
+     * How the next generation of the active hexagons is calculated. The
+     * results are identical in all modes.
+     */
+    public enum StepMode {
+        /** One hexagon at a time. */
+        Scalar,
+        /**
+         * In batches of hexagons, with loops that the JIT compiler can
+         * vectorize; see {@link BatchStepper}.
+         */
+        Batched
+    };
+
+    /** The batch steppers of the stepping threads. */
+    private static final ThreadLocal<BatchStepper> batchSteppers = new ThreadLocal<BatchStepper>() {
         @Override
-        public int compare(Point o1, Point o2) {
-            if (o1.x < o2.x)
-                return -10;
-            if (o1.x > o2.x)
-                return 10;
-            if (o1.y < o2.y)
-                return -1;
-            if (o1.y > o2.y)
-                return 1;
-            return 0;
+        protected BatchStepper initialValue() {
+            return new BatchStepper();
         }
     };
 
+    /** The scratch space of the stepping threads in the scalar step mode. */
+    private static final ThreadLocal<Hexagon.StepScratch> stepScratches =
+        new ThreadLocal<Hexagon.StepScratch>() {
+            @Override
+            protected Hexagon.StepScratch initialValue() {
+                return new Hexagon.StepScratch();
+            }
+        };
+
+    private final int height;
+    private final int width;
+    /** The hexagons of the grid, indexed by x + y * width. */
+    private final Hexagon[] grid;
+    private final Hexagon oobHexagon;
+    private final GridTopology topology;
+    /** The off-heap storage of the cell state, or null for heap storage. */
+    private final GridStorage storage;
+
+    /** Hexagons to be stepped in the next generation. */
+    private HexagonSet activeHexagons;
+    /** Scratch set for collecting the hexagons of the following generation. */
+    private HexagonSet nextActiveHexagons;
+    /** Hexagons that have been modified outside of the simulation. */
+    private final HexagonSet modifiedHexagons;
+    /**
+     * Hexagons whose rotation has not yet been normalized (see
+     * {@link Hexagon#rotate(int)}).
+     */
+    private final HexagonSet rotatedHexagons;
+    /** Whether the hexagon changed in the current step, by topology index. */
+    private final boolean[] changed;
+    /** Detects when the simulation has settled into a cycle. */
+    private final CycleDetector cycles;
+    /** The hexagons that change during the detected cycle, if any. */
+    private HexagonSet cycleHexagons;
+    private final List<CycleListener> cycleListeners = new CopyOnWriteArrayList<CycleListener>();
+    /** The undo/redo journal of the edits made by the user. */
+    private final EditJournal journal = new EditJournal(this);
+    /** Records the history of the grid into its timeline. */
+    private final GridHistory history;
+    /** Tracks the hexagons changed since the previous save. */
+    private final SaveTracker saves;
+    /** Records the session into a trace, if set. */
+    private volatile TraceRecorder recorder;
+
+    /** Guards the scheduling state and the generation counter. */
+    private final ReentrantLock stepLock = new ReentrantLock();
+    /** Lock stripes over contiguous ranges of hexagon indices. */
+    private final ReentrantLock[] stripes;
+
+    private volatile LifeRule rule = LifeRule.DEFAULT;
+
+    /**
+     * The number of generations stepped so far. Advanced while holding the
+     * locks of the calculated hexagons, so that edits see the generation
+     * of the cells that they edit.
+     */
+    private volatile long generation = 0;
+    /** The latest completed generation. */
+    private volatile GridSnapshot snapshot;
+
+    private int parallelism = 1;
+    private ExecutorService executor;
+    private volatile StepMode stepMode = StepMode.Scalar;
+
     public HexGrid(int width, int height) {
+        this(width, height, (GridStorage) null);
+    }
+
+    /**
+     * Creates a grid whose cell state is kept in the given off-heap storage.
+     * If the storage was reopened from a file, the grid continues from the
+     * stored state and generation.
+     */
+    public HexGrid(GridStorage storage) {
+        this(storage.getWidth(), storage.getHeight(), storage);
+    }
+
+    private HexGrid(int width, int height, GridStorage storage) {
+        this(width, height, storage, null);
+    }
+
+    /**
+     * Creates a grid with hexagons at the given positions x + y * width.
+     * The other positions are left missing.
+     */
+    HexGrid(int width, int height, BitSet present) {
+        this(width, height, null, present);
+    }
+
+    private HexGrid(int width, int height, GridStorage storage, BitSet present) {
         this.width = width;
         this.height = height;
-        this.grid = new TreeMap<Point, Hexagon>(pointComparator);
+        this.storage = storage;
+        if (storage != null)
+            this.generation = storage.getGeneration();
+        this.grid = new Hexagon[width * height];
         this.oobHexagon = new Hexagon(this, -1, -1, false);
-        createHexagons(null);
+        createHexagons(null, present);
+        this.topology = new GridTopology(this, getHexagons(), oobHexagon);
+        this.activeHexagons = new HexagonSet(topology.size());
+        this.nextActiveHexagons = new HexagonSet(topology.size());
+        this.modifiedHexagons = new HexagonSet(topology.size());
+        this.rotatedHexagons = new HexagonSet(topology.size());
+        this.changed = new boolean[topology.size()];
+        this.cycles = new CycleDetector(topology.size());
+        cycles.reset(generation);
+        this.history = new GridHistory(this, topology);
+        this.saves = new SaveTracker(this, topology);
+        this.stripes = createStripes(topology.size());
+        for (int i = 0; i < topology.size(); ++i) {
+            activeHexagons.add(i);
+            // A reopened storage may hold rotations that were not normalized
+            topology.getHexagon(i).normalizeRotation();
+        }
+        assignBorderOwners();
+        publishSnapshot();
     }
 
     public HexGrid(int width, int height, Hexagon[][] hexagons) {
@@ -76,12 +218,56 @@ public class HexGrid implements SimulatorStepListener {
         assert hexagons.length == width;
         assert hexagons[0].length == height;
 
-        this.grid = new TreeMap<Point, Hexagon>(pointComparator);
+        this.storage = null;
+        this.grid = new Hexagon[width * height];
         this.oobHexagon = new Hexagon(this, -1, -1, false);
-        createHexagons(hexagons);
+        createHexagons(hexagons, null);
+        this.topology = new GridTopology(this, getHexagons(), oobHexagon);
+        this.activeHexagons = new HexagonSet(topology.size());
+        this.nextActiveHexagons = new HexagonSet(topology.size());
+        this.modifiedHexagons = new HexagonSet(topology.size());
+        this.rotatedHexagons = new HexagonSet(topology.size());
+        this.changed = new boolean[topology.size()];
+        this.cycles = new CycleDetector(topology.size());
+        cycles.reset(generation);
+        this.history = new GridHistory(this, topology);
+        this.saves = new SaveTracker(this, topology);
+        this.stripes = createStripes(topology.size());
+        for (int i = 0; i < topology.size(); ++i) {
+            activeHexagons.add(i);
+            topology.getHexagon(i).normalizeRotation();
+        }
+        assignBorderOwners();
+        publishSnapshot();
+    }
+
+    /**
+     * Assigns the owners of the shared border cells. The borders that face
+     * a missing or dead hexagon are owned by the hexagon itself.
+     */
+    private void assignBorderOwners() {
+        for (int i = 0; i < topology.size(); ++i) {
+            Hexagon hex = topology.getHexagon(i);
+            for (int d = 0; d < GridTopology.DIRECTIONS; ++d) {
+                if (HexagonLayout.ownsBorder(d))
+                    continue;
+                int neighbor = topology.getNeighbor(i, d);
+                if (neighbor < topology.size() && topology.getHexagon(neighbor).isAlive()) {
+                    hex.setBorderOwner(d, topology.getHexagon(neighbor));
+                }
+            }
+        }
     }
 
-    private void createHexagons(Hexagon[][] hexagons) {
+    private static ReentrantLock[] createStripes(int size) {
+        ReentrantLock[] stripes = new ReentrantLock[Math.max(1, Math.min(size, LOCK_STRIPES))];
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i] = new ReentrantLock();
+        }
+        return stripes;
+    }
+
+    private void createHexagons(Hexagon[][] hexagons, BitSet present) {
         for (int y = 0; y < height; ++y) {
             int maxX = (y % 2 == 1) ? width : width - 1;
             for (int x = 0; x < maxX; ++x) {
@@ -93,17 +279,35 @@ public class HexGrid implements SimulatorStepListener {
                         assert hex.getX() == x;
                         assert hex.getY() == y;
                     }
+                } else if (present != null && !present.get(x + y * width)) {
+                    hex = null;
+                } else if (storage != null) {
+                    int position = x + y * width;
+                    hex = new Hexagon(this, x, y, true, storage.getBuffer(position), storage
+                        .getBase(position));
                 } else {
                     hex = new Hexagon(this, x, y, true);
                 }
-                // Missing hexagons are inserted as left missing from the grid
-                if (hex != null) {
-                    grid.put(new Point(x, y), hex);
-                }
+                // Missing hexagons are left as nulls in the grid
+                grid[x + y * width] = hex;
             }
         }
     }
 
+    /**
+     * @return the hexagons of the grid in memory order, excluding the
+     * missing hexagons
+     */
+    private List<Hexagon> getHexagons() {
+        List<Hexagon> hexagons = new ArrayList<Hexagon>(grid.length);
+        for (Hexagon hex : grid) {
+            if (hex != null)
+                hexagons.add(hex);
+        }
+        return hexagons;
+    }
+
+    @Override
     public Hexagon getNeighbor(int x, int y, Direction direction) {
         switch (direction) {
         case North:
@@ -124,11 +328,15 @@ public class HexGrid implements SimulatorStepListener {
     }
 
     public Hexagon getHexagon(int x, int y) {
-        Hexagon hex = grid.get(new Point(x, y));
-        if (hex == null)
+        if (x < 0 || y < 0 || x >= width || y >= height)
             return oobHexagon;
 
-        return hex;
+        Hexagon hex = grid[x + y * width];
+        return hex != null ? hex : oobHexagon;
+    }
+
+    GridTopology getTopology() {
+        return topology;
     }
 
     public int getHeight() {
@@ -139,24 +347,941 @@ public class HexGrid implements SimulatorStepListener {
         return width;
     }
 
+    /**
+     * @return the number of hexagons that will be calculated in the next
+     * generation
+     */
+    public int getActiveHexagonCount() {
+        stepLock.lock();
+        try {
+            return activeHexagons.size();
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    /**
+     * Locks the given hexagon, its six neighbors and their neighbors, so
+     * that the hexagon can be edited or rotated. An edit writes the shared
+     * cells to the neighbors that own them, and republishes the snapshots of
+     * the neighbors, which read the borders of their own neighbors; all of
+     * those are covered. The simulation of the locked region waits until the
+     * lock is released; other regions are not affected.
+     *
+     * @param hexagon a hexagon of this grid
+     * @return the acquired lock, which must be released by the caller
+     */
+    @Override
+    public RegionLock lockNeighborhood(Hexagon hexagon) {
+        boolean[] selected = new boolean[stripes.length];
+        int index = hexagon.getIndex();
+        if (hexagon.getGrid() == this && index >= 0 && index < topology.size()) {
+            selectStripes(index, true, selected);
+            for (int d = 0; d < GridTopology.DIRECTIONS; ++d) {
+                int neighbor = topology.getNeighbor(index, d);
+                if (neighbor < topology.size())
+                    selectStripes(neighbor, true, selected);
+            }
+        }
+        return new RegionLock(stripes, selected);
+    }
+
+    /**
+     * Locks the whole grid.
+     *
+     * @return the acquired lock, which must be released by the caller
+     */
+    public RegionLock lockAll() {
+        boolean[] selected = new boolean[stripes.length];
+        for (int i = 0; i < selected.length; ++i) {
+            selected[i] = true;
+        }
+        return new RegionLock(stripes, selected);
+    }
+
+    /**
+     * Locks the given hexagons, and optionally their neighbors.
+     */
+    RegionLock lockHexagons(HexagonSet hexagons, boolean neighbors) {
+        boolean[] selected = new boolean[stripes.length];
+        for (int k = 0; k < hexagons.size(); ++k) {
+            selectStripes(hexagons.get(k), neighbors, selected);
+        }
+        return new RegionLock(stripes, selected);
+    }
+
+    private void selectStripes(int index, boolean neighbors, boolean[] selected) {
+        selected[getStripe(index)] = true;
+        if (neighbors) {
+            for (int d = 0; d < GridTopology.DIRECTIONS; ++d) {
+                int neighbor = topology.getNeighbor(index, d);
+                if (neighbor < topology.size()) {
+                    selected[getStripe(neighbor)] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the lock stripe of the given hexagon; the stripes cover
+     * ascending ranges of the indices
+     */
+    int getStripe(int index) {
+        return (int) ((long) index * stripes.length / topology.size());
+    }
+
+    int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Locks the given stripe alone.
+     */
+    RegionLock lockStripe(int stripe) {
+        boolean[] selected = new boolean[stripes.length];
+        selected[stripe] = true;
+        return new RegionLock(stripes, selected);
+    }
+
+    /**
+     * Acquires the step lock, which guards the scheduling state of the
+     * simulation. Used by simulation engines that advance the grid
+     * outside of {@link #step(int)}.
+     */
+    void lockStepping() {
+        stepLock.lock();
+    }
+
+    void unlockStepping() {
+        stepLock.unlock();
+    }
+
+    GridHistory getHistory() {
+        return history;
+    }
+
+    SaveTracker getSaves() {
+        return saves;
+    }
+
+    /**
+     * Returns the latest completed generation. Does not lock, so it can be
+     * called from any thread, also while the simulation is being stepped.
+     * Modifications made to the hexagons after the generation are not
+     * included; they are visible in {@link Hexagon#getSnapshot()}.
+     */
+    public GridSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the number of generations stepped so far
+     */
+    public long getGeneration() {
+        return snapshot.getGeneration();
+    }
+
+    /**
+     * @return the generation of the current cells of the hexagons, which is
+     * ahead of the published snapshot while the simulation is being stepped
+     */
+    long getCurrentGeneration() {
+        return generation;
+    }
+
+    /**
+     * Publishes the current state of the hexagons as the latest snapshot.
+     * Must be called while holding the step lock.
+     */
+    void publishSnapshot() {
+        HexagonSnapshot[] hexagons = new HexagonSnapshot[grid.length];
+        for (int i = 0; i < grid.length; ++i) {
+            if (grid[i] != null)
+                hexagons[i] = grid[i].getSnapshot();
+        }
+        snapshot = new GridSnapshot(generation, width, height, hexagons);
+        if (storage != null)
+            storage.setGeneration(generation);
+    }
+
+    /**
+     * Records generations that were calculated outside of the grid, and
+     * publishes the result. Must be called while holding the step lock.
+     */
+    void generationsCompleted(long generations) {
+        generation += generations;
+        breakCycle();
+        TraceRecorder recorder = this.recorder;
+        if (recorder != null)
+            recorder.state(createCheckpoint());
+        publishSnapshot();
+    }
+
+    /**
+     * Called when the cells or the state of a hexagon are modified outside
+     * of the simulation. The hexagon and its neighbors are then calculated
+     * in the next generation, even if they have been quiescent.
+     */
+    @Override
+    void hexagonModified(Hexagon hexagon) {
+        int index = hexagon.getIndex();
+        if (index < 0 || index >= topology.size())
+            return;
+        synchronized (modifiedHexagons) {
+            modifiedHexagons.add(index);
+        }
+    }
+
+    @Override
+    void hexagonRotated(Hexagon hexagon) {
+        int index = hexagon.getIndex();
+        if (index < 0 || index >= topology.size())
+            return;
+        synchronized (rotatedHexagons) {
+            rotatedHexagons.add(index);
+        }
+    }
+
+    /**
+     * Normalizes the rotations of the rotated hexagons, each under the lock
+     * of its own neighborhood. Must be called holding the step lock.
+     */
+    void normalizeRotations() {
+        int[] rotated;
+        synchronized (rotatedHexagons) {
+            if (rotatedHexagons.isEmpty())
+                return;
+            rotated = new int[rotatedHexagons.size()];
+            for (int k = 0; k < rotated.length; ++k) {
+                rotated[k] = rotatedHexagons.get(k);
+            }
+            rotatedHexagons.clear();
+        }
+        for (int index : rotated) {
+            Hexagon hexagon = topology.getHexagon(index);
+            RegionLock lock = lockNeighborhood(hexagon);
+            try {
+                hexagon.normalizeRotation();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Locks the given hexagons and their neighbors for calculating them,
+     * after normalizing the rotations. A hexagon that is rotated before the
+     * lock is acquired is normalized on the next round.
+     */
+    private RegionLock lockForStepping(HexagonSet hexagons) {
+        while (true) {
+            normalizeRotations();
+            RegionLock lock = lockHexagons(hexagons, true);
+            synchronized (rotatedHexagons) {
+                if (rotatedHexagons.isEmpty())
+                    return lock;
+            }
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LifeRule getRule() {
+        return rule;
+    }
+
+    /**
+     * Sets the birth/survival rule of the simulation. All hexagons are
+     * recalculated in the next generation, as quiescent hexagons may change
+     * under the new rule.
+     */
+    public void setRule(LifeRule rule) {
+        stepLock.lock();
+        try {
+            this.rule = rule;
+            history.ruleChanged();
+            TraceRecorder recorder = this.recorder;
+            if (recorder != null)
+                recorder.rule(generation, rule);
+            breakCycle();
+            for (int i = 0; i < topology.size(); ++i) {
+                activeHexagons.add(i);
+            }
+            activeHexagons.sort();
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads used for calculating the next generation.
+     * With a parallelism of one, the simulation is stepped sequentially in
+     * the calling thread. The results are identical in both modes, as each
+     * hexagon only reads the current cells of itself and its neighbors, and
+     * only writes to its own next-generation buffer.
+     *
+     * @param parallelism the number of worker threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+
+        stepLock.lock();
+        try {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            this.parallelism = parallelism;
+            if (parallelism > 1) {
+                log.info("Stepping the simulation with " + parallelism + " threads");
+                executor = Executors.newFixedThreadPool(parallelism, workerThreadFactory);
+            }
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    public StepMode getStepMode() {
+        return stepMode;
+    }
+
+    /**
+     * Selects how the next generation is calculated. Takes effect from the
+     * next generation; can be changed while the simulation is running.
+     */
+    public void setStepMode(StepMode stepMode) {
+        if (stepMode == null)
+            throw new IllegalArgumentException("Step mode must be given");
+        this.stepMode = stepMode;
+        log.info("Stepping the simulation in " + stepMode + " mode");
+    }
+
+    /**
+     * @return the undo/redo journal of the edits made to this grid
+     */
+    public EditJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return the checkpoints of the history of this grid
+     */
+    public Timeline getTimeline() {
+        return history.getTimeline();
+    }
+
+    TraceRecorder getTraceRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Starts sending the changes of the grid to the given recorder, after
+     * recording the current state, or stops recording if the recorder is
+     * null.
+     */
+    void setTraceRecorder(TraceRecorder recorder) {
+        stepLock.lock();
+        RegionLock lock = lockAll();
+        try {
+            if (recorder != null)
+                recorder.state(createCheckpoint());
+            this.recorder = recorder;
+        } finally {
+            lock.unlock();
+            stepLock.unlock();
+        }
+    }
+
+    public void addCycleListener(CycleListener listener) {
+        cycleListeners.add(listener);
+    }
+
+    public void removeCycleListener(CycleListener listener) {
+        cycleListeners.remove(listener);
+    }
+
+    private void notifyCycleListeners(long generation, int period) {
+        boolean extinct = period == 1 && snapshot.getPopulation() == 0;
+        for (CycleListener listener : cycleListeners) {
+            try {
+                if (extinct) {
+                    listener.extinct(generation);
+                } else {
+                    listener.cycleDetected(generation, period);
+                }
+            } catch (RuntimeException e) {
+                log.error("Error when notifying a cycle listener", e);
+            }
+        }
+    }
+
+    /**
+     * @return the period of the cycle that the grid has settled into: 1 for
+     * a still life, or zero if the grid is still evolving or has been
+     * modified since the cycle was detected
+     */
+    public int getCyclePeriod() {
+        stepLock.lock();
+        try {
+            return isModified() ? 0 : cycles.getPeriod();
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    /**
+     * @return the period with which the given hexagon repeats in the cycle
+     * that the grid has settled into: 1 for the hexagons that do not change,
+     * or zero if no cycle has been detected
+     */
+    public int getCyclePeriod(int x, int y) {
+        Hexagon hexagon = getHexagon(x, y);
+        stepLock.lock();
+        try {
+            return isModified() ? 0 : cycles.getHexagonPeriod(hexagon.getIndex());
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if hexagons have been modified after the latest step, so
+     * that the detected cycle, if any, is broken in the next step
+     */
+    private boolean isModified() {
+        synchronized (modifiedHexagons) {
+            return !modifiedHexagons.isEmpty();
+        }
+    }
+
+    /**
+     * Steps the simulation by one generation. Only the hexagons that changed
+     * in the previous generation, or that have been modified since, are
+     * calculated together with their neighbors. A hexagon whose neighborhood
+     * did not change cannot change either, so the quiescent hexagons are
+     * skipped entirely and no change events are fired for them.
+     */
     @Override
     public void stepSimulation() {
-        // Step the simulation!
-        synchronized (HEX_LOCK) {
-            for (Entry<Point, Hexagon> entry : grid.entrySet()) {
-                Hexagon hexagon = entry.getValue();
-                if (hexagon.isActive()) {
-                    hexagon.stepSimulation();
+        step(1);
+    }
+
+    /**
+     * Steps the simulation by the given number of generations. The change
+     * listeners of the hexagons are not notified between the generations;
+     * instead, each hexagon that changed during any of the generations is
+     * notified once at the end, and the result is published as the latest
+     * snapshot. Hexagons that view a changed shared border of a neighbor are
+     * notified as well.
+     *
+     * <p>
+     * Each generation only locks the stripes of the hexagons that it
+     * calculates and reads, and the locks are released between the
+     * generations, so that edits do not have to wait for the whole batch.
+     *
+     * <p>
+     * Once the grid has settled into a still life or a cycle (see
+     * {@link CycleDetector}), the remaining generations are skipped at once
+     * by copying the cells of the target phase of the cycle, until the grid
+     * is modified again. The cycle listeners are notified at the end of the
+     * step in which the cycle was detected.
+     *
+     * @param generations the number of generations to step
+     */
+    public void step(int generations) {
+        HexagonSet changedHexagons = new HexagonSet(topology.size());
+        int detectedPeriod = 0;
+        long detectedGeneration = 0;
+        int g = 0;
+        while (g < generations) {
+            stepLock.lock();
+            try {
+                history.recordEdits();
+                history.recordCheckpointIfDue();
+                if (cycleHexagons != null) {
+                    g += skipCycle(generations - g, changedHexagons);
+                    continue;
+                }
+                // Step the simulation!
+                RegionLock lock = lockForStepping(activeHexagons);
+                try {
+                    stepGeneration(changedHexagons);
+                    ++generation;
+                } finally {
+                    lock.unlock();
+                }
+                ++g;
+                if (cycles.generationCompleted(generation)) {
+                    startCycle();
+                    detectedPeriod = cycles.getPeriod();
+                    detectedGeneration = generation;
                 }
+            } finally {
+                stepLock.unlock();
             }
+        }
 
-            for (Entry<Point, Hexagon> entry : grid.entrySet()) {
-                Hexagon hexagon = entry.getValue();
-                if (hexagon.isActive()) {
-                    hexagon.flipCellArrays();
+        stepLock.lock();
+        try {
+            // The snapshots of the viewers read the borders of the neighbors
+            RegionLock lock = lockHexagons(changedHexagons, true);
+            try {
+                for (int k = 0; k < changedHexagons.size(); ++k) {
+                    topology.getHexagon(changedHexagons.get(k)).invalidate();
                 }
+            } finally {
+                lock.unlock();
+            }
+            publishSnapshot();
+        } finally {
+            stepLock.unlock();
+        }
+        if (detectedPeriod > 0)
+            notifyCycleListeners(detectedGeneration, detectedPeriod);
+    }
+
+    /**
+     * Calculates a single generation, without notifying the change listeners.
+     * The modified hexagons must have been scheduled, and the active
+     * hexagons and their neighbors locked, by the caller.
+     *
+     * @param changedHexagons receives the hexagons whose cells, or whose
+     * views of the shared cells of the neighbors, changed
+     */
+    private void stepGeneration(HexagonSet changedHexagons) {
+        TraceRecorder recorder = this.recorder;
+        if (executor != null) {
+            stepInParallel();
+        } else {
+            stepRange(0, activeHexagons.size());
+        }
+
+        for (int k = 0; k < activeHexagons.size(); ++k) {
+            int i = activeHexagons.get(k);
+            if (changed[i]) {
+                changed[i] = false;
+                Hexagon hexagon = topology.getHexagon(i);
+                cycles.hexagonChanged(i, hexagon.getCells(0), hexagon.getCells(1), hexagon
+                    .getNextCells(0), hexagon.getNextCells(1));
+                if (recorder != null)
+                    recorder.hexagonChanged(i, hexagon.getNextCells(0), hexagon.getNextCells(1));
+                hexagon.addChangedViewers(changedHexagons);
+                hexagon.flipCellArrays(false);
+                changedHexagons.add(i);
+                saves.hexagonChanged(i);
+                schedule(nextActiveHexagons, i);
+            }
+        }
+        if (recorder != null)
+            recorder.generationCompleted(generation + 1);
+
+        HexagonSet stepped = activeHexagons;
+        activeHexagons = nextActiveHexagons;
+        nextActiveHexagons = stepped;
+        nextActiveHexagons.clear();
+        activeHexagons.sort();
+    }
+
+    /**
+     * Schedules the hexagons modified outside of the simulation for the next
+     * generation. Must be called while holding the step lock.
+     *
+     * @return true if any hexagons had been modified
+     */
+    boolean scheduleModifiedHexagons() {
+        synchronized (modifiedHexagons) {
+            if (modifiedHexagons.isEmpty())
+                return false;
+            breakCycle();
+            for (int k = 0; k < modifiedHexagons.size(); ++k) {
+                schedule(activeHexagons, modifiedHexagons.get(k));
+                history.hexagonModified(modifiedHexagons.get(k));
+                saves.hexagonChanged(modifiedHexagons.get(k));
             }
+            modifiedHexagons.clear();
         }
+        activeHexagons.sort();
+        return true;
     }
 
+    /**
+     * Collects the current state of the whole grid at once. Only the
+     * hexagons that are not empty are stored.
+     */
+    Timeline.Checkpoint createCheckpoint() {
+        CheckpointCollector collector = new CheckpointCollector(topology, topology.size());
+        stepLock.lock();
+        RegionLock lock = lockAll();
+        try {
+            for (int i = 0; i < topology.size(); ++i) {
+                collector.add(i, false);
+            }
+            return collector.create(generation, rule, true);
+        } finally {
+            lock.unlock();
+            stepLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the grid to the given generation. The nearest checkpoint at or
+     * before the generation is restored, unless the grid is already closer
+     * to it, and the remaining generations are then calculated in batches
+     * between the patches of the timeline, without notifying the listeners
+     * of the hexagons in between. Seeking back does not drop the later
+     * checkpoints, so the grid can be moved forward again quickly, until it
+     * is modified. The undo/redo journal is kept, as its edits apply to
+     * any generation. A trace being recorded gets the state of the grid
+     * at the end of the seek.
+     *
+     * @param target the generation to move to
+     * @throws IllegalArgumentException if the generation is before the first
+     * checkpoint of the timeline
+     */
+    public void seek(long target) {
+        stepLock.lock();
+        try {
+            history.seek(target);
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the states of the hexagons of the given patch, and the rule,
+     * while recalculating the history. Unlike edits, this does not record a
+     * new patch. Must be called while holding the step lock.
+     */
+    void applyPatch(Timeline.Checkpoint patch) {
+        long[] state = new long[Hexagon.EDIT_STATE_SIZE];
+        RegionLock lock = lockAll();
+        try {
+            for (int k = 0; k < patch.getHexagonCount(); ++k) {
+                int index = patch.getHexagon(k);
+                int orientation = patch.getState(k, state, 0);
+                topology.getHexagon(index).setEditState(state, 0, orientation);
+                schedule(activeHexagons, index);
+                saves.hexagonChanged(index);
+            }
+            // The snapshots read the shared cells of the patched neighbors
+            for (int k = 0; k < patch.getHexagonCount(); ++k) {
+                Hexagon hexagon = topology.getHexagon(patch.getHexagon(k));
+                hexagon.invalidate();
+                hexagon.invalidateViewers();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!patch.getRule().equals(rule)) {
+            rule = patch.getRule();
+            for (int i = 0; i < topology.size(); ++i) {
+                activeHexagons.add(i);
+            }
+        }
+        breakCycle();
+        activeHexagons.sort();
+    }
+
+    /**
+     * Replaces the state of the grid with the given checkpoint, which need
+     * not be from the timeline of this grid. The undo/redo journal is
+     * cleared.
+     */
+    void restore(Timeline.Checkpoint checkpoint) {
+        stepLock.lock();
+        try {
+            restoreCheckpoint(checkpoint);
+            journal.clear();
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    /**
+     * Advances the grid to the given generation by replacing the cells of the
+     * given hexagons, as recorded by a {@link TraceRecorder}. Like
+     * {@link #step(int)}, the change listeners are not notified until the
+     * end of the batch (see {@link #replayCompleted(HexagonSet)}).
+     *
+     * @param hexagons the topology indices of the hexagons
+     * @param cells the cells of the hexagons, two words for each
+     * @param changedHexagons receives the hexagons whose cells, or whose
+     * views of the shared cells of the neighbors, changed
+     */
+    void replayGeneration(long target, int[] hexagons, long[] cells,
+        HexagonSet changedHexagons) {
+        stepLock.lock();
+        try {
+            RegionLock lock = lockAll();
+            try {
+                normalizeRotations();
+                TraceRecorder recorder = this.recorder;
+                for (int k = 0; k < hexagons.length; ++k) {
+                    int index = hexagons[k];
+                    Hexagon hexagon = topology.getHexagon(index);
+                    if (hexagon.setNextGeneration(cells[2 * k], cells[2 * k + 1])) {
+                        if (recorder != null)
+                            recorder.hexagonChanged(index, cells[2 * k], cells[2 * k + 1]);
+                        hexagon.addChangedViewers(changedHexagons);
+                        hexagon.flipCellArrays(false);
+                        changedHexagons.add(index);
+                        saves.hexagonChanged(index);
+                        // Keep the grid ready for stepping after the replay
+                        schedule(activeHexagons, index);
+                    }
+                }
+                if (recorder != null)
+                    recorder.generationCompleted(target);
+            } finally {
+                lock.unlock();
+            }
+            generation = target;
+            breakCycle();
+            activeHexagons.sort();
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    /**
+     * Notifies the change listeners of the hexagons changed by
+     * {@link #replayGeneration(long, int[], long[], HexagonSet)}, and
+     * publishes the result.
+     */
+    void replayCompleted(HexagonSet changedHexagons) {
+        stepLock.lock();
+        try {
+            RegionLock lock = lockAll();
+            try {
+                for (int k = 0; k < changedHexagons.size(); ++k) {
+                    topology.getHexagon(changedHexagons.get(k)).invalidate();
+                }
+            } finally {
+                lock.unlock();
+            }
+            publishSnapshot();
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the state of the grid with the given checkpoint. Must be
+     * called while holding the step lock.
+     */
+    void restoreCheckpoint(Timeline.Checkpoint checkpoint) {
+        long[] state = new long[Hexagon.EDIT_STATE_SIZE];
+        long[] empty = new long[Hexagon.EDIT_STATE_SIZE];
+        RegionLock lock = lockAll();
+        try {
+            int k = 0;
+            for (int i = 0; i < topology.size(); ++i) {
+                Hexagon hexagon = topology.getHexagon(i);
+                if (k < checkpoint.getHexagonCount() && checkpoint.getHexagon(k) == i) {
+                    int orientation = checkpoint.getState(k, state, 0);
+                    hexagon.setEditState(state, 0, orientation);
+                    ++k;
+                } else {
+                    hexagon.setEditState(empty, 0, 0);
+                }
+            }
+            for (int i = 0; i < topology.size(); ++i) {
+                topology.getHexagon(i).invalidate();
+                saves.hexagonChanged(i);
+            }
+            generation = checkpoint.getGeneration();
+            rule = checkpoint.getRule();
+            synchronized (modifiedHexagons) {
+                modifiedHexagons.clear();
+            }
+            history.restored();
+            TraceRecorder recorder = this.recorder;
+            if (recorder != null)
+                recorder.state(checkpoint);
+        } finally {
+            lock.unlock();
+        }
+
+        breakCycle();
+        for (int i = 0; i < topology.size(); ++i) {
+            activeHexagons.add(i);
+        }
+        activeHexagons.sort();
+        publishSnapshot();
+        log.info("Restored the checkpoint of generation " + generation);
+    }
+
+    /**
+     * Starts skipping the generations of the cycle that was just detected.
+     */
+    private void startCycle() {
+        cycleHexagons = new HexagonSet(topology.size());
+        for (int i = 0; i < cycles.getHexagonCount(); ++i) {
+            cycleHexagons.add(cycles.getHexagon(i));
+        }
+        log.debug("Grid settled into a cycle of period " + cycles.getPeriod() + " with "
+            + cycleHexagons.size() + " changing hexagons at generation " + generation);
+    }
+
+    /**
+     * Forgets the detected cycle, if any, and resumes calculating the
+     * hexagons that changed during the cycle. Called when the grid is
+     * modified outside of the simulation.
+     */
+    private void breakCycle() {
+        if (cycleHexagons != null) {
+            for (int k = 0; k < cycleHexagons.size(); ++k) {
+                schedule(activeHexagons, cycleHexagons.get(k));
+            }
+            cycleHexagons = null;
+        }
+        cycles.reset(generation);
+    }
+
+    /**
+     * Advances the grid along the detected cycle by the given number of
+     * generations, by copying the cells of the target phase to the hexagons
+     * that change during the cycle.
+     *
+     * @return the number of generations skipped; zero if the grid has been
+     * modified, so that the cycle must be broken first
+     */
+    private int skipCycle(int generations, HexagonSet changedHexagons) {
+        RegionLock lock = lockHexagons(cycleHexagons, true);
+        try {
+            synchronized (modifiedHexagons) {
+                if (!modifiedHexagons.isEmpty())
+                    return 0;
+            }
+            TraceRecorder recorder = this.recorder;
+            int phase = cycles.getPhase(generation + generations);
+            for (int i = 0; i < cycles.getHexagonCount(); ++i) {
+                int index = cycles.getHexagon(i);
+                Hexagon hexagon = topology.getHexagon(index);
+                if (hexagon.setNextGeneration(cycles.getCells(phase, i, 0), cycles.getCells(
+                    phase, i, 1))) {
+                    if (recorder != null)
+                        recorder.hexagonChanged(index, hexagon.getNextCells(0), hexagon
+                            .getNextCells(1));
+                    hexagon.addChangedViewers(changedHexagons);
+                    hexagon.flipCellArrays(false);
+                    changedHexagons.add(index);
+                    saves.hexagonChanged(index);
+                }
+            }
+            if (recorder != null)
+                recorder.generationCompleted(generation + generations);
+            generation += generations;
+        } finally {
+            lock.unlock();
+        }
+        return generations;
+    }
+
+    /**
+     * Adds the given hexagon and its neighbors to the given set.
+     */
+    void schedule(HexagonSet set, int index) {
+        set.add(index);
+        for (int d = 0; d < GridTopology.DIRECTIONS; ++d) {
+            int neighbor = topology.getNeighbor(index, d);
+            if (neighbor < topology.size()) {
+                set.add(neighbor);
+            }
+        }
+    }
+
+    /**
+     * Calculates the next generation for the active hexagons in the given
+     * range of positions. Safe to call concurrently for disjoint ranges.
+     */
+    private void stepRange(int from, int to) {
+        if (stepMode == StepMode.Batched) {
+            stepRangeInBatches(from, to);
+            return;
+        }
+        LifeRule rule = this.rule;
+        Hexagon.StepScratch scratch = stepScratches.get();
+        Hexagon[] neighbors = scratch.neighbors;
+        for (int k = from; k < to; ++k) {
+            int i = activeHexagons.get(k);
+            Hexagon hexagon = topology.getHexagon(i);
+            if (hexagon.isActive()) {
+                topology.getNeighbors(i, neighbors);
+                changed[i] = hexagon.stepSimulation(neighbors, rule, scratch);
+            }
+        }
+    }
+
+    /**
+     * Calculates the next generation for the active hexagons in the given
+     * range of positions, in batches. Safe to call concurrently for
+     * disjoint ranges.
+     */
+    private void stepRangeInBatches(int from, int to) {
+        LifeRule rule = this.rule;
+        BatchStepper batch = batchSteppers.get();
+        Hexagon[] neighbors = new Hexagon[GridTopology.DIRECTIONS];
+        for (int k = from; k < to; ++k) {
+            int i = activeHexagons.get(k);
+            Hexagon hexagon = topology.getHexagon(i);
+            if (hexagon.isActive()) {
+                topology.getNeighbors(i, neighbors);
+                batch.add(hexagon, i, neighbors);
+                if (batch.isFull())
+                    batch.step(rule, changed);
+            }
+        }
+        if (!batch.isEmpty())
+            batch.step(rule, changed);
+    }
+
+    /**
+     * Splits the active hexagons into contiguous ranges, and calculates the
+     * ranges in the worker threads. Returns when all the ranges are done.
+     */
+    private void stepInParallel() {
+        int size = activeHexagons.size();
+        int tasks = Math.min(size, parallelism * TASKS_PER_THREAD);
+        List<Callable<Void>> ranges = new ArrayList<Callable<Void>>(tasks);
+        for (int t = 0; t < tasks; ++t) {
+            final int from = (int) ((long) size * t / tasks);
+            final int to = (int) ((long) size * (t + 1) / tasks);
+            ranges.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    stepRange(from, to);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> result : executor.invokeAll(ranges)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stepping the simulation", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Simulation step failed", e.getCause());
+        }
+    }
+
+    private static final ThreadFactory workerThreadFactory = new ThreadFactory() {
+        private int counter = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HexGrid-worker-" + (++counter));
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
 }
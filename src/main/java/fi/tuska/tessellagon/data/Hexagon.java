@@ -1,42 +1,181 @@
 package fi.tuska.tessellagon.data;
 
 import java.awt.Point;
+import java.nio.LongBuffer;
+import java.util.Collection;
 
 import org.apache.log4j.Logger;
 
 import fi.tuska.tessellagon.data.HexGrid.Direction;
-import fi.tuska.util.Bug;
 
+/**
+ * A hexagon of cells. The cells are stored as packed bit vectors, see
+ * {@link HexagonLayout}.
+ *
+ * <p>
+ * The shared cells on the borders of the hexagon are stored only once, in
+ * the hexagon that owns them (see {@link HexagonLayout#ownsBorder(int)}).
+ * The other hexagon views the cells of the owner: reads and writes of the
+ * shared cells that are owned by a neighbor are redirected to the neighbor,
+ * and the simulation imports them from the neighbor when calculating the
+ * cells next to them.
+ *
+ * <p>
+ * An inactive hexagon is not calculated, so its cells stay as they are.
+ * The shared cells on a border between an active and an inactive hexagon
+ * stay as they are as well, whichever of the two owns them: the owner
+ * keeps the current state of the cells on the borders that face an
+ * inactive neighbor (see {@link #toggleActive()}).
+ *
+ * @author Tuukka Haapasalo
+ */
 public class Hexagon {
 
     private static final Logger log = Logger.getLogger(Hexagon.class);
 
     public static final int NUMBER_OF_CELLS = 109;
 
-    public Cell[][][] cells;
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    /** Offset of the alive cells of the two cell buffers in the state. */
+    static final int CELLS = 0;
+    /** Offset of the stone cells in the state. */
+    static final int STONES = CELLS + 2 * HexagonLayout.WORDS;
+    /** Offset of the spawner cells in the state. */
+    static final int SPAWNERS = STONES + HexagonLayout.WORDS;
+    /** Offset of the flags in the state. */
+    static final int FLAGS = SPAWNERS + HexagonLayout.WORDS;
+    /** The number of longs in the state of a hexagon. */
+    static final int STATE_SIZE = FLAGS + 1;
+    /** The number of longs in the editable state of a hexagon. */
+    static final int EDIT_STATE_SIZE = 3 * HexagonLayout.WORDS;
+
+    /** The flag that tells which of the cell buffers is the current one. */
+    private static final long CURRENT_BUFFER = 1;
+    /** The flags that hold the orientation of the hexagon, from 0 to 5. */
+    private static final int ORIENTATION_SHIFT = 1;
+    private static final long ORIENTATION = 7L << ORIENTATION_SHIFT;
+    /**
+     * The flags that hold how many sixths the cells that are not shared
+     * must still be rotated clockwise from their stored positions, from 0
+     * to 5 (see {@link #rotate(int)}).
+     */
+    private static final int PENDING_ROTATION_SHIFT = 4;
+    private static final long PENDING_ROTATION = 7L << PENDING_ROTATION_SHIFT;
+
+    /**
+     * The state of this hexagon, starting at {@link #base}: the alive cells
+     * (including spawners) of both cell buffers, the stone cells and the
+     * spawner cells as bit vectors, followed by the flags. See
+     * {@link HexagonLayout} for the cell numbering. The buffer is either a
+     * small heap buffer of this hexagon, or a part of a {@link GridStorage}.
+     */
+    private final LongBuffer state;
+    private final int base;
     private final int hexX;
     private final int hexY;
     private final boolean alive;
     private volatile boolean active = true;
     private volatile boolean rotating = false;
-    private HexGrid grid;
+    private HexagonContainer grid;
+    /** Index of this hexagon in the compiled topology of the grid. */
+    private int index = -1;
+
+    /**
+     * The neighbors that own the shared cells on each border, by direction
+     * ordinal; null for the borders that this hexagon owns.
+     */
+    private final Hexagon[] borderOwners = new Hexagon[DIRECTIONS.length];
+    /** The neighbors that view the borders owned by this hexagon. */
+    private final Hexagon[] borderViewers = new Hexagon[DIRECTIONS.length];
+    /** Mask of the cells that are stored in this hexagon. */
+    private final long[] ownedCells = { HexagonLayout.ALL_CELLS[0],
+        HexagonLayout.ALL_CELLS[1] };
+    /**
+     * Mask of the cells stored in this hexagon that are on the borders
+     * viewed by inactive neighbors, and therefore not calculated.
+     */
+    private final long[] frozenCells = new long[HexagonLayout.WORDS];
 
     private static final Cell deadCell = new Cell.DeadCell();
 
+    /**
+     * The views returned by {@link #getCell(int, int)}, by cell, created
+     * when first needed. The views only hold the cell index, so threads
+     * racing to create them may each keep their own.
+     */
+    private CellView[] cellViews;
+
+    /** Scratch space for collecting the state to publish, by thread. */
+    private static final ThreadLocal<long[][]> publishBuffers = new ThreadLocal<long[][]>() {
+        @Override
+        protected long[][] initialValue() {
+            return new long[3][HexagonLayout.WORDS];
+        }
+    };
+
+    /** Scratch space for {@link #stepSimulation()}, by thread. */
+    private static final ThreadLocal<StepScratch> stepScratch = new ThreadLocal<StepScratch>() {
+        @Override
+        protected StepScratch initialValue() {
+            return new StepScratch();
+        }
+    };
+
+    /**
+     * Scratch space for calculating the next generation of a hexagon, so
+     * that stepping does not allocate. Each thread that steps hexagons must
+     * use its own.
+     */
+    static final class StepScratch {
+        final Hexagon[] neighbors = new Hexagon[DIRECTIONS.length];
+        /** The alive cells of the sources, indexed by {@link HexagonLayout} source. */
+        final long[] srcLo = new long[HexagonLayout.SOURCES];
+        final long[] srcHi = new long[HexagonLayout.SOURCES];
+        /** The cells of the hexagon, with the shared cells imported. */
+        final long[] self = new long[HexagonLayout.WORDS];
+        final long[] stones = new long[HexagonLayout.WORDS];
+        final long[] spawners = new long[HexagonLayout.WORDS];
+        /** The neighbor vectors, two words for each direction. */
+        final long[] gathered = new long[2 * DIRECTIONS.length];
+        /** Receives the alive cells of the next generation. */
+        final long[] next = new long[HexagonLayout.WORDS];
+    }
+
     private DataChangedListener listener;
 
     private int curH;
     private int otherH;
 
+    /** The latest published state of this hexagon. */
+    private volatile HexagonSnapshot snapshot;
+
     public Hexagon(HexGrid grid, int x, int y, boolean alive) {
+        this((HexagonContainer) grid, x, y, alive);
+    }
+
+    Hexagon(HexagonContainer grid, int x, int y, boolean alive) {
+        this(grid, x, y, alive, LongBuffer.wrap(new long[STATE_SIZE]), 0);
+    }
+
+    /**
+     * Creates a hexagon whose state is stored in the given buffer. Any
+     * state already in the buffer is kept, so that stored grids can be
+     * reopened.
+     *
+     * @param state the buffer that holds the state
+     * @param base the offset of the state of this hexagon in the buffer
+     */
+    Hexagon(HexagonContainer grid, int x, int y, boolean alive, LongBuffer state, int base) {
         this.grid = grid;
-        this.cells = new Cell[2][7][21];
+        this.state = state;
+        this.base = base;
         this.hexX = x;
         this.hexY = y;
         this.alive = alive;
-        this.curH = 0;
-        this.otherH = 1;
-        createCells();
+        this.curH = (int) (get(FLAGS, 0) & CURRENT_BUFFER);
+        this.otherH = (curH == 0) ? 1 : 0;
+        publishSnapshot();
     }
 
     public Hexagon(HexGrid grid, int x, int y) {
@@ -47,6 +186,29 @@ public class Hexagon {
         this(null, x, y, alive);
     }
 
+    /**
+     * @return the grid of this hexagon, or null if the hexagon does not
+     * belong to a {@link HexGrid}
+     */
+    public HexGrid getGrid() {
+        return grid instanceof HexGrid ? (HexGrid) grid : null;
+    }
+
+    /**
+     * Locks this hexagon and its neighbors for editing.
+     *
+     * @return the acquired lock, which must be released by the caller
+     * @throws IllegalStateException if this hexagon does not belong to a
+     * grid
+     * @see HexGrid#lockNeighborhood(Hexagon)
+     */
+    public RegionLock lockNeighborhood() {
+        if (grid == null)
+            throw new IllegalStateException("Hexagon " + hexX + "," + hexY
+                + " does not belong to a grid");
+        return grid.lockNeighborhood(this);
+    }
+
     public void setGrid(HexGrid grid) {
         if (this.grid != null)
             throw new IllegalStateException("Grid already set");
@@ -54,24 +216,240 @@ public class Hexagon {
         this.grid = grid;
     }
 
+    int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Sets the neighbor that owns the shared cells on the given border. The
+     * cells are no longer stored in this hexagon, and any values stored for
+     * them are discarded.
+     *
+     * @param direction the direction ordinal of the border
+     * @param owner the neighbor in that direction
+     */
+    void setBorderOwner(int direction, Hexagon owner) {
+        borderOwners[direction] = owner;
+        owner.borderViewers[HexagonLayout.getOppositeDirection(direction)] = this;
+        owner.updateFrozenCells();
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            long mask = ~HexagonLayout.getBorderMask(direction, w);
+            ownedCells[w] &= mask;
+            for (int field = CELLS; field < FLAGS; field += HexagonLayout.WORDS) {
+                put(field, w, get(field, w) & mask);
+            }
+        }
+        publishSnapshot();
+    }
+
+    /**
+     * Takes over the shared cells on the given border from the neighbor
+     * that has owned them so far. The current state of the cells is copied
+     * from the neighbor.
+     *
+     * @param direction the direction ordinal of the border
+     * @param neighbor the neighbor in that direction
+     */
+    void takeBorder(int direction, Hexagon neighbor) {
+        importBorder(direction, neighbor);
+        neighbor.setBorderOwner(HexagonLayout.getOppositeDirection(direction), this);
+        publishSnapshot();
+    }
+
+    /**
+     * Takes back the shared cells on the given border from the neighbor
+     * that owns them, copying their current state from the neighbor.
+     *
+     * @param direction the direction ordinal of the border
+     */
+    void releaseBorder(int direction) {
+        Hexagon owner = borderOwners[direction];
+        borderOwners[direction] = null;
+        owner.borderViewers[HexagonLayout.getOppositeDirection(direction)] = null;
+        owner.updateFrozenCells();
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            ownedCells[w] |= HexagonLayout.getBorderMask(direction, w);
+        }
+        importBorder(direction, owner);
+        publishSnapshot();
+    }
+
+    /**
+     * Copies the current state of the shared cells on the given border from
+     * the neighbor in that direction.
+     */
+    private void importBorder(int direction, Hexagon neighbor) {
+        int neighborCells = cellField(neighbor.curH);
+        importBorder(cellField(curH), direction, neighbor.get(neighborCells, 0), neighbor.get(
+            neighborCells, 1));
+        importBorder(STONES, direction, neighbor.get(STONES, 0), neighbor.get(STONES, 1));
+        importBorder(SPAWNERS, direction, neighbor.get(SPAWNERS, 0), neighbor.get(SPAWNERS, 1));
+    }
+
+    /**
+     * Copies the shared cells on the given border into the given field of
+     * the state, from the bit vector of the neighbor in that direction.
+     */
+    private void importBorder(int field, int direction, long neighborLo, long neighborHi) {
+        long[] words = { get(field, 0), get(field, 1) };
+        HexagonLayout.importBorder(direction, neighborLo, neighborHi, words);
+        put(field, 0, words[0]);
+        put(field, 1, words[1]);
+    }
+
+    /**
+     * Detaches this hexagon from its neighbors before it is removed from
+     * the grid. The neighbors take back the borders owned by this hexagon.
+     */
+    void detach() {
+        for (int d = 0; d < borderOwners.length; ++d) {
+            Hexagon owner = borderOwners[d];
+            if (owner != null) {
+                owner.borderViewers[HexagonLayout.getOppositeDirection(d)] = null;
+                owner.updateFrozenCells();
+                borderOwners[d] = null;
+            }
+            Hexagon viewer = borderViewers[d];
+            if (viewer != null)
+                viewer.releaseBorder(HexagonLayout.getOppositeDirection(d));
+        }
+    }
+
+    /**
+     * @return true if this hexagon contains no alive cells, stones or
+     * spawners, including the shared cells owned by the neighbors
+     */
+    boolean isEmpty() {
+        long[] fullCells = new long[HexagonLayout.WORDS];
+        long[] fullStones = new long[HexagonLayout.WORDS];
+        long[] fullSpawners = new long[HexagonLayout.WORDS];
+        getFullState(fullCells, fullStones, fullSpawners, false);
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            if ((fullCells[w] | fullStones[w] | fullSpawners[w]) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the cells stored in this hexagon could affect the
+     * neighbor in the given direction: whether any of the shared cells on
+     * that border, or the cells that the neighbor reads, are alive.
+     */
+    boolean hasAliveCellsFacing(int direction) {
+        int source = HexagonLayout.getOppositeDirection(direction);
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            long mask = HexagonLayout.getBorderMask(direction, w)
+                | HexagonLayout.getHaloMask(source, w);
+            if ((get(cellField(curH), w) & mask) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of alive cells stored in this hexagon; the shared
+     * cells owned by the neighbors are not included
+     */
+    int getOwnedPopulation() {
+        int current = cellField(curH);
+        return Long.bitCount(get(current, 0)) + Long.bitCount(get(current, 1));
+    }
+
+    /**
+     * @return the directions of the borders that are owned by the
+     * neighbors, as a bit mask of direction ordinals
+     */
+    int getBorderOwnerMask() {
+        int mask = 0;
+        for (int d = 0; d < borderOwners.length; ++d) {
+            if (borderOwners[d] != null)
+                mask |= 1 << d;
+        }
+        return mask;
+    }
+
     public boolean isActive() {
         return alive && active && !rotating;
     }
 
+    /**
+     * Activates or deactivates this hexagon. The cells of an inactive
+     * hexagon are not calculated, and neither are the shared cells on its
+     * borders, including the ones owned by the neighbors, so an inactive
+     * hexagon is frozen as a whole. Locks the neighborhood of the hexagon,
+     * as the snapshot reads the borders of the neighbors.
+     */
     public void toggleActive() {
-        active = !active;
+        RegionLock lock = grid != null ? grid.lockNeighborhood(this) : null;
+        try {
+            active = !active;
+            for (Hexagon owner : borderOwners) {
+                if (owner != null)
+                    owner.updateFrozenCells();
+            }
+            modified();
+        } finally {
+            if (lock != null)
+                lock.unlock();
+        }
     }
 
-    public void setPattern(Hexagon pattern) {
-        for (int x = 0; x < 7; ++x) {
-            for (int y = 0; y < 21; ++y) {
-                if (cells[curH][x][y] != null) {
-                    cells[curH][x][y].set(pattern.cells[pattern.curH][x][y]);
-                    cells[otherH][x][y].set(pattern.cells[pattern.curH][x][y]);
+    /**
+     * Collects the cells on the borders viewed by inactive neighbors.
+     */
+    private void updateFrozenCells() {
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            frozenCells[w] = 0;
+        }
+        int mask = getFrozenBorderMask();
+        for (int d = 0; d < borderViewers.length; ++d) {
+            if ((mask & (1 << d)) != 0) {
+                for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+                    frozenCells[w] |= HexagonLayout.getBorderMask(d, w);
                 }
             }
         }
+    }
+
+    /**
+     * @return the directions of the borders owned by this hexagon that are
+     * viewed by inactive neighbors, as a bit mask of direction ordinals
+     */
+    int getFrozenBorderMask() {
+        int mask = 0;
+        for (int d = 0; d < borderViewers.length; ++d) {
+            Hexagon viewer = borderViewers[d];
+            if (viewer != null && !viewer.active)
+                mask |= 1 << d;
+        }
+        return mask;
+    }
+
+    /**
+     * Copies the cells of the given pattern to this hexagon. The shared
+     * cells of the pattern are written to the neighbors that own them.
+     */
+    public void setPattern(Hexagon pattern) {
+        long[] patternCells = new long[HexagonLayout.WORDS];
+        long[] patternStones = new long[HexagonLayout.WORDS];
+        long[] patternSpawners = new long[HexagonLayout.WORDS];
+        pattern.getFullState(patternCells, patternStones, patternSpawners, false);
+        int pending = pattern.getPendingRotation();
+        if (pending != 0) {
+            rotateCells(patternCells, false, pending);
+            rotateCells(patternStones, false, pending);
+            rotateCells(patternSpawners, false, pending);
+        }
+        setFullState(patternCells, patternStones, patternSpawners);
+        setPendingRotation(0);
+        modified();
         invalidate();
+        invalidateViewers();
     }
 
     public void addListener(DataChangedListener listener) {
@@ -83,6 +461,7 @@ public class Hexagon {
     }
 
     public void invalidate() {
+        publishSnapshot();
         if (listener != null) {
             listener.dataChanged();
         }
@@ -102,21 +481,196 @@ public class Hexagon {
 
     public void setStone() {
         log.info("Setting hexagon at " + hexX + "," + hexY + " to be a stone hexagon");
-        for (int x = 0; x < 7; ++x) {
-            for (int y = 0; y < 21; ++y) {
-                if (cells[curH][x][y] != null && !isSharedCell(x, y)) {
-                    cells[curH][x][y].setStone();
-                    cells[otherH][x][y].setStone();
-                }
-            }
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            long mask = HexagonLayout.ALL_CELLS[w] & ~HexagonLayout.SHARED_CELLS[w];
+            put(STONES, w, get(STONES, w) | mask);
+            put(SPAWNERS, w, get(SPAWNERS, w) & ~mask);
+            put(cellField(curH), w, get(cellField(curH), w) & ~mask);
+            put(cellField(otherH), w, get(cellField(otherH), w) & ~mask);
         }
+        modified();
     }
 
+    /**
+     * Rotates the cells of this hexagon by one sixth. The shared cells
+     * rotate with the hexagon, so the cells that end up on the borders owned
+     * by the neighbors are written to the neighbors.
+     */
     public void rotate(boolean clockwise) {
-        assert curH != otherH;
-        HexagonRotator.rotate(cells[curH], cells[otherH], clockwise);
-        flipCellArrays();
-        enforceSharedCells();
+        rotate(clockwise ? 1 : -1);
+    }
+
+    /**
+     * Rotates the cells of this hexagon clockwise by the given number of
+     * sixths. Only the shared cells are moved at once, as the neighbors read
+     * them; the cells that end up on the borders owned by the neighbors are
+     * written to the neighbors. The other cells are tagged with the
+     * rotation: reads of single cells and the snapshots find them through
+     * the rotation tables, and they are moved in place by
+     * {@link #normalizeRotation()} before the hexagon is next calculated.
+     *
+     * @param sixths the number of sixths; negative to rotate
+     * counterclockwise
+     */
+    public void rotate(int sixths) {
+        if (HexagonRotator.getOrientation(sixths) == 0)
+            return;
+        long[] full = new long[HexagonLayout.WORDS];
+        long[] fullStones = new long[HexagonLayout.WORDS];
+        long[] fullSpawners = new long[HexagonLayout.WORDS];
+        getFullState(full, fullStones, fullSpawners, false);
+        rotateCells(full, true, sixths);
+        rotateCells(fullStones, true, sixths);
+        rotateCells(fullSpawners, true, sixths);
+        setFullState(full, fullStones, fullSpawners);
+        setPendingRotation(getPendingRotation() + sixths);
+        setOrientation(getOrientation() + sixths);
+        if (grid != null && alive)
+            grid.hexagonRotated(this);
+        modified();
+        invalidate();
+        invalidateViewers();
+    }
+
+    /**
+     * Moves the cells that are not shared to their positions in the current
+     * orientation, after {@link #rotate(int)} has tagged them with the
+     * rotation. Must be called before the cells are read as bit vectors.
+     */
+    void normalizeRotation() {
+        int pending = getPendingRotation();
+        if (pending == 0)
+            return;
+        long[] cells = new long[HexagonLayout.WORDS];
+        int[] fields = { cellField(curH), STONES, SPAWNERS };
+        for (int field : fields) {
+            for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+                cells[w] = get(field, w);
+            }
+            rotateCells(cells, false, pending);
+            for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+                put(field, w, cells[w]);
+            }
+        }
+        setPendingRotation(0);
+    }
+
+    /**
+     * Rotates either the shared cells or the other cells of the given bit
+     * vector clockwise by the given number of sixths, leaving the rest of
+     * the cells in place. Rotations keep the shared cells on the borders.
+     */
+    private static void rotateCells(long[] cells, boolean shared, int sixths) {
+        long[] selected = new long[HexagonLayout.WORDS];
+        long[] rotated = new long[HexagonLayout.WORDS];
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            long mask = shared ? HexagonLayout.SHARED_CELLS[w] : ~HexagonLayout.SHARED_CELLS[w];
+            selected[w] = cells[w] & mask;
+        }
+        HexagonRotator.rotate(selected, rotated, sixths);
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            long mask = shared ? HexagonLayout.SHARED_CELLS[w] : ~HexagonLayout.SHARED_CELLS[w];
+            cells[w] = (cells[w] & ~mask) | rotated[w];
+        }
+    }
+
+    private int getPendingRotation() {
+        return (int) ((get(FLAGS, 0) & PENDING_ROTATION) >>> PENDING_ROTATION_SHIFT);
+    }
+
+    private void setPendingRotation(int sixths) {
+        long pending = (long) HexagonRotator.getOrientation(sixths) << PENDING_ROTATION_SHIFT;
+        put(FLAGS, 0, (get(FLAGS, 0) & ~PENDING_ROTATION) | pending);
+    }
+
+    /**
+     * @return the position where the given cell is stored in this hexagon,
+     * which differs from the cell for the cells that are not shared until
+     * the rotation is normalized
+     */
+    private int getStoredCell(int cell) {
+        int pending = getPendingRotation();
+        if (pending == 0 || HexagonLayout.getBorder(cell) >= 0)
+            return cell;
+        return HexagonRotator.getSourceCell(cell, pending);
+    }
+
+    /**
+     * Returns how many sixths this hexagon has been rotated clockwise from
+     * its original orientation, from 0 to 5. The orientation is stored with
+     * the cells, so it is also kept in a {@link GridStorage}.
+     */
+    public int getOrientation() {
+        return (int) ((get(FLAGS, 0) & ORIENTATION) >>> ORIENTATION_SHIFT);
+    }
+
+    private void setOrientation(int sixths) {
+        long orientation = (long) HexagonRotator.getOrientation(sixths) << ORIENTATION_SHIFT;
+        put(FLAGS, 0, (get(FLAGS, 0) & ~ORIENTATION) | orientation);
+    }
+
+    /**
+     * Collects the state of this hexagon, including the shared cells owned
+     * by the neighbors. The cells that are not shared are collected from
+     * their stored positions.
+     *
+     * @param visible true to read rotating owners as empty, as the
+     * simulation and the renderer see them
+     */
+    private void getFullState(long[] fullCells, long[] fullStones, long[] fullSpawners,
+        boolean visible) {
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            fullCells[w] = get(cellField(curH), w);
+            fullStones[w] = get(STONES, w);
+            fullSpawners[w] = get(SPAWNERS, w);
+        }
+        for (int d = 0; d < borderOwners.length; ++d) {
+            Hexagon owner = borderOwners[d];
+            if (owner == null)
+                continue;
+            boolean hidden = visible && owner.rotating;
+            int ownerCells = cellField(owner.curH);
+            HexagonLayout.importBorder(d, hidden ? 0 : owner.get(ownerCells, 0), hidden ? 0
+                : owner.get(ownerCells, 1), fullCells);
+            HexagonLayout.importBorder(d, hidden ? 0 : owner.get(STONES, 0), hidden ? 0 : owner
+                .get(STONES, 1), fullStones);
+            HexagonLayout.importBorder(d, hidden ? 0 : owner.get(SPAWNERS, 0), hidden ? 0
+                : owner.get(SPAWNERS, 1), fullSpawners);
+        }
+    }
+
+    /**
+     * Replaces the state of this hexagon. The shared cells owned by the
+     * neighbors are written to the neighbors.
+     */
+    private void setFullState(long[] fullCells, long[] fullStones, long[] fullSpawners) {
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            put(cellField(curH), w, fullCells[w] & ownedCells[w]);
+            put(cellField(otherH), w, fullCells[w] & ownedCells[w]);
+            put(STONES, w, fullStones[w] & ownedCells[w]);
+            put(SPAWNERS, w, fullSpawners[w] & ownedCells[w]);
+        }
+        for (int d = 0; d < borderOwners.length; ++d) {
+            Hexagon owner = borderOwners[d];
+            if (owner == null)
+                continue;
+            int border = HexagonLayout.getOppositeDirection(d);
+            owner.importBorder(cellField(owner.curH), border, fullCells[0], fullCells[1]);
+            owner.importBorder(STONES, border, fullStones[0], fullStones[1]);
+            owner.importBorder(SPAWNERS, border, fullSpawners[0], fullSpawners[1]);
+            owner.modified();
+            owner.invalidate();
+        }
+    }
+
+    /**
+     * Notifies the neighbors that view the borders owned by this hexagon.
+     */
+    void invalidateViewers() {
+        for (Hexagon viewer : borderViewers) {
+            if (viewer != null)
+                viewer.invalidate();
+        }
     }
 
     public boolean isRotating() {
@@ -125,357 +679,507 @@ public class Hexagon {
 
     public void setRotating(boolean rotating) {
         this.rotating = rotating;
+        // Rotating hexagons appear empty to their neighbors
+        modified();
     }
 
-    public void stepSimulation() {
-        assert (isActive());
-        for (int x = 0; x < 7; ++x) {
-            for (int y = 0; y < 21; ++y) {
-                if (cells[curH][x][y] != null)
-                    calculateSimulationForCell(x, y);
-            }
+    /**
+     * Notifies the grid that the cells of this hexagon have been modified
+     * outside of the simulation, so that the hexagon and its neighbors are
+     * stepped in the next generation.
+     */
+    private void modified() {
+        publishSnapshot();
+        if (grid != null && alive) {
+            grid.hexagonModified(this);
         }
     }
 
-    public void flipCellArrays() {
-        curH = otherH;
-        otherH = (curH == 0) ? 1 : 0;
-        assert curH != otherH;
-        invalidate();
+    /**
+     * Returns the latest published state of this hexagon. Does not lock, so
+     * it can be called from any thread, also while the simulation is being
+     * stepped.
+     */
+    public HexagonSnapshot getSnapshot() {
+        return snapshot;
     }
 
-    public Cell getCell(int x, int y) {
-        if (x < 0 || y < 0 || x > 6 || y > 20)
-            return null;
+    /**
+     * Publishes the current state of this hexagon, including the shared
+     * cells owned by the neighbors, unless the latest snapshot already holds
+     * it. Must be called while holding the lock of this hexagon and its
+     * neighbors, so that the borders read from the owners are not changed
+     * halfway.
+     */
+    private void publishSnapshot() {
+        long[][] buffers = publishBuffers.get();
+        long[] fullCells = buffers[0];
+        long[] fullStones = buffers[1];
+        long[] fullSpawners = buffers[2];
+        getFullState(fullCells, fullStones, fullSpawners, true);
+        int orientation = getOrientation();
+        int pending = getPendingRotation();
+        HexagonSnapshot published = snapshot;
+        if (published != null
+            && published.hasState(fullCells, fullStones, fullSpawners, ownedCells, alive,
+                active, rotating, orientation, pending))
+            return;
+        snapshot = new HexagonSnapshot(fullCells, fullStones, fullSpawners, ownedCells, alive,
+            active, rotating, orientation, pending);
+    }
 
-        Cell cell = cells[curH][x][y];
-        if (cell == null)
-            return null;
+    /**
+     * Calculates the next generation of all the cells of this hexagon into
+     * the other cell buffer. The neighbor counts of all cells are calculated
+     * in parallel, using bitwise full-adder logic over the neighbor vectors
+     * assembled by {@link HexagonLayout#gather}.
+     */
+    public void stepSimulation() {
+        StepScratch scratch = stepScratch.get();
+        for (Direction dir : DIRECTIONS) {
+            scratch.neighbors[dir.ordinal()] = getNeighbor(dir);
+        }
+        stepSimulation(scratch.neighbors, grid != null ? grid.getRule() : LifeRule.DEFAULT,
+            scratch);
+    }
 
-        // Dead hexagons and rotating hexagons always return dead cells
-        return (alive && !rotating) ? cell : deadCell;
+    /**
+     * Calculates the next generation of this hexagon, reading the border
+     * cells from the given neighbors. The shared cells owned by the
+     * neighbors are imported from the owners, and only the cells owned by
+     * this hexagon are calculated. Only uses the given scratch space, so
+     * different hexagons may be stepped concurrently with their own.
+     *
+     * @param neighbors the neighbors of this hexagon, in the order of the
+     * direction ordinals
+     * @param rule the rule of the simulation
+     * @return true if any of the cells changed
+     */
+    boolean stepSimulation(Hexagon[] neighbors, LifeRule rule, StepScratch scratch) {
+        assert (isActive());
+        assert getPendingRotation() == 0;
+        getStepSources(neighbors, scratch.srcLo, scratch.srcHi, 1, 0, scratch.self);
+        scratch.stones[0] = get(STONES, 0);
+        scratch.stones[1] = get(STONES, 1);
+        scratch.spawners[0] = get(SPAWNERS, 0);
+        scratch.spawners[1] = get(SPAWNERS, 1);
+        calculateNextGeneration(scratch, rule);
+        return setNextGeneration(scratch.next[0], scratch.next[1]);
     }
 
-    public Cell getCell(Point point) {
-        if (!alive) {
-            return null;
+    /**
+     * Collects the source vectors for calculating the next generation of
+     * this hexagon: the alive cells of the neighbors, and the alive cells of
+     * this hexagon with the shared cells imported from their owners. The
+     * words of source s are stored at position s * stride + offset of the
+     * arrays, so that the sources of several hexagons can be collected side
+     * by side.
+     *
+     * @param neighbors the neighbors of this hexagon, in the order of the
+     * direction ordinals
+     * @param self scratch space for importing the shared cells
+     */
+    void getStepSources(Hexagon[] neighbors, long[] srcLo, long[] srcHi, int stride,
+        int offset, long[] self) {
+        for (int d = 0; d < DIRECTIONS.length; ++d) {
+            srcLo[d * stride + offset] = neighbors[d].getAliveCells(0);
+            srcHi[d * stride + offset] = neighbors[d].getAliveCells(1);
         }
-        int x = (int) point.getX();
-        int y = (int) point.getY();
-        if (x < 0 || y < 0 || x > 6 || y > 20)
-            return null;
-        return cells[curH][x][y];
+        int current = cellField(curH);
+        self[0] = get(current, 0);
+        self[1] = get(current, 1);
+        for (int d = 0; d < DIRECTIONS.length; ++d) {
+            Hexagon owner = borderOwners[d];
+            if (owner != null)
+                HexagonLayout.importBorder(d, owner.getAliveCells(0), owner.getAliveCells(1),
+                    self);
+        }
+        srcLo[HexagonLayout.SELF * stride + offset] = self[0];
+        srcHi[HexagonLayout.SELF * stride + offset] = self[1];
     }
 
-    public Hexagon getNeighbor(Direction direction) {
-        if (!alive)
-            return null;
+    /**
+     * Stores the calculated next generation into the other cell buffer.
+     * Only the cells owned by this hexagon are stored, and the cells on the
+     * borders viewed by inactive neighbors keep their current state.
+     *
+     * @return true if any of the cells changed
+     */
+    boolean setNextGeneration(long lo, long hi) {
+        int current = cellField(curH);
+        lo = ((lo & ~frozenCells[0]) | (get(current, 0) & frozenCells[0])) & ownedCells[0];
+        hi = ((hi & ~frozenCells[1]) | (get(current, 1) & frozenCells[1])) & ownedCells[1];
+        put(cellField(otherH), 0, lo);
+        put(cellField(otherH), 1, hi);
+        return lo != get(current, 0) || hi != get(current, 1);
+    }
 
-        return grid.getNeighbor(hexX, hexY, direction);
+    /**
+     * Calculates the next generation of the cells of a hexagon, from the
+     * sources, the stones and the spawners in the given scratch space into
+     * its next cells.
+     *
+     * @param rule the rule of the simulation
+     */
+    static void calculateNextGeneration(StepScratch scratch, LifeRule rule) {
+        long[] srcLo = scratch.srcLo;
+        long[] srcHi = scratch.srcHi;
+        long[] n = scratch.gathered;
+        for (int d = 0; d < DIRECTIONS.length; ++d) {
+            HexagonLayout.gather(d, srcLo, srcHi, n, 2 * d);
+        }
+
+        scratch.next[0] = nextGeneration(rule, srcLo[HexagonLayout.SELF], n[0], n[2], n[4],
+            n[6], n[8], n[10]) & ~scratch.stones[0] & HexagonLayout.ALL_CELLS[0]
+            | scratch.spawners[0];
+        scratch.next[1] = nextGeneration(rule, srcHi[HexagonLayout.SELF], n[1], n[3], n[5],
+            n[7], n[9], n[11]) & ~scratch.stones[1] & HexagonLayout.ALL_CELLS[1]
+            | scratch.spawners[1];
     }
 
-    public void enforceSharedCells() {
-        Hexagon neighbor = null;
-        // Enforce cells at the north border
-        neighbor = getNeighbor(Direction.North);
-        if (neighbor != null && neighbor.isActive()) {
-            // Cannot say neighbor.getCell(...).set(getCell(...)) because this
-            // hexagon is rotating and getCell() thus always returns a dead
-            // cell.
-            neighbor.getCell(2, 0).set(cells[curH][2][20]);
-            neighbor.getCell(3, 0).set(cells[curH][3][20]);
-            neighbor.getCell(4, 0).set(cells[curH][4][20]);
-            neighbor.invalidate();
-        }
-        // Enforce cells at the south border
-        neighbor = getNeighbor(Direction.South);
-        if (neighbor != null && neighbor.isActive()) {
-            neighbor.getCell(2, 20).set(cells[curH][2][0]);
-            neighbor.getCell(3, 20).set(cells[curH][3][0]);
-            neighbor.getCell(4, 20).set(cells[curH][4][0]);
-            neighbor.invalidate();
-        }
-        // Enforce cells at the north east border
-        neighbor = getNeighbor(Direction.NorthEast);
-        if (neighbor != null && neighbor.isActive()) {
-            neighbor.getCell(0, 8).set(cells[curH][5][18]);
-            neighbor.getCell(0, 5).set(cells[curH][5][15]);
-            neighbor.getCell(1, 2).set(cells[curH][6][12]);
-            neighbor.invalidate();
-        }
-        // Enforce cells at the south west border
-        neighbor = getNeighbor(Direction.SouthWest);
-        if (neighbor != null && neighbor.isActive()) {
-            neighbor.getCell(5, 18).set(cells[curH][0][8]);
-            neighbor.getCell(5, 15).set(cells[curH][0][5]);
-            neighbor.getCell(6, 12).set(cells[curH][1][2]);
-            neighbor.invalidate();
-        }
-
-        // Enforce cells at the north west border
-        neighbor = getNeighbor(Direction.NorthWest);
-        if (neighbor != null && neighbor.isActive()) {
-            neighbor.getCell(6, 8).set(cells[curH][1][18]);
-            neighbor.getCell(5, 5).set(cells[curH][0][15]);
-            neighbor.getCell(5, 2).set(cells[curH][0][12]);
-            neighbor.invalidate();
-        }
-        // Enforce cells at the south east border
-        neighbor = getNeighbor(Direction.SouthEast);
-        if (neighbor != null && neighbor.isActive()) {
-            neighbor.getCell(1, 18).set(cells[curH][6][8]);
-            neighbor.getCell(0, 15).set(cells[curH][5][5]);
-            neighbor.getCell(0, 12).set(cells[curH][5][2]);
-            neighbor.invalidate();
+    /**
+     * Calculates the next generation for 64 cells at once. Each bit of the
+     * parameters corresponds to a single cell.
+     *
+     * @param rule the rule of the simulation
+     * @param self the current state of the cells
+     * @param n0 ... n5 the states of the six neighbors of the cells
+     * @return the next state of the cells
+     */
+    private static long nextGeneration(LifeRule rule, long self, long n0, long n1, long n2,
+        long n3, long n4, long n5) {
+        // Add up the neighbors in two groups of three
+        long s1 = n0 ^ n1 ^ n2;
+        long c1 = (n0 & n1) | (n2 & (n0 ^ n1));
+        long s2 = n3 ^ n4 ^ n5;
+        long c2 = (n3 & n4) | (n5 & (n3 ^ n4));
+        // Combine the groups into a three-bit count
+        long bit0 = s1 ^ s2;
+        long c0 = s1 & s2;
+        long bit1 = c1 ^ c2 ^ c0;
+        long bit2 = (c1 & c2) | (c0 & (c1 ^ c2));
+
+        return rule.apply(self, bit0, bit1, bit2);
+    }
+
+    /**
+     * Adds the neighbors that view the borders of this hexagon to the given
+     * set, if the cells on those borders changed in the next generation.
+     * Must be called before flipping the cell arrays.
+     */
+    void addChangedViewers(HexagonSet viewers) {
+        for (int d = 0; d < borderViewers.length; ++d) {
+            if (isViewedBorderChanged(d))
+                viewers.add(borderViewers[d].getIndex());
         }
-        invalidate();
     }
 
-    public boolean isSharedCell(int x, int y) {
-        switch (y) {
-        case 0:
-        case 20:
-            return true;
-        case 2:
-        case 18:
-            return x == 1 || x == 5;
-        case 5:
-        case 15:
-            return x == 0 || x == 5;
-        case 8:
-        case 12:
-            return x == 0 || x == 6;
-        default:
-            return false;
+    /**
+     * Adds the neighbors that view the borders of this hexagon to the given
+     * collection, if the cells on those borders changed in the next
+     * generation. Must be called before flipping the cell arrays.
+     */
+    void addChangedViewers(Collection<Hexagon> viewers) {
+        for (int d = 0; d < borderViewers.length; ++d) {
+            if (isViewedBorderChanged(d))
+                viewers.add(borderViewers[d]);
         }
     }
 
-    public boolean isPartOfHexagon(int x, int y) {
-        if (y < 0 || x < 0 || y > 20 || x > 7)
+    private boolean isViewedBorderChanged(int direction) {
+        if (borderViewers[direction] == null)
             return false;
-        switch (y) {
-        case 8:
-        case 10:
-        case 12:
-            return true;
-
-        case 5:
-        case 7:
-        case 9:
-        case 11:
-        case 13:
-        case 15:
-            return x < 6;
-
-        case 2:
-        case 4:
-        case 6:
-        case 14:
-        case 16:
-        case 18:
-            return x > 0 && x < 6;
-
-        case 1:
-        case 3:
-        case 17:
-        case 19:
-            return x > 0 && x < 5;
-
-        case 0:
-        case 20:
-            return x > 1 && x < 5;
+        int current = cellField(curH);
+        int other = cellField(otherH);
+        long changes = ((get(current, 0) ^ get(other, 0)) & HexagonLayout.getBorderMask(
+            direction, 0))
+            | ((get(current, 1) ^ get(other, 1)) & HexagonLayout.getBorderMask(direction, 1));
+        return changes != 0;
+    }
 
-        default:
-            throw new Bug("Impossible value!");
-        }
+    public void flipCellArrays() {
+        flipCellArrays(true);
     }
 
-    private void createCells() {
-        for (int c = 0; c < 2; ++c) {
-            for (int x = 0; x < 7; ++x) {
-                for (int y = 0; y < 21; ++y) {
-                    cells[c][x][y] = isPartOfHexagon(x, y) ? new Cell() : null;
-                }
-            }
+    /**
+     * Makes the next generation the current one.
+     *
+     * @param notify true to notify the change listener
+     */
+    void flipCellArrays(boolean notify) {
+        curH = otherH;
+        otherH = (curH == 0) ? 1 : 0;
+        assert curH != otherH;
+        put(FLAGS, 0, (get(FLAGS, 0) & ~CURRENT_BUFFER) | curH);
+        if (notify) {
+            invalidate();
         }
     }
 
     /**
-     * Use a single array for collecting the neighbor cells to avoid memory
-     * burn.
+     * Returns the given word of the current alive cell vector, regardless of
+     * whether this hexagon is rotating. The shared cells owned by the
+     * neighbors are not included.
      */
-    private Cell[] simNeighbors = new Cell[6];
+    long getCells(int word) {
+        return get(cellField(curH), word);
+    }
 
     /**
-     * Not thread-safe, uses the same simNeighbors array to avoid memory burn.
-     * 
-     * @param x
-     * @param y
+     * Returns the given word of the other cell buffer, which holds the next
+     * generation after {@link #setNextGeneration(long, long)}.
      */
-    private void calculateSimulationForCell(int x, int y) {
-        getCellNeighbors(x, y, simNeighbors);
+    long getNextCells(int word) {
+        return get(cellField(otherH), word);
+    }
+
+    long getStones(int word) {
+        return get(STONES, word);
+    }
+
+    long getSpawners(int word) {
+        return get(SPAWNERS, word);
+    }
 
-        cells[otherH][x][y].set(cells[curH][x][y]);
+    /**
+     * Replaces the current alive cells of this hexagon. Used by simulation
+     * engines that calculate generations outside of the hexagon. The
+     * viewers of the borders are notified, as they show the shared cells.
+     */
+    void setCells(long lo, long hi) {
+        put(cellField(curH), 0, lo);
+        put(cellField(curH), 1, hi);
+        modified();
+        invalidate();
+        invalidateViewers();
+    }
 
-        int aliveCells = 0;
-        boolean cellAlive = cells[curH][x][y].isAlive();
-        for (Cell cell : simNeighbors) {
-            if (cell.isAlive())
-                aliveCells++;
+    /**
+     * Copies the cells stored in this hexagon that edits can change: the
+     * current alive cells, the stones and the spawners, each
+     * {@link HexagonLayout#WORDS} long.
+     *
+     * @param target receives {@link #EDIT_STATE_SIZE} longs
+     * @param offset the position of the state in the target array
+     */
+    void getEditState(long[] target, int offset) {
+        int pending = getPendingRotation();
+        int[] fields = { cellField(curH), STONES, SPAWNERS };
+        long[] cells = new long[HexagonLayout.WORDS];
+        for (int f = 0; f < fields.length; ++f) {
+            for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+                cells[w] = get(fields[f], w);
+            }
+            // The state is collected in the current orientation
+            if (pending != 0)
+                rotateCells(cells, false, pending);
+            System.arraycopy(cells, 0, target, offset + f * HexagonLayout.WORDS,
+                HexagonLayout.WORDS);
         }
+    }
 
-        boolean nextAlive = cellAlive ? aliveCells == 3 : aliveCells == 4 || aliveCells == 2
-            || aliveCells == 5;
+    /**
+     * Replaces the cells stored in this hexagon with a state collected with
+     * {@link #getEditState(long[], int)}, and sets the orientation. Does not
+     * notify anyone; the caller must invalidate the hexagon and its
+     * neighbors.
+     */
+    void setEditState(long[] source, int offset, int orientation) {
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            put(cellField(curH), w, source[offset + w]);
+            put(cellField(otherH), w, source[offset + w]);
+            put(STONES, w, source[offset + HexagonLayout.WORDS + w]);
+            put(SPAWNERS, w, source[offset + 2 * HexagonLayout.WORDS + w]);
+        }
+        setPendingRotation(0);
+        setOrientation(orientation);
+    }
 
-        if (nextAlive) {
-            cells[otherH][x][y].setAlive();
-        } else {
-            cells[otherH][x][y].setDead();
+    /**
+     * Flips the cells given as an XOR delta of two states collected with
+     * {@link #getEditState(long[], int)}, and notifies the grid, the change
+     * listener and the viewers of the borders. The delta may be applied to
+     * a later generation than it was collected in, so the stones are then
+     * cleared and the spawners set alive again.
+     */
+    void applyEditDelta(long[] delta, int offset) {
+        normalizeRotation();
+        for (int w = 0; w < HexagonLayout.WORDS; ++w) {
+            long stones = get(STONES, w) ^ delta[offset + HexagonLayout.WORDS + w];
+            long spawners = get(SPAWNERS, w) ^ delta[offset + 2 * HexagonLayout.WORDS + w];
+            long cells = get(cellField(curH), w) ^ delta[offset + w];
+            put(cellField(curH), w, (cells & ~stones) | spawners);
+            put(STONES, w, stones);
+            put(SPAWNERS, w, spawners);
         }
+        modified();
+        invalidate();
+        invalidateViewers();
     }
 
-    private void getCellNeighbors(int x, int y, Cell[] neighbors) {
-        assert (neighbors.length == 6);
+    /**
+     * Returns the given word of the current alive cell vector. Dead
+     * hexagons and rotating hexagons appear to contain only dead cells. The
+     * shared cells owned by the neighbors are not included.
+     */
+    long getAliveCells(int word) {
+        if (!alive || rotating)
+            return 0;
+        assert getPendingRotation() == 0;
+        return get(cellField(curH), word);
+    }
+
+    public Cell getCell(int x, int y) {
+        int cell = HexagonLayout.getIndex(x, y);
+        if (cell < 0)
+            return null;
 
-        neighbors[0] = getCellNeighbor(x, y, Direction.North);
-        neighbors[1] = getCellNeighbor(x, y, Direction.NorthEast);
-        neighbors[2] = getCellNeighbor(x, y, Direction.SouthEast);
-        neighbors[3] = getCellNeighbor(x, y, Direction.South);
-        neighbors[4] = getCellNeighbor(x, y, Direction.SouthWest);
-        neighbors[5] = getCellNeighbor(x, y, Direction.NorthWest);
+        // Dead hexagons and rotating hexagons always return dead cells
+        return (alive && !rotating) ? getCellView(cell) : deadCell;
     }
 
-    private Cell getCellNeighbor(int x, int y, HexGrid.Direction dir) {
-        switch (dir) {
-        case North: {
-            // Neighbor to the north
+    public Cell getCell(Point point) {
+        if (!alive) {
+            return null;
+        }
+        int cell = HexagonLayout.getIndex((int) point.getX(), (int) point.getY());
+        if (cell < 0)
+            return null;
+        return getCellView(cell);
+    }
 
-            // Shared cells at the NE border
-            if ((x == 5 && (y == 18 || y == 15)) || (x == 6 && y == 12)) {
-                return getNeighbor(Direction.NorthEast).getCell(x - 5, y - 8);
-            }
-            // Shared cells at the NW border
-            if ((x == 0 && (y == 12 || y == 15)) || (x == 1 && (y == 18))) {
-                return getNeighbor(Direction.NorthWest).getCell(x + 5, y - 8);
-            }
-            // Cells at the N border
-            if (y >= 19) {
-                return getNeighbor(Direction.North).getCell(x, y - 18);
-            }
-            // Cell within the same hexagon
-            return getCell(x, y + 2);
+    private Cell getCellView(int cell) {
+        CellView[] views = cellViews;
+        if (views == null) {
+            views = new CellView[NUMBER_OF_CELLS];
+            cellViews = views;
         }
+        CellView view = views[cell];
+        if (view == null) {
+            view = new CellView(cell);
+            views[cell] = view;
+        }
+        return view;
+    }
 
-        case South: {
-            // Neighbor to the south
+    /**
+     * Returns the type of the given cell, or null if there is no such cell.
+     * Dead hexagons and rotating hexagons always return dead cells.
+     */
+    public Cell.Type getCellType(int x, int y) {
+        int cell = HexagonLayout.getIndex(x, y);
+        if (cell < 0)
+            return null;
+        return (alive && !rotating) ? getCellType(cell) : Cell.Type.Dead;
+    }
 
-            // Shared cells at the SE border
-            if ((x == 5 && (y == 2 || y == 5)) || (x == 6 && y == 8)) {
-                return getNeighbor(Direction.SouthEast).getCell(x - 5, y + 8);
-            }
-            // Shared cells at the SW border
-            if ((x == 0 && (y == 8 || y == 5)) || (x == 1 && y == 2)) {
-                return getNeighbor(Direction.SouthWest).getCell(x + 5, y + 8);
-            }
-            // Cells at the S border
-            if (y <= 2) {
-                return getNeighbor(Direction.South).getCell(x, y + 18);
-            }
-            // Cell within the same hexagon
-            return getCell(x, y - 2);
+    private Cell.Type getCellType(int cell) {
+        int border = HexagonLayout.getBorder(cell);
+        if (border >= 0 && borderOwners[border] != null) {
+            Hexagon owner = borderOwners[border];
+            return owner.rotating ? Cell.Type.Dead : owner.getCellType(HexagonLayout
+                .getSharedCell(cell));
         }
+        int stored = getStoredCell(cell);
+        if (getBit(STONES, stored))
+            return Cell.Type.Stone;
+        if (getBit(SPAWNERS, stored))
+            return Cell.Type.Spawner;
+        return getBit(cellField(curH), stored) ? Cell.Type.Alive : Cell.Type.Dead;
+    }
 
-        case NorthEast: {
+    private void setCellType(int cell, Cell.Type type) {
+        int border = HexagonLayout.getBorder(cell);
+        if (border >= 0 && borderOwners[border] != null) {
+            Hexagon owner = borderOwners[border];
+            owner.setCellType(HexagonLayout.getSharedCell(cell), type);
+            owner.invalidate();
+            modified();
+            return;
+        }
+        int stored = getStoredCell(cell);
+        setBit(cellField(curH), stored, false);
+        setBit(STONES, stored, false);
+        setBit(SPAWNERS, stored, false);
+        switch (type) {
+        case Alive:
+            setBit(cellField(curH), stored, true);
+            break;
+        case Spawner:
+            setBit(cellField(curH), stored, true);
+            setBit(SPAWNERS, stored, true);
+            break;
+        case Stone:
+            setBit(STONES, stored, true);
+            break;
+        default:
+            // Dead cell
+        }
+        modified();
+        if (border >= 0 && borderViewers[border] != null) {
+            borderViewers[border].invalidate();
+        }
+    }
 
-            // Shared cells at the N border
-            if (y == 20) {
-                return getNeighbor(Direction.North).getCell(x, 1);
-            }
-            // Cells at the NE border
-            if ((x == 4 && y == 19) || (x == 5 && (y == 18 || y == 16 || y == 15 || y == 13))
-                || (x == 6 && (y == 12 || y == 10))) {
-                Hexagon neighbor = getNeighbor(Direction.NorthEast);
-                return y % 2 == 0 ? neighbor.getCell(x - 5, y - 9) : neighbor.getCell(x - 4,
-                    y - 9);
-            }
-            // Shared cells at the SE border
-            if ((x == 5 && (y == 2 || y == 5)) || (x == 6 && y == 8)) {
-                Hexagon neighbor = getNeighbor(Direction.SouthEast);
-                return y % 2 == 0 ? neighbor.getCell(x - 5, y + 11) : neighbor.getCell(x - 4,
-                    y + 11);
-            }
+    /**
+     * @return the offset of the given cell buffer in the state
+     */
+    private static int cellField(int buffer) {
+        return CELLS + buffer * HexagonLayout.WORDS;
+    }
 
-            return y % 2 == 0 ? getCell(x, y + 1) : getCell(x + 1, y + 1);
-        }
+    private long get(int field, int word) {
+        return state.get(base + field + word);
+    }
 
-        case SouthEast: {
-            // Shared cells at the S border
-            if (y == 0) {
-                return getNeighbor(Direction.South).getCell(x, 19);
-            }
-            // Cells at the SE border
-            if ((x == 4 && y == 1) || (x == 5 && (y == 2 || y == 4 || y == 5 || y == 7))
-                || (x == 6 && (y == 8 || y == 10))) {
-                Hexagon neighbor = getNeighbor(Direction.SouthEast);
-                return y % 2 == 0 ? neighbor.getCell(x - 5, y + 9) : neighbor.getCell(x - 4,
-                    y + 9);
-            }
-            // Shared cells at the NE border
-            if ((x == 5 && (y == 18 || y == 15)) || (x == 6 && y == 12)) {
-                Hexagon neighbor = getNeighbor(Direction.NorthEast);
-                return y % 2 == 0 ? neighbor.getCell(x - 5, y - 11) : neighbor.getCell(x - 4,
-                    y - 11);
-            }
+    private void put(int field, int word, long value) {
+        state.put(base + field + word, value);
+    }
 
-            return y % 2 == 0 ? getCell(x, y - 1) : getCell(x + 1, y - 1);
-        }
+    private boolean getBit(int field, int cell) {
+        return (get(field, cell >>> 6) & (1L << cell)) != 0;
+    }
 
-        case SouthWest: {
-            // Shared cells at the S border
-            if (y == 0) {
-                return getNeighbor(Direction.South).getCell(x - 1, 19);
-            }
-            // Cells at the SW border
-            if ((x == 0 && (y == 10 || y == 8 || y == 7 || y == 5))
-                || (x == 1 && (y == 4 || y == 2 || y == 1))) {
-                Hexagon neighbor = getNeighbor(Direction.SouthWest);
-                return y % 2 == 0 ? neighbor.getCell(x + 4, y + 9) : neighbor.getCell(x + 5,
-                    y + 9);
-            }
-            // Shared cells at the NW border
-            if ((x == 0 && (y == 12 || y == 15)) || (x == 1 && y == 18)) {
-                Hexagon neighbor = getNeighbor(Direction.NorthWest);
-                return y % 2 == 0 ? neighbor.getCell(x + 4, y - 11) : neighbor.getCell(x + 5,
-                    y - 11);
-            }
+    private void setBit(int field, int cell, boolean value) {
+        int word = cell >>> 6;
+        long bits = get(field, word);
+        put(field, word, value ? bits | (1L << cell) : bits & ~(1L << cell));
+    }
 
-            return y % 2 == 0 ? getCell(x - 1, y - 1) : getCell(x, y - 1);
-        }
+    public Hexagon getNeighbor(Direction direction) {
+        if (!alive)
+            return null;
 
-        case NorthWest: {
-            // Shared cells at the N border
-            if (y == 20) {
-                return getNeighbor(Direction.North).getCell(x - 1, 1);
-            }
-            // Cells at the NW border
-            if ((x == 0 && (y == 10 || y == 12 || y == 13 || y == 15))
-                || (x == 1 && (y == 16 || y == 18 || y == 19))) {
-                Hexagon neighbor = getNeighbor(Direction.NorthWest);
-                return y % 2 == 0 ? neighbor.getCell(x + 4, y - 9) : neighbor.getCell(x + 5,
-                    y - 9);
-            }
-            // Shared cells at the SW border
-            if ((x == 0 && (y == 8 || y == 5)) || (x == 1 && y == 2)) {
-                Hexagon neighbor = getNeighbor(Direction.SouthWest);
-                return y % 2 == 0 ? neighbor.getCell(x + 4, y + 11) : neighbor.getCell(x + 5,
-                    y + 11);
-            }
+        return grid.getNeighbor(hexX, hexY, direction);
+    }
+
+    public boolean isSharedCell(int x, int y) {
+        return HexagonLayout.isSharedCell(x, y);
+    }
+
+    public boolean isPartOfHexagon(int x, int y) {
+        return HexagonLayout.isPartOfHexagon(x, y);
+    }
+
+    /**
+     * A cell of this hexagon. Reads and writes go directly to the current
+     * cell vectors of the hexagon.
+     */
+    private class CellView extends Cell {
+        private final int cell;
 
-            return y % 2 == 0 ? getCell(x - 1, y + 1) : getCell(x, y + 1);
+        public CellView(int cell) {
+            this.cell = cell;
         }
 
-        default:
-            throw new Bug("Invalid direction: " + dir);
+        @Override
+        public Type getType() {
+            return getCellType(cell);
+        }
+
+        @Override
+        protected void setType(Type type) {
+            setCellType(cell, type);
         }
     }
 
@@ -0,0 +1,45 @@
+package fi.tuska.tessellagon.data;
+
+import fi.tuska.tessellagon.data.HexGrid.Direction;
+
+/**
+ * The grid that a hexagon belongs to, as seen by the hexagon: it finds the
+ * neighbors of the hexagon, provides the rule of the simulation and the
+ * locks, and is told when the hexagon is modified outside of the
+ * simulation.
+ *
+ * @author Tuukka Haapasalo
+ * @see HexGrid
+ * @see SparseHexGrid
+ */
+abstract class HexagonContainer {
+
+    /**
+     * @return the neighbor of the hexagon at the given position; never null,
+     * as missing neighbors are represented by a dead hexagon
+     */
+    public abstract Hexagon getNeighbor(int x, int y, Direction direction);
+
+    public abstract LifeRule getRule();
+
+    /**
+     * Locks the given hexagon and its neighbors for editing.
+     *
+     * @return the acquired lock, which must be released by the caller
+     */
+    public abstract RegionLock lockNeighborhood(Hexagon hexagon);
+
+    /**
+     * Called when the cells or the state of a hexagon are modified outside
+     * of the simulation.
+     */
+    abstract void hexagonModified(Hexagon hexagon);
+
+    /**
+     * Called when a hexagon has been rotated, so that the rotation of its
+     * cells is normalized before the hexagon is next calculated (see
+     * {@link Hexagon#rotate(int)}).
+     */
+    abstract void hexagonRotated(Hexagon hexagon);
+
+}
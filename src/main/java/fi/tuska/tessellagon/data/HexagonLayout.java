@@ -0,0 +1,628 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fi.tuska.tessellagon.data.HexGrid.Direction;
+import fi.tuska.util.Bug;
+
+/**
+ * Static cell geometry of a hexagon. The 109 cells of a hexagon are numbered
+ * row by row, starting from the southmost row (y = 0) and proceeding from
+ * west to east within each row. Cell states are stored as bit vectors of
+ * two longs, so that cell index i is bit (i % 64) of word (i / 64).
+ *
+ * <p>
+ * The neighbor relations of the cells are compiled once into shift plans:
+ * for each of the six cell directions, the neighbor vector is assembled
+ * from the cell vectors of this hexagon and its neighbors by shifting them
+ * and masking the affected bits. This allows the simulation to calculate
+ * all cells of a hexagon with a handful of bitwise operations.
+ *
+ * <p>
+ * The shared cells on the borders of the hexagon are the same cells as the
+ * shared cells on the opposite border of the neighbor. Each shared cell is
+ * owned by exactly one of the two hexagons: a hexagon owns its north, north
+ * east and south east borders (see {@link #ownsBorder(int)}), and the
+ * borders that do not face another hexagon.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class HexagonLayout {
+
+    public static final int WIDTH = 7;
+    public static final int HEIGHT = 21;
+    public static final int WORDS = 2;
+
+    /** Source code for cells that are read from the hexagon itself. */
+    public static final int SELF = Direction.values().length;
+
+    /** Number of different cell sources (six neighbors plus self). */
+    public static final int SOURCES = SELF + 1;
+
+    private static final int[][] index = new int[WIDTH][HEIGHT];
+    private static final int[] cellX = new int[Hexagon.NUMBER_OF_CELLS];
+    private static final int[] cellY = new int[Hexagon.NUMBER_OF_CELLS];
+
+    /** Mask of all valid cell bits. */
+    public static final long[] ALL_CELLS = new long[WORDS];
+    /** Mask of the cells that are shared with the neighboring hexagons. */
+    public static final long[] SHARED_CELLS = new long[WORDS];
+
+    /** Neighbor source (direction ordinal or SELF), by [direction][cell]. */
+    private static final int[][] neighborSource = new int[6][Hexagon.NUMBER_OF_CELLS];
+    /** Neighbor cell index within the source, by [direction][cell]. */
+    private static final int[][] neighborCell = new int[6][Hexagon.NUMBER_OF_CELLS];
+
+    /**
+     * The cells of the neighbor in each direction that are read when
+     * calculating this hexagon, by [direction][word].
+     */
+    private static final long[][] haloMasks = new long[6][WORDS];
+
+    /**
+     * The shared cells on each border, by [direction][k]. Cell k of a border
+     * is cell k of the opposite border of the neighbor in that direction.
+     */
+    private static final int[][] borderCells = new int[6][];
+    /** The shared cells on each border as masks, by [direction][word]. */
+    private static final long[][] borderMasks = new long[6][WORDS];
+    /** The border of each cell, or -1 if the cell is not shared. */
+    private static final int[] borderOf = new int[Hexagon.NUMBER_OF_CELLS];
+    /** The position of each shared cell within its border. */
+    private static final int[] borderPosition = new int[Hexagon.NUMBER_OF_CELLS];
+
+    /** Shift plans by cell direction, see {@link #gather}. */
+    private static final int[][] planSource = new int[6][];
+    private static final int[][] planShift = new int[6][];
+    private static final long[][] planMaskLo = new long[6][];
+    private static final long[][] planMaskHi = new long[6][];
+
+    static {
+        int i = 0;
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                if (isPartOfHexagon(x, y)) {
+                    index[x][y] = i;
+                    cellX[i] = x;
+                    cellY[i] = y;
+                    setBit(ALL_CELLS, i);
+                    if (isSharedCell(x, y))
+                        setBit(SHARED_CELLS, i);
+                    ++i;
+                } else {
+                    index[x][y] = -1;
+                }
+            }
+        }
+        assert i == Hexagon.NUMBER_OF_CELLS;
+        compileBorders();
+        compileNeighbors();
+    }
+
+    private HexagonLayout() {
+        // No need to instantiate, just use the static methods
+    }
+
+    public static int getIndex(int x, int y) {
+        if (x < 0 || y < 0 || x >= WIDTH || y >= HEIGHT)
+            return -1;
+        return index[x][y];
+    }
+
+    public static int getX(int cell) {
+        return cellX[cell];
+    }
+
+    public static int getY(int cell) {
+        return cellY[cell];
+    }
+
+    public static int getNeighborSource(Direction direction, int cell) {
+        return neighborSource[direction.ordinal()][cell];
+    }
+
+    public static int getNeighborCell(Direction direction, int cell) {
+        return neighborCell[direction.ordinal()][cell];
+    }
+
+    /**
+     * Returns the mask of the cells of the neighbor in the given direction
+     * that affect the next generation of a hexagon. The other cells of the
+     * neighbor can be ignored when calculating the hexagon.
+     *
+     * @param source the direction ordinal of the neighbor
+     * @param word the word of the mask
+     */
+    public static long getHaloMask(int source, int word) {
+        return haloMasks[source][word];
+    }
+
+    /**
+     * @return the direction ordinal of the opposite direction
+     */
+    public static int getOppositeDirection(int direction) {
+        return (direction + 3) % 6;
+    }
+
+    /**
+     * Checks whether a hexagon owns the shared cells on the given border.
+     * Exactly one of two opposite borders is owned, so each shared cell has
+     * a single owner. A hexagon also owns the borders that do not face
+     * another hexagon; this is resolved by the grid.
+     *
+     * @param direction the direction ordinal of the border
+     */
+    public static boolean ownsBorder(int direction) {
+        return direction == Direction.North.ordinal()
+            || direction == Direction.NorthEast.ordinal()
+            || direction == Direction.SouthEast.ordinal();
+    }
+
+    /**
+     * @return the mask of the shared cells on the given border
+     */
+    public static long getBorderMask(int direction, int word) {
+        return borderMasks[direction][word];
+    }
+
+    /**
+     * @return the direction ordinal of the border of the given cell, or -1
+     * if the cell is not shared
+     */
+    public static int getBorder(int cell) {
+        return borderOf[cell];
+    }
+
+    /**
+     * Returns the index of the given shared cell in the neighbor that shares
+     * it.
+     *
+     * @param cell a shared cell
+     * @return the index of the same cell in the neighbor
+     */
+    public static int getSharedCell(int cell) {
+        int border = borderOf[cell];
+        if (border < 0)
+            throw new IllegalArgumentException("Cell " + cell + " is not shared");
+        return borderCells[getOppositeDirection(border)][borderPosition[cell]];
+    }
+
+    /**
+     * Copies the shared cells on the given border from the bit vector of the
+     * neighbor in that direction.
+     *
+     * @param direction the direction ordinal of the border
+     * @param neighborLo the low word of the neighbor's bit vector
+     * @param neighborHi the high word of the neighbor's bit vector
+     * @param target the bit vector to copy the cells to
+     */
+    public static void importBorder(int direction, long neighborLo, long neighborHi,
+        long[] target) {
+        int[] cells = borderCells[direction];
+        int[] neighborCells = borderCells[getOppositeDirection(direction)];
+        for (int k = 0; k < cells.length; ++k) {
+            int n = neighborCells[k];
+            long word = n < 64 ? neighborLo : neighborHi;
+            if ((word & (1L << n)) != 0) {
+                setBit(target, cells[k]);
+            } else {
+                clearBit(target, cells[k]);
+            }
+        }
+    }
+
+    public static boolean getBit(long[] bits, int cell) {
+        return (bits[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    public static void setBit(long[] bits, int cell) {
+        bits[cell >>> 6] |= 1L << cell;
+    }
+
+    public static void clearBit(long[] bits, int cell) {
+        bits[cell >>> 6] &= ~(1L << cell);
+    }
+
+    public static int countBits(long[] bits) {
+        return Long.bitCount(bits[0]) + Long.bitCount(bits[1]);
+    }
+
+    public static boolean isPartOfHexagon(int x, int y) {
+        if (y < 0 || x < 0 || y >= HEIGHT || x >= WIDTH)
+            return false;
+        switch (y) {
+        case 8:
+        case 10:
+        case 12:
+            return true;
+
+        case 5:
+        case 7:
+        case 9:
+        case 11:
+        case 13:
+        case 15:
+            return x < 6;
+
+        case 2:
+        case 4:
+        case 6:
+        case 14:
+        case 16:
+        case 18:
+            return x > 0 && x < 6;
+
+        case 1:
+        case 3:
+        case 17:
+        case 19:
+            return x > 0 && x < 5;
+
+        case 0:
+        case 20:
+            return x > 1 && x < 5;
+
+        default:
+            throw new Bug("Impossible value!");
+        }
+    }
+
+    public static boolean isSharedCell(int x, int y) {
+        switch (y) {
+        case 0:
+        case 20:
+            return true;
+        case 2:
+        case 18:
+            return x == 1 || x == 5;
+        case 5:
+        case 15:
+            return x == 0 || x == 5;
+        case 8:
+        case 12:
+            return x == 0 || x == 6;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Assembles the neighbor vector for the given cell direction. Bit i of
+     * the result is the state of the neighbor of cell i in that direction.
+     *
+     * @param direction the cell direction ordinal
+     * @param srcLo the low words of the source vectors, indexed by source
+     * @param srcHi the high words of the source vectors, indexed by source
+     * @param result receives the low and high word of the neighbor vector
+     * @param offset the position of the low word in the result array
+     */
+    public static void gather(int direction, long[] srcLo, long[] srcHi, long[] result,
+        int offset) {
+        int[] sources = planSource[direction];
+        int[] shifts = planShift[direction];
+        long[] masksLo = planMaskLo[direction];
+        long[] masksHi = planMaskHi[direction];
+        long lo = 0;
+        long hi = 0;
+        for (int g = 0; g < sources.length; ++g) {
+            long sLo = srcLo[sources[g]];
+            long sHi = srcHi[sources[g]];
+            int s = shifts[g];
+            lo |= shiftedLo(sLo, sHi, s) & masksLo[g];
+            hi |= shiftedHi(sLo, sHi, s) & masksHi[g];
+        }
+        result[offset] = lo;
+        result[offset + 1] = hi;
+    }
+
+    /**
+     * Assembles the neighbor vectors for the given cell direction for a
+     * batch of hexagons. The words of source s of hexagon k are read from
+     * position s * stride + k of the source arrays, and the words of the
+     * neighbor vector of hexagon k are stored at position k of the result
+     * arrays. Each shift plan group is applied to the whole batch in a
+     * simple loop, which the JIT compiler can vectorize.
+     *
+     * @param direction the cell direction ordinal
+     * @param count the number of hexagons in the batch
+     */
+    public static void gatherBatch(int direction, long[] srcLo, long[] srcHi, int stride,
+        int count, long[] resultLo, long[] resultHi) {
+        int[] sources = planSource[direction];
+        int[] shifts = planShift[direction];
+        long[] masksLo = planMaskLo[direction];
+        long[] masksHi = planMaskHi[direction];
+        Arrays.fill(resultLo, 0, count, 0);
+        Arrays.fill(resultHi, 0, count, 0);
+        for (int g = 0; g < sources.length; ++g) {
+            int base = sources[g] * stride;
+            int s = shifts[g];
+            long maskLo = masksLo[g];
+            long maskHi = masksHi[g];
+            if (s >= 64) {
+                for (int k = 0; k < count; ++k) {
+                    resultLo[k] |= (srcHi[base + k] >>> (s - 64)) & maskLo;
+                }
+            } else if (s > 0) {
+                for (int k = 0; k < count; ++k) {
+                    long lo = srcLo[base + k];
+                    long hi = srcHi[base + k];
+                    resultLo[k] |= ((lo >>> s) | (hi << (64 - s))) & maskLo;
+                    resultHi[k] |= (hi >>> s) & maskHi;
+                }
+            } else if (s == 0) {
+                for (int k = 0; k < count; ++k) {
+                    resultLo[k] |= srcLo[base + k] & maskLo;
+                    resultHi[k] |= srcHi[base + k] & maskHi;
+                }
+            } else if (s > -64) {
+                for (int k = 0; k < count; ++k) {
+                    long lo = srcLo[base + k];
+                    long hi = srcHi[base + k];
+                    resultLo[k] |= (lo << -s) & maskLo;
+                    resultHi[k] |= ((hi << -s) | (lo >>> (64 + s))) & maskHi;
+                }
+            } else {
+                for (int k = 0; k < count; ++k) {
+                    resultHi[k] |= (srcLo[base + k] << (-s - 64)) & maskHi;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the low word of the 128-bit value (hi:lo) shifted so that bit
+     * (i + shift) moves to bit i. Negative shifts move bits upwards.
+     */
+    public static long shiftedLo(long lo, long hi, int shift) {
+        if (shift >= 64)
+            return hi >>> (shift - 64);
+        if (shift > 0)
+            return (lo >>> shift) | (hi << (64 - shift));
+        if (shift == 0)
+            return lo;
+        if (shift > -64)
+            return lo << -shift;
+        return 0;
+    }
+
+    /**
+     * Returns the high word of the 128-bit value (hi:lo) shifted so that bit
+     * (i + shift) moves to bit i. Negative shifts move bits upwards.
+     */
+    public static long shiftedHi(long lo, long hi, int shift) {
+        if (shift >= 64)
+            return 0;
+        if (shift > 0)
+            return hi >>> shift;
+        if (shift == 0)
+            return hi;
+        if (shift > -64)
+            return (hi << -shift) | (lo >>> (64 + shift));
+        return lo << (-shift - 64);
+    }
+
+    private static void compileBorders() {
+        setBorder(Direction.North, 2, 20, 3, 20, 4, 20);
+        setBorder(Direction.South, 2, 0, 3, 0, 4, 0);
+        setBorder(Direction.NorthEast, 5, 18, 5, 15, 6, 12);
+        setBorder(Direction.SouthWest, 0, 8, 0, 5, 1, 2);
+        setBorder(Direction.NorthWest, 1, 18, 0, 15, 0, 12);
+        setBorder(Direction.SouthEast, 6, 8, 5, 5, 5, 2);
+
+        for (int i = 0; i < Hexagon.NUMBER_OF_CELLS; ++i) {
+            borderOf[i] = -1;
+        }
+        for (int d = 0; d < borderCells.length; ++d) {
+            for (int k = 0; k < borderCells[d].length; ++k) {
+                int cell = borderCells[d][k];
+                assert borderOf[cell] < 0;
+                borderOf[cell] = d;
+                borderPosition[cell] = k;
+                setBit(borderMasks[d], cell);
+            }
+        }
+    }
+
+    private static void setBorder(Direction direction, int... coordinates) {
+        int[] cells = new int[coordinates.length / 2];
+        for (int k = 0; k < cells.length; ++k) {
+            int x = coordinates[2 * k];
+            int y = coordinates[2 * k + 1];
+            if (!isSharedCell(x, y))
+                throw new Bug("Border cell is not a shared cell: " + x + "," + y);
+            cells[k] = getIndex(x, y);
+        }
+        borderCells[direction.ordinal()] = cells;
+    }
+
+    private static void compileNeighbors() {
+        for (Direction dir : Direction.values()) {
+            int d = dir.ordinal();
+            List<long[]> groups = new ArrayList<long[]>();
+            for (int i = 0; i < Hexagon.NUMBER_OF_CELLS; ++i) {
+                int location = locateCellNeighbor(cellX[i], cellY[i], dir);
+                int source = location / Hexagon.NUMBER_OF_CELLS;
+                int cell = location % Hexagon.NUMBER_OF_CELLS;
+                neighborSource[d][i] = source;
+                neighborCell[d][i] = cell;
+                if (source != SELF)
+                    setBit(haloMasks[source], cell);
+
+                // Group the cells by source and shift amount
+                int shift = cell - i;
+                long[] group = null;
+                for (long[] g : groups) {
+                    if (g[0] == source && g[1] == shift) {
+                        group = g;
+                        break;
+                    }
+                }
+                if (group == null) {
+                    group = new long[] { source, shift, 0, 0 };
+                    groups.add(group);
+                }
+                group[2 + (i >>> 6)] |= 1L << i;
+            }
+
+            planSource[d] = new int[groups.size()];
+            planShift[d] = new int[groups.size()];
+            planMaskLo[d] = new long[groups.size()];
+            planMaskHi[d] = new long[groups.size()];
+            for (int g = 0; g < groups.size(); ++g) {
+                long[] group = groups.get(g);
+                planSource[d][g] = (int) group[0];
+                planShift[d][g] = (int) group[1];
+                planMaskLo[d][g] = group[2];
+                planMaskHi[d][g] = group[3];
+            }
+        }
+    }
+
+    private static int at(int source, int x, int y) {
+        int cell = getIndex(x, y);
+        if (cell < 0)
+            throw new Bug("Cell neighbor is not a valid cell: " + x + "," + y);
+        return source * Hexagon.NUMBER_OF_CELLS + cell;
+    }
+
+    private static int at(Direction source, int x, int y) {
+        return at(source.ordinal(), x, y);
+    }
+
+    /**
+     * Locates the neighbor of the given cell in the given direction. The
+     * neighbor is either a cell of this hexagon, or a cell of one of the
+     * neighboring hexagons.
+     *
+     * @return the location of the neighbor, encoded as (source, cell index)
+     */
+    private static int locateCellNeighbor(int x, int y, Direction dir) {
+        switch (dir) {
+        case North: {
+            // Neighbor to the north
+
+            // Shared cells at the NE border
+            if ((x == 5 && (y == 18 || y == 15)) || (x == 6 && y == 12)) {
+                return at(Direction.NorthEast, x - 5, y - 8);
+            }
+            // Shared cells at the NW border
+            if ((x == 0 && (y == 12 || y == 15)) || (x == 1 && (y == 18))) {
+                return at(Direction.NorthWest, x + 5, y - 8);
+            }
+            // Cells at the N border
+            if (y >= 19) {
+                return at(Direction.North, x, y - 18);
+            }
+            // Cell within the same hexagon
+            return at(SELF, x, y + 2);
+        }
+
+        case South: {
+            // Neighbor to the south
+
+            // Shared cells at the SE border
+            if ((x == 5 && (y == 2 || y == 5)) || (x == 6 && y == 8)) {
+                return at(Direction.SouthEast, x - 5, y + 8);
+            }
+            // Shared cells at the SW border
+            if ((x == 0 && (y == 8 || y == 5)) || (x == 1 && y == 2)) {
+                return at(Direction.SouthWest, x + 5, y + 8);
+            }
+            // Cells at the S border
+            if (y <= 2) {
+                return at(Direction.South, x, y + 18);
+            }
+            // Cell within the same hexagon
+            return at(SELF, x, y - 2);
+        }
+
+        case NorthEast: {
+
+            // Shared cells at the N border
+            if (y == 20) {
+                return at(Direction.North, x, 1);
+            }
+            // Cells at the NE border
+            if ((x == 4 && y == 19) || (x == 5 && (y == 18 || y == 16 || y == 15 || y == 13))
+                || (x == 6 && (y == 12 || y == 10))) {
+                return y % 2 == 0 ? at(Direction.NorthEast, x - 5, y - 9) : at(
+                    Direction.NorthEast, x - 4, y - 9);
+            }
+            // Shared cells at the SE border
+            if ((x == 5 && (y == 2 || y == 5)) || (x == 6 && y == 8)) {
+                return y % 2 == 0 ? at(Direction.SouthEast, x - 5, y + 11) : at(
+                    Direction.SouthEast, x - 4, y + 11);
+            }
+
+            return y % 2 == 0 ? at(SELF, x, y + 1) : at(SELF, x + 1, y + 1);
+        }
+
+        case SouthEast: {
+            // Shared cells at the S border
+            if (y == 0) {
+                return at(Direction.South, x, 19);
+            }
+            // Cells at the SE border
+            if ((x == 4 && y == 1) || (x == 5 && (y == 2 || y == 4 || y == 5 || y == 7))
+                || (x == 6 && (y == 8 || y == 10))) {
+                return y % 2 == 0 ? at(Direction.SouthEast, x - 5, y + 9) : at(
+                    Direction.SouthEast, x - 4, y + 9);
+            }
+            // Shared cells at the NE border
+            if ((x == 5 && (y == 18 || y == 15)) || (x == 6 && y == 12)) {
+                return y % 2 == 0 ? at(Direction.NorthEast, x - 5, y - 11) : at(
+                    Direction.NorthEast, x - 4, y - 11);
+            }
+
+            return y % 2 == 0 ? at(SELF, x, y - 1) : at(SELF, x + 1, y - 1);
+        }
+
+        case SouthWest: {
+            // Shared cells at the S border
+            if (y == 0) {
+                return at(Direction.South, x - 1, 19);
+            }
+            // Cells at the SW border
+            if ((x == 0 && (y == 10 || y == 8 || y == 7 || y == 5))
+                || (x == 1 && (y == 4 || y == 2 || y == 1))) {
+                return y % 2 == 0 ? at(Direction.SouthWest, x + 4, y + 9) : at(
+                    Direction.SouthWest, x + 5, y + 9);
+            }
+            // Shared cells at the NW border
+            if ((x == 0 && (y == 12 || y == 15)) || (x == 1 && y == 18)) {
+                return y % 2 == 0 ? at(Direction.NorthWest, x + 4, y - 11) : at(
+                    Direction.NorthWest, x + 5, y - 11);
+            }
+
+            return y % 2 == 0 ? at(SELF, x - 1, y - 1) : at(SELF, x, y - 1);
+        }
+
+        case NorthWest: {
+            // Shared cells at the N border
+            if (y == 20) {
+                return at(Direction.North, x - 1, 1);
+            }
+            // Cells at the NW border
+            if ((x == 0 && (y == 10 || y == 12 || y == 13 || y == 15))
+                || (x == 1 && (y == 16 || y == 18 || y == 19))) {
+                return y % 2 == 0 ? at(Direction.NorthWest, x + 4, y - 9) : at(
+                    Direction.NorthWest, x + 5, y - 9);
+            }
+            // Shared cells at the SW border
+            if ((x == 0 && (y == 8 || y == 5)) || (x == 1 && y == 2)) {
+                return y % 2 == 0 ? at(Direction.SouthWest, x + 4, y + 11) : at(
+                    Direction.SouthWest, x + 5, y + 11);
+            }
+
+            return y % 2 == 0 ? at(SELF, x - 1, y + 1) : at(SELF, x, y + 1);
+        }
+
+        default:
+            throw new Bug("Invalid direction: " + dir);
+        }
+    }
+
+}
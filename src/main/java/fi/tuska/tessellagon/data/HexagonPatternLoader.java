@@ -14,9 +14,18 @@ public class HexagonPatternLoader {
         // No need to instantiate, just use the static methods
     }
 
+    /**
+     * Loads the given pattern from the pattern directory. The parsed pattern
+     * is stored in the {@link AssetCache}, and loaded from there until the
+     * pattern file changes.
+     */
     public static Hexagon loadPattern(String filename) {
+        File file = new File(PATTERN_DIR, filename + ".pat");
+        Hexagon cached = AssetCache.loadPattern(file);
+        if (cached != null)
+            return cached;
 
-        List<String> lines = FileUtils.readFromFile(new File(PATTERN_DIR, filename + ".pat"));
+        List<String> lines = FileUtils.readFromFile(file);
         if (lines == null || lines.size() == 0) {
             throw new IllegalArgumentException("Pattern file " + filename
                 + " not found or invalid");
@@ -87,6 +96,7 @@ public class HexagonPatternLoader {
         assert cpos == cells.length;
         assert cells.length == Hexagon.NUMBER_OF_CELLS;
 
+        AssetCache.storePattern(file, hexagon);
         return hexagon;
     }
 
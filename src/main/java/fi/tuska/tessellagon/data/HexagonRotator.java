@@ -2,42 +2,107 @@ package fi.tuska.tessellagon.data;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Rotates the cells of a hexagon by sixths of a full turn. The rotations
+ * are compiled into permutation tables for each of the six orientations,
+ * indexed by the values of small groups of cells, so that a rotation by any
+ * number of sixths takes a fixed number of table lookups.
+ *
+ * @author Tuukka Haapasalo
+ */
 public class HexagonRotator {
 
+    /** The number of orientations of a hexagon. */
+    public static final int ORIENTATIONS = 6;
+
+    /** The number of cells that are permuted with a single table lookup. */
+    private static final int CHUNK_BITS = 4;
+    private static final int CHUNK_VALUES = 1 << CHUNK_BITS;
+    private static final int CHUNKS = (Hexagon.NUMBER_OF_CELLS + CHUNK_BITS - 1) / CHUNK_BITS;
+
     private static final int[][][] counterClockwiseRotationArray = new int[7][21][2];
 
+    /** Source cell indices of the target cells, for clockwise rotation. */
+    private static final int[] clockwiseSource = new int[Hexagon.NUMBER_OF_CELLS];
+    /** Source cell indices of the target cells, for counterclockwise rotation. */
+    private static final int[] counterClockwiseSource = new int[Hexagon.NUMBER_OF_CELLS];
+
+    /**
+     * The rotated cells of each value of each chunk of cells, for each
+     * number of clockwise sixths, by [sixths][(chunk * CHUNK_VALUES +
+     * value) * WORDS + word].
+     */
+    private static final long[][] rotationTables = new long[ORIENTATIONS][];
+
+    /**
+     * The cell that ends up in each cell when rotated clockwise by each
+     * number of sixths, by [sixths][cell].
+     */
+    private static final int[][] sourceCells = new int[ORIENTATIONS][Hexagon.NUMBER_OF_CELLS];
+
     private static final Logger log = Logger.getLogger(HexagonRotator.class);
 
     /**
-     * Rotates the elements in the hexagonal arrays, one step, either
+     * Rotates the cells in the hexagonal bit vectors, one step, either
      * clockwise or counterclockwise. The rotated values are placed in the
-     * target array, and they are read from the source array.
+     * target vector, and they are read from the source vector. See
+     * {@link HexagonLayout} for the layout of the vectors.
      * 
-     * @param source the source array
-     * @param target the target array
+     * @param source the source vector
+     * @param target the target vector
      * @param clockwise true to rotate clockwise, false to rotate
      * counterclockwise
      */
-    public static void rotate(Cell[][] source, Cell[][] target, boolean clockwise) {
+    public static void rotate(long[] source, long[] target, boolean clockwise) {
         log.debug("Rotating hexagons " + (clockwise ? "clockwise" : "counterclockwise"));
-        for (int x1 = 0; x1 < 7; ++x1) {
-            int[][] ccraX = counterClockwiseRotationArray[x1];
-            for (int y1 = 0; y1 < 21; ++y1) {
-                int[] point = ccraX[y1];
-                int x2 = point[0];
-                int y2 = point[1];
-                if (x2 != 0 || y2 != 0) {
-                    if (clockwise) {
-                        target[x1][y1].set(source[x2][y2]);
-                    } else {
-                        target[x2][y2].set(source[x1][y1]);
-                    }
-                } else {
-                    assert source[x1][y1] == null;
-                    assert target[x1][y1] == null;
-                }
-            }
+        rotate(source, target, clockwise ? 1 : ORIENTATIONS - 1);
+    }
+
+    /**
+     * Rotates the cells in the hexagonal bit vectors clockwise by the given
+     * number of sixths. The rotated values are placed in the target vector,
+     * and they are read from the source vector.
+     *
+     * @param source the source vector
+     * @param target the target vector
+     * @param sixths the number of clockwise sixths; negative for
+     * counterclockwise rotation
+     */
+    public static void rotate(long[] source, long[] target, int sixths) {
+        assert source != target;
+        long[] table = rotationTables[getOrientation(sixths)];
+        long lo = 0;
+        long hi = 0;
+        for (int chunk = 0; chunk < CHUNKS; ++chunk) {
+            int cell = chunk * CHUNK_BITS;
+            int value = (int) (source[cell >> 6] >>> (cell & 63)) & (CHUNK_VALUES - 1);
+            int entry = (chunk * CHUNK_VALUES + value) * HexagonLayout.WORDS;
+            lo |= table[entry];
+            hi |= table[entry + 1];
         }
+        target[0] = lo;
+        target[1] = hi;
+    }
+
+    /**
+     * Returns the cell that is moved to the given cell by rotating clockwise
+     * by the given number of sixths. The shared cells are moved to shared
+     * cells, and the other cells to cells that are not shared.
+     *
+     * @param cell the index of the rotated cell
+     * @param sixths the number of clockwise sixths; negative for
+     * counterclockwise rotation
+     */
+    public static int getSourceCell(int cell, int sixths) {
+        return sourceCells[getOrientation(sixths)][cell];
+    }
+
+    /**
+     * @return the given number of clockwise sixths as an orientation between
+     * 0 and 5
+     */
+    public static int getOrientation(int sixths) {
+        return ((sixths % ORIENTATIONS) + ORIENTATIONS) % ORIENTATIONS;
     }
 
     /**
@@ -175,6 +240,69 @@ public class HexagonRotator {
         rot(2, 20, 0, 12);
         rot(3, 20, 0, 15);
         rot(4, 20, 1, 18);
+
+        compileRotations();
+        compileTables();
+    }
+
+    /**
+     * Converts the rotation array into the cell index tables.
+     */
+    private static void compileRotations() {
+        for (int x1 = 0; x1 < 7; ++x1) {
+            for (int y1 = 0; y1 < 21; ++y1) {
+                int[] point = counterClockwiseRotationArray[x1][y1];
+                int x2 = point[0];
+                int y2 = point[1];
+                if (x2 != 0 || y2 != 0) {
+                    // x1, y1 becomes x2, y2
+                    int c1 = HexagonLayout.getIndex(x1, y1);
+                    int c2 = HexagonLayout.getIndex(x2, y2);
+                    assert c1 >= 0 && c2 >= 0;
+                    clockwiseSource[c1] = c2;
+                    counterClockwiseSource[c2] = c1;
+                } else {
+                    assert HexagonLayout.getIndex(x1, y1) < 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles the permutation tables of all orientations.
+     */
+    private static void compileTables() {
+        // The target cell of each cell, rotated by the current orientation
+        int[] targets = new int[Hexagon.NUMBER_OF_CELLS];
+        for (int cell = 0; cell < targets.length; ++cell) {
+            targets[cell] = cell;
+        }
+        for (int sixths = 0; sixths < ORIENTATIONS; ++sixths) {
+            long[] table = new long[CHUNKS * CHUNK_VALUES * HexagonLayout.WORDS];
+            for (int chunk = 0; chunk < CHUNKS; ++chunk) {
+                for (int value = 0; value < CHUNK_VALUES; ++value) {
+                    long[] rotated = new long[HexagonLayout.WORDS];
+                    for (int bit = 0; bit < CHUNK_BITS; ++bit) {
+                        int cell = chunk * CHUNK_BITS + bit;
+                        if ((value & (1 << bit)) != 0 && cell < targets.length)
+                            HexagonLayout.setBit(rotated, targets[cell]);
+                    }
+                    int entry = (chunk * CHUNK_VALUES + value) * HexagonLayout.WORDS;
+                    System.arraycopy(rotated, 0, table, entry, HexagonLayout.WORDS);
+                }
+            }
+            rotationTables[sixths] = table;
+            for (int cell = 0; cell < targets.length; ++cell) {
+                sourceCells[sixths][targets[cell]] = cell;
+                assert (HexagonLayout.getBorder(cell) < 0) == (HexagonLayout
+                    .getBorder(targets[cell]) < 0);
+            }
+            // A clockwise sixth moves each source cell to the cell that
+            // reads it
+            for (int cell = 0; cell < targets.length; ++cell) {
+                targets[cell] = counterClockwiseSource[targets[cell]];
+            }
+        }
     }
 
     private static void rot(int x1, int y1, int x2, int y2) {
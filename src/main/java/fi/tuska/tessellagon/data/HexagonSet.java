@@ -0,0 +1,71 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.Arrays;
+
+/**
+ * A set of hexagon indices of a compiled grid topology. Supports
+ * constant-time insertion and membership checks, and iteration over the
+ * members in insertion order, or in index order after {@link #sort()}.
+ *
+ * @author Tuukka Haapasalo
+ */
+final class HexagonSet {
+
+    private final boolean[] members;
+    private final int[] indices;
+    private int size;
+
+    HexagonSet(int capacity) {
+        this.members = new boolean[capacity];
+        this.indices = new int[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Adds the given index to the set.
+     *
+     * @return true if the index was not in the set before
+     */
+    boolean add(int index) {
+        if (members[index])
+            return false;
+        members[index] = true;
+        indices[size++] = index;
+        return true;
+    }
+
+    boolean contains(int index) {
+        return members[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the index at the given position of the iteration order
+     */
+    int get(int position) {
+        return indices[position];
+    }
+
+    void clear() {
+        for (int i = 0; i < size; ++i) {
+            members[indices[i]] = false;
+        }
+        size = 0;
+    }
+
+    /**
+     * Sorts the members into index order, which is also the memory order of
+     * the grid.
+     */
+    void sort() {
+        Arrays.sort(indices, 0, size);
+    }
+
+}
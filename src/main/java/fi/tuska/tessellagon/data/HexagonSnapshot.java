@@ -0,0 +1,121 @@
+package fi.tuska.tessellagon.data;
+
+/**
+ * An immutable copy of the state of a single hexagon. Each hexagon
+ * publishes a new snapshot whenever it is modified or its change listener
+ * is notified and its state differs from the previous snapshot, so that
+ * the renderer and other readers can access the latest state without
+ * locking. Like the hexagon, the snapshot keeps the cells that are not
+ * shared in their stored positions until a rotation is normalized, and
+ * finds them through the rotation tables.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class HexagonSnapshot {
+
+    private final long cellsLo;
+    private final long cellsHi;
+    private final long stonesLo;
+    private final long stonesHi;
+    private final long spawnersLo;
+    private final long spawnersHi;
+    private final boolean alive;
+    private final boolean active;
+    private final boolean rotating;
+    private final int orientation;
+    private final int pendingRotation;
+    /** The number of alive cells stored in the hexagon itself. */
+    private final int population;
+
+    /**
+     * @param owned the cells stored in the hexagon itself, that is, all the
+     * cells except the shared cells owned by the neighbors
+     */
+    HexagonSnapshot(long[] cells, long[] stones, long[] spawners, long[] owned, boolean alive,
+        boolean active, boolean rotating, int orientation, int pendingRotation) {
+        this.cellsLo = cells[0];
+        this.cellsHi = cells[1];
+        this.stonesLo = stones[0];
+        this.stonesHi = stones[1];
+        this.spawnersLo = spawners[0];
+        this.spawnersHi = spawners[1];
+        this.alive = alive;
+        this.active = active;
+        this.rotating = rotating;
+        this.orientation = orientation;
+        this.pendingRotation = pendingRotation;
+        this.population = alive ? getPopulation(cells, owned) : 0;
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    public boolean isActive() {
+        return alive && active && !rotating;
+    }
+
+    public boolean isRotating() {
+        return rotating;
+    }
+
+    /**
+     * @see Hexagon#getOrientation()
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Returns the type of the given cell, or null if there is no such cell.
+     * Dead hexagons and rotating hexagons always return dead cells.
+     *
+     * @see Hexagon#getCellType(int, int)
+     */
+    public Cell.Type getCellType(int x, int y) {
+        int cell = HexagonLayout.getIndex(x, y);
+        if (cell < 0)
+            return null;
+        if (!alive || rotating)
+            return Cell.Type.Dead;
+        if (pendingRotation != 0 && HexagonLayout.getBorder(cell) < 0)
+            cell = HexagonRotator.getSourceCell(cell, pendingRotation);
+        if (getBit(stonesLo, stonesHi, cell))
+            return Cell.Type.Stone;
+        if (getBit(spawnersLo, spawnersHi, cell))
+            return Cell.Type.Spawner;
+        return getBit(cellsLo, cellsHi, cell) ? Cell.Type.Alive : Cell.Type.Dead;
+    }
+
+    /**
+     * @return true if this snapshot holds the given state, so that it can be
+     * kept instead of publishing an identical one
+     */
+    boolean hasState(long[] cells, long[] stones, long[] spawners, long[] owned,
+        boolean alive, boolean active, boolean rotating, int orientation, int pendingRotation) {
+        return cellsLo == cells[0] && cellsHi == cells[1] && stonesLo == stones[0]
+            && stonesHi == stones[1] && spawnersLo == spawners[0] && spawnersHi == spawners[1]
+            && this.alive == alive && this.active == active && this.rotating == rotating
+            && this.orientation == orientation && this.pendingRotation == pendingRotation
+            && population == (alive ? getPopulation(cells, owned) : 0);
+    }
+
+    /**
+     * @return the number of alive cells (including spawners) in the hexagon;
+     * the shared cells owned by the neighbors are not included, so that the
+     * populations of the hexagons add up to the population of the grid
+     */
+    public int getPopulation() {
+        return population;
+    }
+
+    private static int getPopulation(long[] cells, long[] owned) {
+        return Long.bitCount(cells[0] & owned[0]) + Long.bitCount(cells[1] & owned[1]);
+    }
+
+    private static boolean getBit(long lo, long hi, int cell) {
+        long word = cell < 64 ? lo : hi;
+        return (word & (1L << (cell & 63))) != 0;
+    }
+
+}
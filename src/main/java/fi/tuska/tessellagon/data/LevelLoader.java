@@ -1,130 +1,262 @@
 package fi.tuska.tessellagon.data;
 
 import java.io.File;
-import java.util.List;
-import java.util.Properties;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.BitSet;
 
-import fi.tuska.util.file.FileUtils;
-import fi.tuska.util.iterator.Iterables;
+import org.apache.log4j.Logger;
 
+/**
+ * Loads the levels from the level files. A level file has a header of
+ * "key = value" lines, followed by a line with the word "data" and the
+ * hexagons of the level, one character per hexagon, in reading order. See
+ * data/levels/Example.lvl for the details.
+ *
+ * <p>
+ * The level file is read from a channel in chunks, and parsed one byte at a
+ * time in a single pass. The hexagons are collected into bit sets, and the
+ * grid is created directly from them. The level files are plain ASCII.
+ *
+ * @author Tuukka Haapasalo
+ */
 public class LevelLoader {
 
+    private static final Logger log = Logger.getLogger(LevelLoader.class);
+
     private static final String DATA_SEPARATOR = "data";
     private static final String PROP_WIDTH = "level.width";
     private static final String PROP_HEIGHT = "level.height";
+    private static final String PROP_RULE = "level.rule";
     private static final String LEVEL_DIR = "data/levels";
 
+    private static final int DEFAULT_WIDTH = 5;
+    private static final int DEFAULT_HEIGHT = 15;
+
+    /** The size of the chunks that the level file is read in. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
     private LevelLoader() {
         // No need to instantiate, just use the static methods
     }
 
-    private static Properties getDefaultProperties() {
-        Properties props = new Properties();
-        props.put(PROP_WIDTH, "5");
-        props.put(PROP_HEIGHT, "15");
-        return props;
-    }
-
+    /**
+     * Loads the given level from the level directory. The parsed level is
+     * stored in the {@link AssetCache}, and loaded from there until the
+     * level file changes.
+     *
+     * @throws IllegalArgumentException if the level file is not found, or
+     * is invalid; the message gives the line and column of the error
+     */
     public static HexGrid loadLevel(String filename) {
-        List<String> lines = FileUtils.readFromFile(new File(LEVEL_DIR, filename + ".lvl"));
-        if (lines == null || lines.size() == 0) {
-            throw new IllegalArgumentException("Level file " + filename + " not found or invalid");
+        File file = new File(LEVEL_DIR, filename + ".lvl");
+        HexGrid cached = AssetCache.loadLevel(file);
+        if (cached != null)
+            return cached;
+
+        HexGrid level;
+        try {
+            FileInputStream input = new FileInputStream(file);
+            try {
+                level = new Parser(file.getPath()).parse(input.getChannel());
+            } finally {
+                input.close();
+            }
+        } catch (FileNotFoundException e) {
+            throw new IllegalArgumentException("Level file " + filename + " not found");
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Level file " + filename + " could not be read: "
+                + e.getMessage());
         }
 
-        Properties props = getDefaultProperties();
+        AssetCache.storeLevel(file, level);
+        return level;
+    }
+
+    /**
+     * Parses a level in a single pass. The header lines are collected into
+     * a buffer, and the data part is handled one character at a time.
+     */
+    private static final class Parser {
+        private final String name;
 
-        int i = loadHeader(lines, props);
+        private int line = 1;
+        private int column = 0;
 
-        int width = Integer.parseInt(props.getProperty(PROP_WIDTH));
-        int height = Integer.parseInt(props.getProperty(PROP_HEIGHT));
+        private final StringBuilder headerLine = new StringBuilder();
+        private boolean inData = false;
+        /** Whether the current line of the data part is a comment. */
+        private boolean inComment = false;
+        /** Whether only whitespace has been seen on the current line. */
+        private boolean lineStart = true;
 
-        Hexagon[][] hexagons = loadHexagons(lines, i, width, height);
+        private int width = DEFAULT_WIDTH;
+        private int height = DEFAULT_HEIGHT;
+        private LifeRule rule = LifeRule.DEFAULT;
 
-        HexGrid level = new HexGrid(width, height, hexagons);
+        private int count;
+        private BitSet present;
+        private BitSet stones;
 
-        return level;
-    }
+        private Parser(String name) {
+            this.name = name;
+        }
 
-    private static Hexagon[][] loadHexagons(List<String> lines, int position, int width,
-        int height) {
-        Hexagon[][] hexes = new Hexagon[width][height];
-
-        int curY = height - 1;
-        int curX = 0;
-        int hexesLoaded = 0;
-        for (int i = position; i < lines.size(); ++i) {
-            String line = lines.get(i).trim();
-            if (line.startsWith("#"))
-                continue;
-
-            for (char c : Iterables.get(line)) {
-
-                Hexagon hex = null;
-
-                switch (c) {
-                case 'o':
-                case 'O':
-                case '0':
-                    hex = new Hexagon(curX, curY, true);
-                    break;
-
-                case 'B':
-                case 'b':
-                    hex = new Hexagon(curX, curY, true);
-                    hex.setStone();
-                    break;
-
-                case 'm':
-                case 'M':
-                    // Missing hexagon, leave as null
-                    break;
-
-                default:
-                    // Comment, continue to next character
-                    continue;
+        private HexGrid parse(ReadableByteChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    accept((char) (buffer.get() & 0xFF));
                 }
+                buffer.clear();
+            }
+            if (!inData) {
+                // The last line need not end with a newline
+                endHeaderLine();
+                if (!inData)
+                    throw error("Invalid level data: data part not found");
+            }
+            int expected = width * height;
+            if (count != expected)
+                throw error("Level file invalid: expected " + expected + " hexagons, got "
+                    + count);
 
-                ++hexesLoaded;
-                hexes[curX][curY] = hex;
+            HexGrid level = new HexGrid(width, height, present);
+            for (int position = stones.nextSetBit(0); position >= 0; position = stones
+                .nextSetBit(position + 1)) {
+                level.getHexagon(position % width, position / width).setStone();
+            }
+            level.setRule(rule);
+            log.debug("Loaded level " + name + " with " + width + "x" + height + " hexagons");
+            return level;
+        }
 
-                curX++;
-                if (curX >= width) {
-                    curX = 0;
-                    curY--;
+        private void accept(char c) {
+            if (c == '\n') {
+                if (!inData)
+                    endHeaderLine();
+                ++line;
+                column = 0;
+                inComment = false;
+                lineStart = true;
+                return;
+            }
+            ++column;
+            if (!inData) {
+                headerLine.append(c);
+                return;
+            }
+            if (inComment)
+                return;
+            if (lineStart) {
+                if (Character.isWhitespace(c))
+                    return;
+                lineStart = false;
+                if (c == '#') {
+                    inComment = true;
+                    return;
                 }
             }
+
+            switch (c) {
+            case 'o':
+            case 'O':
+            case '0':
+                addHexagon(true, false);
+                break;
+
+            case 'B':
+            case 'b':
+                addHexagon(true, true);
+                break;
+
+            case 'm':
+            case 'M':
+                addHexagon(false, false);
+                break;
+
+            default:
+                // Comment, continue to next character
+            }
         }
 
-        if (hexesLoaded != width * height) {
-            throw new IllegalArgumentException("Level file invalid: expected " + (width * height)
-                + " hexagons, got " + hexesLoaded);
+        /**
+         * Adds the next hexagon in reading order: the rows run from the top
+         * (y = height - 1) down, and each row from left to right. The even
+         * rows have one hexagon less, so their last slot cannot hold a
+         * stone.
+         */
+        private void addHexagon(boolean exists, boolean stone) {
+            if (count >= width * height)
+                throw error("Level file invalid: more than " + (width * height) + " hexagons");
+            int x = count % width;
+            int y = height - 1 - count / width;
+            int position = x + y * width;
+            if (stone && y % 2 == 0 && x == width - 1)
+                throw error("Invalid level data: no hexagon at " + x + "," + y
+                    + " for a stone");
+            if (exists)
+                present.set(position);
+            if (stone)
+                stones.set(position);
+            ++count;
         }
 
-        return hexes;
-    }
+        private void endHeaderLine() {
+            String text = headerLine.toString().trim();
+            headerLine.setLength(0);
+            if (text.startsWith("#"))
+                return;
+            if (text.equalsIgnoreCase(DATA_SEPARATOR)) {
+                startData();
+                return;
+            }
 
-    private static int loadHeader(List<String> lines, Properties props) {
-        // Read header
-        boolean dataFound = false;
-        int i = 0;
-        for (; i < lines.size(); ++i) {
-            String line = lines.get(i).trim();
-            if (line.startsWith("#"))
-                continue;
-            if (line.equalsIgnoreCase(DATA_SEPARATOR)) {
-                dataFound = true;
-                break;
+            String[] parts = text.split("=");
+            if (parts.length != 2)
+                return;
+            String key = parts[0].trim();
+            String value = parts[1].trim();
+            if (key.equals(PROP_WIDTH)) {
+                width = parseDimension(value);
+            } else if (key.equals(PROP_HEIGHT)) {
+                height = parseDimension(value);
+            } else if (key.equals(PROP_RULE)) {
+                try {
+                    rule = LifeRule.parse(value);
+                } catch (IllegalArgumentException e) {
+                    throw error(e.getMessage());
+                }
             }
+        }
 
-            String[] parts = line.split("=");
-            if (parts.length == 2) {
-                props.put(parts[0].trim(), parts[1].trim());
+        private int parseDimension(String value) {
+            try {
+                int dimension = Integer.parseInt(value);
+                if (dimension >= 1)
+                    return dimension;
+            } catch (NumberFormatException e) {
+                // Reported below
             }
+            throw error("Invalid level dimension: " + value);
+        }
+
+        private void startData() {
+            if ((long) width * height > Integer.MAX_VALUE)
+                throw error("Level too large: " + width + "x" + height);
+            inData = true;
+            present = new BitSet(width * height);
+            stones = new BitSet(width * height);
         }
 
-        if (!dataFound) {
-            throw new IllegalArgumentException("Invalid level data: data part not found");
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(name + ":" + line + ":" + column + ": "
+                + message);
         }
-        return i + 1;
     }
+
 }
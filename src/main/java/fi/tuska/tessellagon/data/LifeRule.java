@@ -0,0 +1,233 @@
+package fi.tuska.tessellagon.data;
+
+/**
+ * A birth/survival rule for the cell simulation. Each cell has six
+ * neighbors, so a rule is fully described by the neighbor counts (0-6) on
+ * which a dead cell is born and on which a live cell survives.
+ *
+ * <p>
+ * Rules can be written either as "B245/S3" (in either order, case
+ * insensitive), or in the survival/birth notation used in the pattern files,
+ * such as "3/245" or "3/2,4,5".
+ *
+ * <p>
+ * The rule is compiled into a lookup table indexed by the state of the cell
+ * and the three bits of its neighbor count. The table entries are all-ones
+ * or all-zeros words, so that {@link #apply} evaluates the rule for 64
+ * cells at once with a fixed sequence of bitwise operations, independent of
+ * the rule.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class LifeRule {
+
+    private static final int MAX_NEIGHBORS = 6;
+
+    /** The default rule: born on 2, 4 or 5 neighbors, survives on 3. */
+    public static final LifeRule DEFAULT = new LifeRule(bits(2, 4, 5), bits(3));
+
+    private final int birth;
+    private final int survival;
+
+    /**
+     * The compiled lookup table. Entries 0-7 are for dead cells and entries
+     * 8-15 for live cells, indexed by the neighbor count.
+     */
+    private final long[] table = new long[16];
+
+    private LifeRule(int birth, int survival) {
+        this.birth = birth;
+        this.survival = survival;
+        for (int count = 0; count < 8; ++count) {
+            table[count] = ((birth >> count) & 1) != 0 ? -1L : 0L;
+            table[8 + count] = ((survival >> count) & 1) != 0 ? -1L : 0L;
+        }
+    }
+
+    /**
+     * Creates a rule from the neighbor counts.
+     *
+     * @param birth the neighbor counts on which dead cells are born
+     * @param survival the neighbor counts on which live cells survive
+     */
+    public static LifeRule create(int[] birth, int[] survival) {
+        return new LifeRule(bits(birth), bits(survival));
+    }
+
+    /**
+     * Creates a rule from the bit masks of the neighbor counts, as returned
+     * by {@link #getBirthMask()} and {@link #getSurvivalMask()}.
+     */
+    static LifeRule fromMasks(int birth, int survival) {
+        int valid = (1 << (MAX_NEIGHBORS + 1)) - 1;
+        if ((birth & ~valid) != 0 || (survival & ~valid) != 0)
+            throw new IllegalArgumentException("Invalid rule masks: " + birth + "/" + survival);
+        return new LifeRule(birth, survival);
+    }
+
+    /**
+     * Parses a rule string.
+     *
+     * @param rule the rule, such as "B245/S3" or "3/245"
+     * @return the parsed rule
+     * @throws IllegalArgumentException if the rule is invalid
+     */
+    public static LifeRule parse(String rule) {
+        String[] parts = rule.trim().split("/", -1);
+        if (parts.length != 2)
+            throw new IllegalArgumentException("Invalid rule " + rule
+                + ": expected the form B<counts>/S<counts> or <survival>/<birth>");
+
+        String first = parts[0].trim().toUpperCase();
+        String second = parts[1].trim().toUpperCase();
+        if (first.startsWith("B") && second.startsWith("S")) {
+            return new LifeRule(parseCounts(rule, first.substring(1)), parseCounts(rule,
+                second.substring(1)));
+        }
+        if (first.startsWith("S") && second.startsWith("B")) {
+            return new LifeRule(parseCounts(rule, second.substring(1)), parseCounts(rule,
+                first.substring(1)));
+        }
+        // Survival/birth notation
+        return new LifeRule(parseCounts(rule, second), parseCounts(rule, first));
+    }
+
+    private static int parseCounts(String rule, String counts) {
+        int result = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            char c = counts.charAt(i);
+            if (c == ',' || c == ' ')
+                continue;
+            if (c < '0' || c > '0' + MAX_NEIGHBORS)
+                throw new IllegalArgumentException("Invalid neighbor count '" + c + "' in rule "
+                    + rule);
+            result |= 1 << (c - '0');
+        }
+        return result;
+    }
+
+    private static int bits(int... counts) {
+        int result = 0;
+        for (int count : counts) {
+            if (count < 0 || count > MAX_NEIGHBORS)
+                throw new IllegalArgumentException("Invalid neighbor count: " + count);
+            result |= 1 << count;
+        }
+        return result;
+    }
+
+    /**
+     * @return the neighbor counts on which dead cells are born, as a bit mask
+     */
+    int getBirthMask() {
+        return birth;
+    }
+
+    /**
+     * @return the neighbor counts on which live cells survive, as a bit mask
+     */
+    int getSurvivalMask() {
+        return survival;
+    }
+
+    public boolean isBorn(int neighbors) {
+        return ((birth >> neighbors) & 1) != 0;
+    }
+
+    public boolean survives(int neighbors) {
+        return ((survival >> neighbors) & 1) != 0;
+    }
+
+    /**
+     * Evaluates the rule for 64 cells at once. Each bit position corresponds
+     * to a single cell.
+     *
+     * @param self the current state of the cells
+     * @param bit0 the lowest bits of the neighbor counts
+     * @param bit1 the middle bits of the neighbor counts
+     * @param bit2 the highest bits of the neighbor counts
+     * @return the next state of the cells
+     */
+    public long apply(long self, long bit0, long bit1, long bit2) {
+        return select(self, lookup(8, bit0, bit1, bit2), lookup(0, bit0, bit1, bit2));
+    }
+
+    /**
+     * Evaluates the rule for a batch of 64-cell words, as {@link #apply}
+     * does for a single word. The table entries are loaded once for the
+     * whole batch, so that the loop consists only of bitwise operations on
+     * the arrays, which the JIT compiler can vectorize.
+     *
+     * @param selfOffset the position of the first word in the self array
+     * @param count the number of words to evaluate
+     * @param result receives the next state of the cells
+     */
+    void applyBatch(long[] self, int selfOffset, long[] bit0, long[] bit1, long[] bit2,
+        long[] result, int count) {
+        long[] t = table;
+        long d0 = t[0], d1 = t[1], d2 = t[2], d3 = t[3];
+        long d4 = t[4], d5 = t[5], d6 = t[6], d7 = t[7];
+        long a0 = t[8], a1 = t[9], a2 = t[10], a3 = t[11];
+        long a4 = t[12], a5 = t[13], a6 = t[14], a7 = t[15];
+        for (int k = 0; k < count; ++k) {
+            long b0 = bit0[k];
+            long b1 = bit1[k];
+            long b2 = bit2[k];
+            long dead = select(b2, select(b1, select(b0, d7, d6), select(b0, d5, d4)), select(
+                b1, select(b0, d3, d2), select(b0, d1, d0)));
+            long alive = select(b2, select(b1, select(b0, a7, a6), select(b0, a5, a4)), select(
+                b1, select(b0, a3, a2), select(b0, a1, a0)));
+            result[k] = select(self[selfOffset + k], alive, dead);
+        }
+    }
+
+    /**
+     * Looks up the table entries starting from base, indexed by the neighbor
+     * counts given as three bit vectors.
+     */
+    private long lookup(int base, long bit0, long bit1, long bit2) {
+        long[] t = table;
+        long low = select(bit1, select(bit0, t[base + 3], t[base + 2]), select(bit0,
+            t[base + 1], t[base]));
+        long high = select(bit1, select(bit0, t[base + 7], t[base + 6]), select(bit0,
+            t[base + 5], t[base + 4]));
+        return select(bit2, high, low);
+    }
+
+    /**
+     * Bitwise multiplexer: picks the bits of ifSet where selector is set,
+     * and the bits of ifClear elsewhere.
+     */
+    private static long select(long selector, long ifSet, long ifClear) {
+        return (selector & ifSet) | (~selector & ifClear);
+    }
+
+    @Override
+    public int hashCode() {
+        return birth * 31 + survival;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LifeRule))
+            return false;
+        LifeRule r = (LifeRule) o;
+        return birth == r.birth && survival == r.survival;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder("B");
+        for (int i = 0; i <= MAX_NEIGHBORS; ++i) {
+            if (isBorn(i))
+                b.append(i);
+        }
+        b.append("/S");
+        for (int i = 0; i <= MAX_NEIGHBORS; ++i) {
+            if (survives(i))
+                b.append(i);
+        }
+        return b.toString();
+    }
+
+}
@@ -0,0 +1,422 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A memoizing simulation engine for advancing a grid by a large number of
+ * generations at once. The engine works alongside
+ * {@link HexGrid#stepSimulation()}: the hexagons of the grid remain the
+ * source of truth, and they are updated with the final state when the
+ * advance is complete.
+ *
+ * <p>
+ * The engine memoizes on two levels:
+ * <ul>
+ * <li>Hexagon states are hash-consed, so that equal hexagons share a single
+ * state object. The next generation of a hexagon depends only on its own
+ * state and on the border cells that it reads from its six neighbors (see
+ * {@link HexagonLayout#getHaloMask(int, int)}), and these transitions are
+ * cached. Repeated local configurations, including the empty hexagon, are
+ * therefore calculated only once.</li>
+ * <li>Grid states are hash-consed as arrays of hexagon states. When a grid
+ * state recurs, the board has entered a cycle, and the rest of the advance
+ * is skipped by jumping directly to the correct phase of the cycle.</li>
+ * </ul>
+ *
+ * <p>
+ * Inactive hexagons keep their state during the advance, just as they do
+ * when stepping the grid, and so do the shared cells on their borders;
+ * rotating hexagons appear empty to their neighbors. The shared cells owned
+ * by a neighbor are part of the halo read from that neighbor, and the sets
+ * of borders owned by the neighbors and of owned borders facing inactive
+ * neighbors are part of the cached transition.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class MemoizedEvolver {
+
+    private static final Logger log = Logger.getLogger(MemoizedEvolver.class);
+
+    /** Maximum number of cached hexagon transitions. */
+    public static final int DEFAULT_CACHE_SIZE = 1 << 20;
+
+    /**
+     * Maximum number of hexagon states (summed over all generations) stored
+     * for detecting repeated grid states.
+     */
+    public static final int DEFAULT_HISTORY_SIZE = 1 << 22;
+
+    private static final int DIRECTIONS = GridTopology.DIRECTIONS;
+
+    private final HexGrid grid;
+    private final int maxCacheSize;
+    private final int maxHistorySize;
+
+    private final Map<HexState, HexState> states = new HashMap<HexState, HexState>();
+    private final Map<Neighborhood, HexState> transitions = new HashMap<Neighborhood, HexState>();
+    /** Scratch space for calculating the transitions; used under the step lock. */
+    private final Hexagon.StepScratch scratch = new Hexagon.StepScratch();
+    private int nextStateId = 0;
+    /** The rule that the cached transitions were calculated with. */
+    private LifeRule rule;
+
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+
+    public MemoizedEvolver(HexGrid grid) {
+        this(grid, DEFAULT_CACHE_SIZE, DEFAULT_HISTORY_SIZE);
+    }
+
+    public MemoizedEvolver(HexGrid grid, int maxCacheSize, int maxHistorySize) {
+        this.grid = grid;
+        this.maxCacheSize = maxCacheSize;
+        this.maxHistorySize = maxHistorySize;
+    }
+
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Advances the grid by the given number of generations. The result is
+     * the same as calling {@link HexGrid#stepSimulation()} the given number
+     * of times, but each hexagon is updated and invalidated only once.
+     *
+     * @param generations the number of generations to advance
+     * @return the number of generations that were actually calculated; the
+     * rest were skipped because the grid entered a cycle
+     */
+    public long advance(long generations) {
+        grid.lockStepping();
+        RegionLock lock = grid.lockAll();
+        try {
+            grid.normalizeRotations();
+            GridTopology topology = grid.getTopology();
+            int size = topology.size();
+            if (!grid.getRule().equals(rule)) {
+                clearCaches();
+                rule = grid.getRule();
+            }
+
+            boolean[] fixed = new boolean[size];
+            boolean[] visible = new boolean[size];
+            int[] borderOwners = new int[size];
+            int[] frozenBorders = new int[size];
+            HexState[] initial = capture(topology, fixed, visible, borderOwners, frozenBorders);
+
+            Map<GridState, Long> seen = new HashMap<GridState, Long>();
+            List<HexState[]> history = new ArrayList<HexState[]>();
+            long historyStart = 0;
+            boolean recording = true;
+
+            HexState[] current = initial;
+            long generation = 0;
+            while (generation < generations) {
+                if (recording) {
+                    GridState key = new GridState(current);
+                    Long first = seen.get(key);
+                    if (first != null) {
+                        long period = generation - first;
+                        long remaining = generations - generation;
+                        log.info("Grid state repeats with period " + period + ", skipping "
+                            + remaining + " generations");
+                        current = history.get((int) (first - historyStart + remaining % period));
+                        break;
+                    }
+                    if ((long) (history.size() + 1) * size <= maxHistorySize) {
+                        seen.put(key, generation);
+                        history.add(current);
+                    } else {
+                        recording = false;
+                        seen.clear();
+                        history.clear();
+                    }
+                }
+
+                current = successor(topology, current, fixed, visible, borderOwners,
+                    frozenBorders);
+                ++generation;
+
+                if (transitions.size() > maxCacheSize) {
+                    log.debug("Transition cache full, clearing caches");
+                    clearCaches();
+                    current = intern(current);
+                    seen.clear();
+                    history.clear();
+                    historyStart = generation;
+                }
+            }
+
+            for (int i = 0; i < size; ++i) {
+                if (!current[i].equals(initial[i])) {
+                    topology.getHexagon(i).setCells(current[i].lo, current[i].hi);
+                }
+            }
+            grid.generationsCompleted(generations);
+            return generation;
+        } finally {
+            lock.unlock();
+            grid.unlockStepping();
+        }
+    }
+
+    /**
+     * Clears the hexagon state and transition caches.
+     */
+    public void clearCaches() {
+        states.clear();
+        transitions.clear();
+    }
+
+    private HexState[] capture(GridTopology topology, boolean[] fixed, boolean[] visible,
+        int[] borderOwners, int[] frozenBorders) {
+        HexState[] result = new HexState[topology.size()];
+        for (int i = 0; i < result.length; ++i) {
+            Hexagon hex = topology.getHexagon(i);
+            fixed[i] = !hex.isActive();
+            visible[i] = !hex.isRotating();
+            borderOwners[i] = hex.getBorderOwnerMask();
+            frozenBorders[i] = hex.getFrozenBorderMask();
+            result[i] = intern(new HexState(hex.getCells(0), hex.getCells(1), hex.getStones(0),
+                hex.getStones(1), hex.getSpawners(0), hex.getSpawners(1)));
+        }
+        return result;
+    }
+
+    private HexState[] intern(HexState[] grid) {
+        HexState[] result = new HexState[grid.length];
+        for (int i = 0; i < grid.length; ++i) {
+            result[i] = intern(grid[i]);
+        }
+        return result;
+    }
+
+    private HexState intern(HexState state) {
+        HexState existing = states.get(state);
+        if (existing != null)
+            return existing;
+        state.id = nextStateId++;
+        states.put(state, state);
+        return state;
+    }
+
+    private HexState[] successor(GridTopology topology, HexState[] current, boolean[] fixed,
+        boolean[] visible, int[] borderOwners, int[] frozenBorders) {
+        int size = current.length;
+        HexState[] next = new HexState[size];
+        Neighborhood probe = new Neighborhood();
+        for (int i = 0; i < size; ++i) {
+            if (fixed[i]) {
+                next[i] = current[i];
+                continue;
+            }
+            probe.self = current[i];
+            probe.borderOwners = borderOwners[i];
+            probe.frozenBorders = frozenBorders[i];
+            for (int d = 0; d < DIRECTIONS; ++d) {
+                int neighbor = topology.getNeighbor(i, d);
+                if (neighbor < size && visible[neighbor]) {
+                    HexState state = current[neighbor];
+                    long maskLo = HexagonLayout.getHaloMask(d, 0);
+                    long maskHi = HexagonLayout.getHaloMask(d, 1);
+                    if ((borderOwners[i] & (1 << d)) != 0) {
+                        int border = HexagonLayout.getOppositeDirection(d);
+                        maskLo |= HexagonLayout.getBorderMask(border, 0);
+                        maskHi |= HexagonLayout.getBorderMask(border, 1);
+                    }
+                    probe.halo[2 * d] = state.lo & maskLo;
+                    probe.halo[2 * d + 1] = state.hi & maskHi;
+                } else {
+                    probe.halo[2 * d] = 0;
+                    probe.halo[2 * d + 1] = 0;
+                }
+            }
+            probe.rehash();
+
+            HexState result = transitions.get(probe);
+            if (result == null) {
+                ++cacheMisses;
+                result = intern(calculate(probe, rule, scratch));
+                transitions.put(probe.copy(), result);
+            } else {
+                ++cacheHits;
+            }
+            next[i] = result;
+        }
+        return next;
+    }
+
+    private static HexState calculate(Neighborhood neighborhood, LifeRule rule,
+        Hexagon.StepScratch scratch) {
+        HexState self = neighborhood.self;
+        long[] srcLo = scratch.srcLo;
+        long[] srcHi = scratch.srcHi;
+        for (int d = 0; d < DIRECTIONS; ++d) {
+            srcLo[d] = neighborhood.halo[2 * d];
+            srcHi[d] = neighborhood.halo[2 * d + 1];
+        }
+        // Import the shared cells owned by the neighbors
+        long[] full = scratch.self;
+        full[0] = self.lo;
+        full[1] = self.hi;
+        long ownedLo = HexagonLayout.ALL_CELLS[0];
+        long ownedHi = HexagonLayout.ALL_CELLS[1];
+        long frozenLo = 0;
+        long frozenHi = 0;
+        for (int d = 0; d < DIRECTIONS; ++d) {
+            if ((neighborhood.borderOwners & (1 << d)) != 0) {
+                HexagonLayout.importBorder(d, srcLo[d], srcHi[d], full);
+                ownedLo &= ~HexagonLayout.getBorderMask(d, 0);
+                ownedHi &= ~HexagonLayout.getBorderMask(d, 1);
+            }
+            if ((neighborhood.frozenBorders & (1 << d)) != 0) {
+                frozenLo |= HexagonLayout.getBorderMask(d, 0);
+                frozenHi |= HexagonLayout.getBorderMask(d, 1);
+            }
+        }
+        srcLo[HexagonLayout.SELF] = full[0];
+        srcHi[HexagonLayout.SELF] = full[1];
+        scratch.stones[0] = self.stoneLo;
+        scratch.stones[1] = self.stoneHi;
+        scratch.spawners[0] = self.spawnerLo;
+        scratch.spawners[1] = self.spawnerHi;
+        Hexagon.calculateNextGeneration(scratch, rule);
+        long[] next = scratch.next;
+        // The borders facing inactive neighbors keep their state
+        long lo = ((next[0] & ~frozenLo) | (self.lo & frozenLo)) & ownedLo;
+        long hi = ((next[1] & ~frozenHi) | (self.hi & frozenHi)) & ownedHi;
+        return new HexState(lo, hi, self.stoneLo, self.stoneHi, self.spawnerLo, self.spawnerHi);
+    }
+
+    /**
+     * The state of a single hexagon. Instances are hash-consed, so interned
+     * states can be compared by identity.
+     */
+    private static final class HexState {
+        private final long lo;
+        private final long hi;
+        private final long stoneLo;
+        private final long stoneHi;
+        private final long spawnerLo;
+        private final long spawnerHi;
+        private final int hash;
+        private int id = -1;
+
+        HexState(long lo, long hi, long stoneLo, long stoneHi, long spawnerLo, long spawnerHi) {
+            this.lo = lo;
+            this.hi = hi;
+            this.stoneLo = stoneLo;
+            this.stoneHi = stoneHi;
+            this.spawnerLo = spawnerLo;
+            this.spawnerHi = spawnerHi;
+            this.hash = Arrays.hashCode(new long[] { lo, hi, stoneLo, stoneHi, spawnerLo,
+                spawnerHi });
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof HexState))
+                return false;
+            HexState s = (HexState) o;
+            return lo == s.lo && hi == s.hi && stoneLo == s.stoneLo && stoneHi == s.stoneHi
+                && spawnerLo == s.spawnerLo && spawnerHi == s.spawnerHi;
+        }
+    }
+
+    /**
+     * The inputs of a hexagon transition: the interned state of the hexagon
+     * itself, and the cells it reads from its neighbors.
+     */
+    private static final class Neighborhood {
+        private HexState self;
+        /** The borders owned by the neighbors, as a bit mask of directions. */
+        private int borderOwners;
+        /** The owned borders facing inactive neighbors. */
+        private int frozenBorders;
+        private final long[] halo = new long[2 * DIRECTIONS];
+        private int hash;
+
+        void rehash() {
+            hash = ((self.id * 31 + borderOwners) * 31 + frozenBorders) * 31
+                + Arrays.hashCode(halo);
+        }
+
+        Neighborhood copy() {
+            Neighborhood c = new Neighborhood();
+            c.self = self;
+            c.borderOwners = borderOwners;
+            c.frozenBorders = frozenBorders;
+            System.arraycopy(halo, 0, c.halo, 0, halo.length);
+            c.hash = hash;
+            return c;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Neighborhood))
+                return false;
+            Neighborhood n = (Neighborhood) o;
+            return self == n.self && borderOwners == n.borderOwners
+                && frozenBorders == n.frozenBorders && Arrays.equals(halo, n.halo);
+        }
+    }
+
+    /**
+     * The state of the whole grid as an array of interned hexagon states.
+     */
+    private static final class GridState {
+        private final HexState[] hexagons;
+        private final int hash;
+
+        GridState(HexState[] hexagons) {
+            this.hexagons = hexagons;
+            int h = 1;
+            for (HexState s : hexagons) {
+                h = 31 * h + s.id;
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GridState))
+                return false;
+            HexState[] other = ((GridState) o).hexagons;
+            if (other.length != hexagons.length)
+                return false;
+            for (int i = 0; i < hexagons.length; ++i) {
+                if (hexagons[i] != other[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A set of lock stripes of a grid, held by the current thread. The stripes
+ * are always acquired in ascending order, so that two threads locking
+ * overlapping regions cannot deadlock. The stripes are reentrant, so a
+ * thread may lock a region again while already holding it, but it must not
+ * lock a region that is not contained in the regions it already holds.
+ *
+ * <p>
+ * Typical usage:
+ *
+ * <pre>
+ * RegionLock lock = hexagon.lockNeighborhood();
+ * try {
+ *     hexagon.setPattern(pattern);
+ * } finally {
+ *     lock.unlock();
+ * }
+ * </pre>
+ *
+ * @author Tuukka Haapasalo
+ * @see HexGrid#lockNeighborhood(Hexagon)
+ */
+public final class RegionLock {
+
+    private final ReentrantLock[] stripes;
+    private final int[] held;
+    private boolean locked;
+
+    /**
+     * Acquires the selected stripes in ascending order.
+     *
+     * @param stripes the lock stripes of the grid
+     * @param selected which of the stripes to acquire
+     */
+    RegionLock(ReentrantLock[] stripes, boolean[] selected) {
+        this.stripes = stripes;
+        int count = 0;
+        for (boolean s : selected) {
+            if (s)
+                ++count;
+        }
+        this.held = new int[count];
+        int n = 0;
+        for (int i = 0; i < selected.length; ++i) {
+            if (selected[i]) {
+                stripes[i].lock();
+                held[n++] = i;
+            }
+        }
+        this.locked = true;
+    }
+
+    /**
+     * Releases the stripes held by this lock.
+     *
+     * @throws IllegalStateException if the lock has already been released
+     */
+    public void unlock() {
+        if (!locked)
+            throw new IllegalStateException("Region lock already released");
+        locked = false;
+        for (int k = held.length - 1; k >= 0; --k) {
+            stripes[held[k]].unlock();
+        }
+    }
+
+}
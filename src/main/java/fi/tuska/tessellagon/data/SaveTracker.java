@@ -0,0 +1,139 @@
+package fi.tuska.tessellagon.data;
+
+import java.io.File;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the hexagons of a grid that have changed since its previous save,
+ * and collects the state of the grid for the next save (see
+ * {@link GridSaveFile}), so that saving to the same file again only needs
+ * to write the changed hexagons.
+ *
+ * <p>
+ * The saves are serialized by the save lock, which also guards the
+ * information of the previous save. The changed hexagons are guarded by the
+ * step lock of the grid.
+ *
+ * @author Tuukka Haapasalo
+ */
+final class SaveTracker {
+
+    private final HexGrid grid;
+    private final GridTopology topology;
+    /** Serializes the saves, and guards the information of the last save. */
+    private final ReentrantLock saveLock = new ReentrantLock();
+    /**
+     * Hexagons that may have changed since the state of the previous save
+     * was collected.
+     */
+    private final HexagonSet unsavedHexagons;
+    /**
+     * The file of the previous successful save, or null if the changed
+     * hexagons are not known.
+     */
+    private File savedFile;
+    /** The generation saved to {@link #savedFile}. */
+    private long savedGeneration;
+
+    SaveTracker(HexGrid grid, GridTopology topology) {
+        this.grid = grid;
+        this.topology = topology;
+        this.unsavedHexagons = new HexagonSet(topology.size());
+    }
+
+    /**
+     * Acquires the save lock, which must be held while saving the grid.
+     */
+    void lock() {
+        saveLock.lock();
+    }
+
+    void unlock() {
+        saveLock.unlock();
+    }
+
+    /**
+     * Marks the given hexagon as changed since the previous save. Must be
+     * called while holding the step lock.
+     */
+    void hexagonChanged(int index) {
+        unsavedHexagons.add(index);
+    }
+
+    /**
+     * @return true if the given file holds the given generation as saved by
+     * the previous successful save of the grid, so that only the hexagons
+     * changed since need to be written to it. Must be called holding the
+     * save lock.
+     */
+    boolean isSavedTo(File file, long generation) {
+        return file.equals(savedFile) && generation == savedGeneration;
+    }
+
+    /**
+     * Collects the state of the grid for a save. An incremental save only
+     * gets the hexagons that may have changed since the previous save was
+     * collected, as a patch; otherwise the whole grid is collected. Either
+     * way, the changed hexagons are forgotten, so the save must end with
+     * {@link #completed(File, Timeline.Checkpoint)} or
+     * {@link #failed(Timeline.Checkpoint)}. Must be called holding the save
+     * lock.
+     */
+    Timeline.Checkpoint collect(boolean incremental) {
+        grid.lockStepping();
+        RegionLock lock = null;
+        try {
+            // The pending edits have already changed the cells; the ones
+            // made after this are saved the next time
+            grid.getHistory().recordEdits();
+            lock = grid.lockAll();
+            savedFile = null;
+            CheckpointCollector collector;
+            if (incremental) {
+                unsavedHexagons.sort();
+                collector = new CheckpointCollector(topology, unsavedHexagons.size());
+                for (int k = 0; k < unsavedHexagons.size(); ++k) {
+                    collector.add(unsavedHexagons.get(k), true);
+                }
+            } else {
+                collector = new CheckpointCollector(topology, topology.size());
+                for (int i = 0; i < topology.size(); ++i) {
+                    collector.add(i, false);
+                }
+            }
+            unsavedHexagons.clear();
+            return collector.create(grid.getCurrentGeneration(), grid.getRule(), !incremental);
+        } finally {
+            if (lock != null)
+                lock.unlock();
+            grid.unlockStepping();
+        }
+    }
+
+    /**
+     * Remembers that the given state was saved to the given file, so that
+     * the next save to it can be incremental. Must be called holding the
+     * save lock.
+     */
+    void completed(File file, Timeline.Checkpoint save) {
+        savedFile = file;
+        savedGeneration = save.getGeneration();
+    }
+
+    /**
+     * Marks the hexagons of a save that did not complete as changed again.
+     * Must be called holding the save lock.
+     */
+    void failed(Timeline.Checkpoint save) {
+        savedFile = null;
+        grid.lockStepping();
+        try {
+            for (int k = 0; k < save.getHexagonCount(); ++k) {
+                unsavedHexagons.add(save.getHexagon(k));
+            }
+        } finally {
+            grid.unlockStepping();
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Drives the simulation on a dedicated thread, independently of the
+ * renderer. The scheduler can run in one of three modes:
+ * <ul>
+ * <li>{@link Mode#FixedRate}: one generation every fixed period.</li>
+ * <li>{@link Mode#TargetRate}: a target number of generations per second.
+ * Rates above the timer resolution are reached by stepping several
+ * generations in a batch.</li>
+ * <li>{@link Mode#Unlimited}: as fast as possible.</li>
+ * </ul>
+ *
+ * <p>
+ * When a step takes longer than the period, the scheduler either catches up
+ * by stepping all the missed generations in one batch (at most
+ * {@link #getMaxBatch()} at a time), or drops the missed frames and
+ * continues from the current time. The target rate mode always catches up.
+ * A {@link BatchStepListener} gets each batch in one call; the other
+ * listeners are stepped once per generation of the batch.
+ *
+ * <p>
+ * The listeners are notified of the changed hexagons from the scheduler
+ * thread, so listeners that render the grid should only record the change
+ * and do the actual drawing on their own thread.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class SimulationScheduler {
+
+    private static final Logger log = Logger.getLogger(SimulationScheduler.class);
+
+    public enum Mode {
+        FixedRate, TargetRate, Unlimited
+    };
+
+    public static final int DEFAULT_MAX_BATCH = 64;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final List<SimulatorStepListener> listeners =
+        new CopyOnWriteArrayList<SimulatorStepListener>();
+
+    private Mode mode = Mode.FixedRate;
+    private long periodNanos;
+    private boolean catchUp = true;
+    private int maxBatch = DEFAULT_MAX_BATCH;
+    /** Set when the timing changes, so that the schedule is restarted. */
+    private boolean rescheduled = true;
+
+    private Thread thread;
+    private volatile boolean running = false;
+    private volatile boolean paused = false;
+
+    private volatile long generation = 0;
+    private volatile long droppedGenerations = 0;
+
+    /**
+     * Creates a scheduler that steps one generation every periodMillis
+     * milliseconds.
+     */
+    public SimulationScheduler(long periodMillis) {
+        setFixedRate(periodMillis);
+    }
+
+    public void addListener(SimulatorStepListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SimulatorStepListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Steps one generation every periodMillis milliseconds.
+     */
+    public synchronized void setFixedRate(long periodMillis) {
+        if (periodMillis <= 0)
+            throw new IllegalArgumentException("Invalid period: " + periodMillis);
+        setTiming(Mode.FixedRate, periodMillis * NANOS_PER_MILLI);
+    }
+
+    /**
+     * Steps the given number of generations per second on average.
+     */
+    public synchronized void setTargetRate(double generationsPerSecond) {
+        if (!(generationsPerSecond > 0))
+            throw new IllegalArgumentException("Invalid rate: " + generationsPerSecond);
+        setTiming(Mode.TargetRate, Math.max(1, (long) (NANOS_PER_SECOND / generationsPerSecond)));
+    }
+
+    /**
+     * Steps the simulation as fast as possible.
+     */
+    public synchronized void setUnlimited() {
+        setTiming(Mode.Unlimited, 0);
+    }
+
+    private void setTiming(Mode mode, long periodNanos) {
+        this.mode = mode;
+        this.periodNanos = periodNanos;
+        this.rescheduled = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isCatchUp() {
+        return catchUp;
+    }
+
+    /**
+     * @param catchUp true to step the missed generations when late; false to
+     * drop them
+     */
+    public synchronized void setCatchUp(boolean catchUp) {
+        this.catchUp = catchUp;
+    }
+
+    public synchronized int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /**
+     * @param maxBatch the maximum number of generations stepped at once
+     */
+    public synchronized void setMaxBatch(int maxBatch) {
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("Invalid batch size: " + maxBatch);
+        this.maxBatch = maxBatch;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+        this.rescheduled = true;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of generations stepped so far
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the number of generations dropped because the simulation was
+     * late
+     */
+    public long getDroppedGenerations() {
+        return droppedGenerations;
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * Starts the simulation thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException("Simulation scheduler already started");
+        running = true;
+        rescheduled = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSimulation();
+            }
+        }, "SimulationScheduler");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Simulation scheduler started in mode " + mode);
+    }
+
+    /**
+     * Stops the simulation thread and waits for the current step to finish.
+     */
+    public void stop() {
+        Thread stopped;
+        synchronized (this) {
+            if (thread == null)
+                return;
+            running = false;
+            stopped = thread;
+            thread = null;
+            notifyAll();
+        }
+        try {
+            stopped.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Simulation scheduler stopped at generation " + generation);
+    }
+
+    private void runSimulation() {
+        long next = 0;
+        while (running) {
+            int batch;
+            synchronized (this) {
+                if (paused) {
+                    waitFor(0);
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (rescheduled) {
+                    rescheduled = false;
+                    next = now;
+                }
+                if (mode == Mode.Unlimited) {
+                    batch = maxBatch;
+                } else {
+                    if (now - next < 0) {
+                        waitFor(next - now);
+                        continue;
+                    }
+                    long due = (now - next) / periodNanos + 1;
+                    long limit = (catchUp || mode == Mode.TargetRate) ? maxBatch : 1;
+                    batch = (int) Math.min(due, limit);
+                    if (batch < due) {
+                        droppedGenerations += due - batch;
+                        if (log.isDebugEnabled())
+                            log.debug("Simulation is late, dropping " + (due - batch)
+                                + " generations");
+                    }
+                    next += due * periodNanos;
+                }
+            }
+            step(batch);
+        }
+    }
+
+    private void step(int batch) {
+        for (SimulatorStepListener listener : listeners) {
+            try {
+                if (listener instanceof BatchStepListener) {
+                    ((BatchStepListener) listener).step(batch);
+                } else {
+                    for (int i = 0; i < batch; ++i) {
+                        listener.stepSimulation();
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.error("Error when stepping the simulation", e);
+            }
+        }
+        generation += batch;
+    }
+
+    /**
+     * Waits for the given time, or until the timing changes. Must be called
+     * while holding the lock of this scheduler.
+     *
+     * @param nanos the time to wait, or zero to wait until notified
+     */
+    private void waitFor(long nanos) {
+        try {
+            if (nanos == 0) {
+                wait();
+            } else {
+                wait(nanos / NANOS_PER_MILLI, (int) (nanos % NANOS_PER_MILLI));
+            }
+        } catch (InterruptedException e) {
+            running = false;
+        }
+    }
+
+}
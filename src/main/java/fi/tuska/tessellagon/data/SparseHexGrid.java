@@ -0,0 +1,415 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import fi.tuska.tessellagon.data.HexGrid.Direction;
+
+/**
+ * An unbounded hexagon grid that only stores the hexagons that contain
+ * something. The hexagon coordinates follow the layout of {@link HexGrid},
+ * but they may be any integers, including negative ones. Hexagons that have
+ * not been allocated are dead, so memory use is proportional to the live
+ * area rather than to its bounding box.
+ *
+ * <p>
+ * Hexagons are allocated on demand: when alive cells appear on a border
+ * that does not face a hexagon, the neighbor on that side is allocated so
+ * that the cells can spread to it. Hexagons that have stayed empty are
+ * freed every {@link #SWEEP_INTERVAL} generations. The shared border cells
+ * are owned as in {@link HexGrid}, and the ownership is transferred when
+ * hexagons are allocated and freed, so the results are the same as on a
+ * large enough fixed grid.
+ *
+ * <p>
+ * The hexagons are kept in square chunks of {@link #CHUNK_SIZE} x
+ * {@link #CHUNK_SIZE} hexagons, so that the neighbors of a hexagon are
+ * usually found in the same chunk. The whole grid is guarded by a single
+ * lock, which {@link #lockNeighborhood(Hexagon)} returns.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class SparseHexGrid extends HexagonContainer implements BatchStepListener {
+
+    private static final Logger log = Logger.getLogger(SparseHexGrid.class);
+
+    private static final int CHUNK_BITS = 3;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** How often the empty hexagons are freed, in generations. */
+    public static final int SWEEP_INTERVAL = 32;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    /** Neighbor offsets by direction ordinal, for even and odd rows. */
+    private static final int[] DX_EVEN = { 0, 1, 1, 0, 0, 0 };
+    private static final int[] DX_ODD = { 0, 0, 0, 0, -1, -1 };
+    private static final int[] DY = { 2, 1, -1, -2, -1, 1 };
+
+    /**
+     * A square block of hexagons.
+     */
+    private static class Chunk {
+        private final Hexagon[] hexagons = new Hexagon[CHUNK_SIZE * CHUNK_SIZE];
+        private int count = 0;
+    }
+
+    private final Map<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+    /** The dead hexagon that stands for the hexagons that are not allocated. */
+    private final Hexagon emptyHexagon;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Scratch space for stepping the hexagons; used under the lock. */
+    private final Hexagon.StepScratch scratch = new Hexagon.StepScratch();
+
+    /** Hexagons to be stepped in the next generation. */
+    private Set<Hexagon> activeHexagons = new LinkedHashSet<Hexagon>();
+    /** Hexagons that have been modified outside of the simulation. */
+    private final Set<Hexagon> modifiedHexagons = new LinkedHashSet<Hexagon>();
+
+    private volatile LifeRule rule;
+    private volatile long generation = 0;
+    private volatile int hexagonCount = 0;
+
+    public SparseHexGrid() {
+        this(LifeRule.DEFAULT);
+    }
+
+    public SparseHexGrid(LifeRule rule) {
+        checkRule(rule);
+        this.rule = rule;
+        this.emptyHexagon = new Hexagon(this, Integer.MIN_VALUE, Integer.MIN_VALUE, false);
+    }
+
+    /**
+     * Rules that give birth to cells with no alive neighbors would fill the
+     * whole unbounded grid in a single generation.
+     */
+    private static void checkRule(LifeRule rule) {
+        if (rule.isBorn(0))
+            throw new IllegalArgumentException("Rule " + rule
+                + " cannot be used on an unbounded grid");
+    }
+
+    @Override
+    public LifeRule getRule() {
+        return rule;
+    }
+
+    /**
+     * Sets the birth/survival rule of the simulation. All hexagons are
+     * recalculated in the next generation.
+     *
+     * @throws IllegalArgumentException if the rule gives birth to cells
+     * that have no alive neighbors
+     */
+    public void setRule(LifeRule rule) {
+        checkRule(rule);
+        lock.lock();
+        try {
+            this.rule = rule;
+            for (Chunk chunk : chunks.values()) {
+                for (Hexagon hex : chunk.hexagons) {
+                    if (hex != null)
+                        activeHexagons.add(hex);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of generations stepped so far
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the number of allocated hexagons
+     */
+    public int getHexagonCount() {
+        return hexagonCount;
+    }
+
+    /**
+     * @return the total number of alive cells in the grid; each shared cell
+     * is counted once
+     */
+    public long getPopulation() {
+        lock.lock();
+        try {
+            long population = 0;
+            for (Chunk chunk : chunks.values()) {
+                for (Hexagon hex : chunk.hexagons) {
+                    if (hex != null)
+                        population += hex.getOwnedPopulation();
+                }
+            }
+            return population;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the hexagon at the given position, or null if it has not been
+     * allocated
+     */
+    public Hexagon getHexagon(int x, int y) {
+        lock.lock();
+        try {
+            return findHexagon(x, y);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the hexagon at the given position, allocating it if
+     * necessary. The hexagon can then be edited like the hexagons of a
+     * {@link HexGrid}; it is freed again if it stays empty.
+     */
+    public Hexagon getOrCreateHexagon(int x, int y) {
+        lock.lock();
+        try {
+            Hexagon hex = findHexagon(x, y);
+            return hex != null ? hex : allocate(x, y);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Hexagon getNeighbor(int x, int y, Direction direction) {
+        int d = direction.ordinal();
+        Hexagon hex = getHexagon(getNeighborX(x, y, d), y + DY[d]);
+        return hex != null ? hex : emptyHexagon;
+    }
+
+    /**
+     * Locks the whole grid. Regions of a sparse grid are not locked
+     * separately.
+     */
+    @Override
+    public RegionLock lockNeighborhood(Hexagon hexagon) {
+        return new RegionLock(new ReentrantLock[] { lock }, new boolean[] { true });
+    }
+
+    @Override
+    void hexagonModified(Hexagon hexagon) {
+        synchronized (modifiedHexagons) {
+            modifiedHexagons.add(hexagon);
+        }
+    }
+
+    /**
+     * Rotated hexagons are also reported as modified, and their rotations
+     * are normalized when the modified hexagons are scheduled.
+     */
+    @Override
+    void hexagonRotated(Hexagon hexagon) {
+    }
+
+    private static int getNeighborX(int x, int y, int direction) {
+        return x + ((y & 1) == 0 ? DX_EVEN[direction] : DX_ODD[direction]);
+    }
+
+    private static long getChunkKey(int x, int y) {
+        return ((long) (x >> CHUNK_BITS) << 32) | ((y >> CHUNK_BITS) & 0xffffffffL);
+    }
+
+    private static int getChunkSlot(int x, int y) {
+        return (x & CHUNK_MASK) + ((y & CHUNK_MASK) << CHUNK_BITS);
+    }
+
+    private Hexagon findHexagon(int x, int y) {
+        Chunk chunk = chunks.get(getChunkKey(x, y));
+        return chunk != null ? chunk.hexagons[getChunkSlot(x, y)] : null;
+    }
+
+    /**
+     * Allocates a new hexagon and takes over the ownership of its shared
+     * borders from the neighbors, as {@link HexGrid} would have assigned
+     * them.
+     */
+    private Hexagon allocate(int x, int y) {
+        Hexagon hex = new Hexagon(this, x, y, true);
+        for (int d = 0; d < DIRECTIONS.length; ++d) {
+            Hexagon neighbor = findHexagon(getNeighborX(x, y, d), y + DY[d]);
+            if (neighbor == null)
+                continue;
+            if (HexagonLayout.ownsBorder(d)) {
+                hex.takeBorder(d, neighbor);
+            } else {
+                hex.setBorderOwner(d, neighbor);
+            }
+        }
+
+        long key = getChunkKey(x, y);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = new Chunk();
+            chunks.put(key, chunk);
+        }
+        chunk.hexagons[getChunkSlot(x, y)] = hex;
+        ++chunk.count;
+        ++hexagonCount;
+        if (log.isDebugEnabled())
+            log.debug("Allocated hexagon " + x + "," + y);
+        return hex;
+    }
+
+    private void free(Hexagon hex) {
+        hex.detach();
+        long key = getChunkKey(hex.getX(), hex.getY());
+        Chunk chunk = chunks.get(key);
+        chunk.hexagons[getChunkSlot(hex.getX(), hex.getY())] = null;
+        if (--chunk.count == 0)
+            chunks.remove(key);
+        --hexagonCount;
+    }
+
+    private boolean isAllocated(Hexagon hex) {
+        return findHexagon(hex.getX(), hex.getY()) == hex;
+    }
+
+    @Override
+    public void stepSimulation() {
+        step(1);
+    }
+
+    /**
+     * Steps the simulation by the given number of generations. The change
+     * listeners of the hexagons are notified once at the end.
+     */
+    public void step(int generations) {
+        lock.lock();
+        try {
+            Set<Hexagon> changedHexagons = new LinkedHashSet<Hexagon>();
+            for (int g = 0; g < generations; ++g) {
+                scheduleModifiedHexagons();
+                stepGeneration(changedHexagons);
+                ++generation;
+                if (generation % SWEEP_INTERVAL == 0)
+                    freeEmptyHexagons();
+            }
+            for (Hexagon hex : changedHexagons) {
+                hex.invalidate();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleModifiedHexagons() {
+        synchronized (modifiedHexagons) {
+            for (Hexagon hex : modifiedHexagons) {
+                // Ignore edits to hexagons that have already been freed
+                if (isAllocated(hex)) {
+                    hex.normalizeRotation();
+                    schedule(activeHexagons, hex);
+                    expand(hex, activeHexagons);
+                }
+            }
+            modifiedHexagons.clear();
+        }
+    }
+
+    private void stepGeneration(Set<Hexagon> changedHexagons) {
+        LifeRule rule = this.rule;
+        Hexagon[] neighbors = scratch.neighbors;
+        List<Hexagon> changed = new ArrayList<Hexagon>();
+        for (Hexagon hex : activeHexagons) {
+            if (hex.isActive()) {
+                getNeighbors(hex, neighbors);
+                if (hex.stepSimulation(neighbors, rule, scratch))
+                    changed.add(hex);
+            }
+        }
+
+        Set<Hexagon> next = new LinkedHashSet<Hexagon>();
+        for (Hexagon hex : changed) {
+            hex.addChangedViewers(changedHexagons);
+            hex.flipCellArrays(false);
+            changedHexagons.add(hex);
+            schedule(next, hex);
+        }
+        for (Hexagon hex : changed) {
+            expand(hex, next);
+        }
+        activeHexagons = next;
+    }
+
+    private void getNeighbors(Hexagon hex, Hexagon[] result) {
+        for (int d = 0; d < DIRECTIONS.length; ++d) {
+            Hexagon neighbor = findHexagon(getNeighborX(hex.getX(), hex.getY(), d), hex.getY()
+                + DY[d]);
+            result[d] = neighbor != null ? neighbor : emptyHexagon;
+        }
+    }
+
+    /**
+     * Adds the given hexagon and its allocated neighbors to the given set.
+     */
+    private void schedule(Set<Hexagon> set, Hexagon hex) {
+        set.add(hex);
+        for (int d = 0; d < DIRECTIONS.length; ++d) {
+            Hexagon neighbor = findHexagon(getNeighborX(hex.getX(), hex.getY(), d), hex.getY()
+                + DY[d]);
+            if (neighbor != null)
+                set.add(neighbor);
+        }
+    }
+
+    /**
+     * Allocates the missing neighbors of the given hexagon that face alive
+     * cells, as the cells may spread to them in the next generation. The
+     * new hexagons take over shared cells from their neighbors, so they are
+     * expanded as well.
+     */
+    private void expand(Hexagon hex, Set<Hexagon> active) {
+        for (int d = 0; d < DIRECTIONS.length; ++d) {
+            int x = getNeighborX(hex.getX(), hex.getY(), d);
+            int y = hex.getY() + DY[d];
+            if (findHexagon(x, y) == null && hex.hasAliveCellsFacing(d)) {
+                Hexagon neighbor = allocate(x, y);
+                active.add(neighbor);
+                expand(neighbor, active);
+            }
+        }
+    }
+
+    /**
+     * Frees the hexagons that are empty and were not changed in the last
+     * generation. They cannot change before their neighbors do, and the
+     * neighbors allocate them again if needed.
+     */
+    private void freeEmptyHexagons() {
+        List<Hexagon> empty = new ArrayList<Hexagon>();
+        synchronized (modifiedHexagons) {
+            for (Chunk chunk : chunks.values()) {
+                for (Hexagon hex : chunk.hexagons) {
+                    if (hex != null && hex.isActive() && !activeHexagons.contains(hex)
+                        && !modifiedHexagons.contains(hex) && hex.isEmpty())
+                        empty.add(hex);
+                }
+            }
+        }
+        for (Hexagon hex : empty) {
+            free(hex);
+        }
+        if (!empty.isEmpty() && log.isDebugEnabled())
+            log.debug("Freed " + empty.size() + " empty hexagons, " + hexagonCount + " left");
+    }
+
+}
@@ -0,0 +1,362 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The checkpoints of the history of a {@link HexGrid}, for seeking to
+ * earlier generations (see {@link HexGrid#seek(long)}).
+ *
+ * <p>
+ * The grid records a checkpoint of all its cells every
+ * {@link #getInterval()} generations. The changes made outside of the
+ * simulation are not recorded as checkpoints; instead, the grid records a
+ * patch that holds only the edited hexagons and their neighbors, and the
+ * rule. A seek restores the latest checkpoint at or before the target, and
+ * recalculates the generations after it, applying the patches in their
+ * generations, so a seek never needs to recalculate more than an interval
+ * of generations. The checkpoints and the patches are packed two bits per
+ * cell like the records of a {@link GridSaveFile}, and only store the
+ * hexagons that are not empty.
+ *
+ * <p>
+ * When the history diverges from the recorded one, because the grid was
+ * modified after seeking back, the checkpoints and the patches after the
+ * modification are dropped. The oldest checkpoints are dropped when there
+ * are more than {@link #getCapacity()} of them, or when the timeline takes
+ * more than {@link #getMaxBytes()} bytes. The timeline can also be disabled
+ * altogether, so that the grid does not spend time or memory on it.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class Timeline {
+
+    public static final int DEFAULT_INTERVAL = 100;
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /** The estimated size of a checkpoint without its hexagons, in bytes. */
+    private static final int CHECKPOINT_OVERHEAD = 64;
+
+    /**
+     * The state of the grid, or of some of its hexagons, at a generation.
+     */
+    static final class Checkpoint {
+        private final long generation;
+        private final LifeRule rule;
+        /** The topology indices of the stored hexagons, in ascending order. */
+        private final int[] hexagons;
+        /** The packed records of the stored hexagons. */
+        private final long[] records;
+        /** True for the whole grid, false for a patch. */
+        private final boolean complete;
+
+        Checkpoint(long generation, LifeRule rule, int[] hexagons, long[] records,
+            boolean complete) {
+            assert records.length == hexagons.length * GridSaveFile.RECORD_SIZE;
+            this.generation = generation;
+            this.rule = rule;
+            this.hexagons = hexagons;
+            this.records = records;
+            this.complete = complete;
+        }
+
+        /**
+         * Creates a checkpoint of the whole grid from the states collected
+         * with {@link Hexagon#getEditState(long[], int)}.
+         */
+        static Checkpoint fromStates(long generation, LifeRule rule, int[] hexagons,
+            long[] states, byte[] orientations) {
+            long[] records = new long[hexagons.length * GridSaveFile.RECORD_SIZE];
+            long[] record = new long[GridSaveFile.RECORD_SIZE];
+            for (int i = 0; i < hexagons.length; ++i) {
+                GridSaveFile.encode(states, i * Hexagon.EDIT_STATE_SIZE, orientations[i],
+                    record);
+                System.arraycopy(record, 0, records, i * record.length, record.length);
+            }
+            return new Checkpoint(generation, rule, hexagons, records, true);
+        }
+
+        long getGeneration() {
+            return generation;
+        }
+
+        LifeRule getRule() {
+            return rule;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        int getHexagonCount() {
+            return hexagons.length;
+        }
+
+        int getHexagon(int i) {
+            return hexagons[i];
+        }
+
+        /**
+         * Unpacks the state of the given stored hexagon, for
+         * {@link Hexagon#setEditState(long[], int, int)}.
+         *
+         * @return the orientation of the hexagon
+         */
+        int getState(int i, long[] state, int offset) {
+            long[] record = new long[GridSaveFile.RECORD_SIZE];
+            getRecord(i, record);
+            return GridSaveFile.decode(record, state, offset);
+        }
+
+        /**
+         * Copies the packed record of the given stored hexagon.
+         */
+        void getRecord(int i, long[] record) {
+            System.arraycopy(records, i * record.length, record, 0, record.length);
+        }
+
+        /**
+         * @return the estimated size of this checkpoint in memory, in bytes
+         */
+        long getSize() {
+            return CHECKPOINT_OVERHEAD + 4L * hexagons.length + 8L * records.length;
+        }
+    }
+
+    /**
+     * The checkpoints and the patches, in ascending order of generation, and
+     * in the order in which they were recorded within a generation.
+     */
+    private final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+    private int interval = DEFAULT_INTERVAL;
+    private int capacity = DEFAULT_CAPACITY;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private boolean enabled = true;
+    /** The number of complete checkpoints. */
+    private int completeCount = 0;
+    private long bytes = 0;
+
+    Timeline() {
+    }
+
+    public synchronized int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @param interval the number of generations between the regular
+     * checkpoints; also the maximum number of generations that a seek
+     * recalculates
+     */
+    public synchronized void setInterval(int interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        this.interval = interval;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param capacity the maximum number of checkpoints; the oldest ones are
+     * dropped
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        trim();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes the maximum estimated size of the timeline in memory;
+     * the oldest checkpoints are dropped, but the latest one is always kept
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 1)
+            throw new IllegalArgumentException("Invalid maximum size: " + maxBytes);
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables recording the timeline. Disabling forgets the
+     * recorded checkpoints, so the grid can then only be sought forward.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled)
+            clear();
+    }
+
+    /**
+     * @return the number of checkpoints recorded, not counting the patches
+     */
+    public synchronized int size() {
+        return completeCount;
+    }
+
+    /**
+     * @return the estimated size of the recorded checkpoints and patches in
+     * memory, in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the earliest generation that can be sought to, or -1 if no
+     * checkpoints have been recorded
+     */
+    public synchronized long getFirstGeneration() {
+        for (Checkpoint checkpoint : checkpoints) {
+            if (checkpoint.complete)
+                return checkpoint.generation;
+        }
+        return -1;
+    }
+
+    /**
+     * Forgets all the checkpoints.
+     */
+    public synchronized void clear() {
+        checkpoints.clear();
+        completeCount = 0;
+        bytes = 0;
+    }
+
+    /**
+     * @return true if a regular checkpoint should be recorded at the given
+     * generation
+     */
+    synchronized boolean isDue(long generation) {
+        if (!enabled)
+            return false;
+        Checkpoint latest = find(generation);
+        return latest == null || generation - latest.generation >= interval;
+    }
+
+    /**
+     * Adds a checkpoint or a patch. A patch replaces the history, as the
+     * grid was modified, so it drops the later checkpoints and patches. A
+     * checkpoint is ignored if there already is one at its generation.
+     */
+    synchronized void add(Checkpoint checkpoint) {
+        if (!enabled)
+            return;
+        int position = indexAfter(checkpoint.generation);
+        if (!checkpoint.complete) {
+            // The later entries are from the old history; the ones at the
+            // same generation are still valid, as the patch was made on top
+            // of them
+            while (checkpoints.size() > position) {
+                remove(checkpoints.size() - 1);
+            }
+        } else {
+            Checkpoint latest = find(checkpoint.generation);
+            if (latest != null && latest.generation == checkpoint.generation)
+                return;
+        }
+        checkpoints.add(position, checkpoint);
+        bytes += checkpoint.getSize();
+        if (checkpoint.complete)
+            ++completeCount;
+        trim();
+    }
+
+    /**
+     * @return the latest checkpoint at or before the given generation, or
+     * null if there is none
+     */
+    synchronized Checkpoint find(long generation) {
+        for (int i = indexAfter(generation) - 1; i >= 0; --i) {
+            if (checkpoints.get(i).complete)
+                return checkpoints.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * @return the patches recorded after the given checkpoint, up to and
+     * including the given generation, in the order in which they must be
+     * applied
+     */
+    synchronized List<Checkpoint> getPatches(Checkpoint checkpoint, long to) {
+        int position = indexAfter(checkpoint.generation) - 1;
+        while (position >= 0 && checkpoints.get(position) != checkpoint) {
+            --position;
+        }
+        return getPatches(position + 1, to);
+    }
+
+    /**
+     * @return the patches of the generations after the given one, up to and
+     * including the generation to, in the order in which they must be
+     * applied
+     */
+    synchronized List<Checkpoint> getPatches(long after, long to) {
+        return getPatches(indexAfter(after), to);
+    }
+
+    private List<Checkpoint> getPatches(int from, long to) {
+        List<Checkpoint> patches = new ArrayList<Checkpoint>();
+        for (int i = from; i < checkpoints.size() && checkpoints.get(i).generation <= to; ++i) {
+            if (!checkpoints.get(i).complete)
+                patches.add(checkpoints.get(i));
+        }
+        return patches;
+    }
+
+    /**
+     * @return the index of the first entry after the given generation
+     */
+    private int indexAfter(long generation) {
+        int low = 0;
+        int high = checkpoints.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (checkpoints.get(middle).generation <= generation) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Drops the oldest checkpoints, and the patches that follow them, until
+     * the timeline is within its bounds. The latest checkpoint is kept.
+     */
+    private void trim() {
+        while (completeCount > 1 && (completeCount > capacity || bytes > maxBytes)) {
+            // Drop the first checkpoint, and the patches up to the second
+            // one, as they cannot be applied without the first one
+            while (!checkpoints.get(0).complete) {
+                remove(0);
+            }
+            remove(0);
+            while (!checkpoints.get(0).complete) {
+                remove(0);
+            }
+        }
+    }
+
+    private void remove(int index) {
+        Checkpoint checkpoint = checkpoints.remove(index);
+        bytes -= checkpoint.getSize();
+        if (checkpoint.complete)
+            --completeCount;
+    }
+
+}
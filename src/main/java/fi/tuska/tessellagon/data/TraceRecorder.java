@@ -0,0 +1,397 @@
+package fi.tuska.tessellagon.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records a session of a {@link HexGrid} into an append-only binary trace,
+ * for replaying it later with {@link TraceReplayer}. The trace starts with
+ * the state of the grid, followed by the edits of the user (as recorded in
+ * the {@link EditJournal}), the rule changes, and the cells of the hexagons
+ * that changed in each generation. Whenever the grid is replaced wholesale,
+ * for example by seeking, the whole state is recorded again.
+ *
+ * <p>
+ * The threads that step and edit the grid only collect the changes and
+ * queue them; the events are encoded and written by a background thread.
+ * The events are queued while holding the locks of the hexagons that they
+ * change, so the events that touch the same hexagons are queued in the
+ * order in which they happened. If the writer falls behind by more than
+ * {@link #MAX_PENDING_BYTES} bytes, the recording stops rather than slowing
+ * down the simulation or running out of memory; the trace then ends at the
+ * last event that could be queued.
+ *
+ * <p>
+ * The trace is written in little-endian order. It starts with a magic
+ * number and a version, and each event starts with its type.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class TraceRecorder {
+
+    private static final Logger log = Logger.getLogger(TraceRecorder.class);
+
+    /** The magic number at the start of a trace: "TessTrac". */
+    static final long MAGIC = 0x5465737354726163L;
+    static final long VERSION = 1;
+
+    /** The whole state of the grid. */
+    static final byte EVENT_STATE = 1;
+    /** The cells of the hexagons that changed in a generation. */
+    static final byte EVENT_GENERATION = 2;
+    /** The XOR deltas of an edit. */
+    static final byte EVENT_EDIT = 3;
+    /** The rotation of a hexagon. */
+    static final byte EVENT_ROTATION = 4;
+    /** A change of the rule. */
+    static final byte EVENT_RULE = 5;
+    /** Stops the writer; not written to the trace. */
+    private static final byte EVENT_END = 0;
+
+    /**
+     * The maximum size of the events waiting to be written. A single larger
+     * event, such as the state of a very large grid, is queued if nothing
+     * else is.
+     */
+    public static final long MAX_PENDING_BYTES = 64L << 20;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /** A queued event. */
+    private static final class Event {
+        private final byte type;
+        private final long generation;
+        private long sequence;
+        /** The approximate size of the event in memory. */
+        private long size;
+        private int value;
+        private int[] indices;
+        private Hexagon[] hexagons;
+        private long[] states;
+        private Timeline.Checkpoint checkpoint;
+        private LifeRule rule;
+
+        private Event(byte type, long generation) {
+            this.type = type;
+            this.generation = generation;
+        }
+    }
+
+    private final HexGrid grid;
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(
+        ByteOrder.LITTLE_ENDIAN);
+    private final BlockingQueue<Event> queue = new LinkedBlockingQueue<Event>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Thread writer;
+
+    private final AtomicLong sequence = new AtomicLong();
+    /** The sequence number of the first event that could not be queued. */
+    private volatile long lostSequence = Long.MAX_VALUE;
+    private volatile long written = 0;
+
+    /** The hexagons changed in the current generation, by the stepping thread. */
+    private int[] changedIndices = new int[64];
+    private long[] changedCells = new long[128];
+    private int changed = 0;
+
+    private TraceRecorder(HexGrid grid, File file, FileChannel channel) {
+        this.grid = grid;
+        this.file = file;
+        this.channel = channel;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEvents();
+            }
+        }, "TraceRecorder");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Starts recording the given grid into the given file. An existing file
+     * is overwritten.
+     *
+     * @throws IOException if the file cannot be created
+     */
+    public static TraceRecorder start(HexGrid grid, File file) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        TraceRecorder recorder = new TraceRecorder(grid, file, output.getChannel());
+        recorder.buffer.putLong(MAGIC).putLong(VERSION);
+        recorder.writer.start();
+        grid.setTraceRecorder(recorder);
+        log.info("Started recording a trace into " + file);
+        return recorder;
+    }
+
+    /**
+     * Stops recording, and waits until the queued events have been written.
+     *
+     * @throws IOException if the trace could not be written
+     */
+    public void stop() throws IOException {
+        grid.setTraceRecorder(null);
+        try {
+            queue.put(new Event(EVENT_END, 0));
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (isOverflowed())
+            log.warn("The trace " + file + " ended early, as the recording fell behind");
+        log.info("Stopped recording the trace " + file + ": " + written + " event(s)");
+    }
+
+    /**
+     * @return true if events were lost because the writer fell behind, so
+     * that the trace ends early
+     */
+    public boolean isOverflowed() {
+        return lostSequence != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of events written so far
+     */
+    public long getEventCount() {
+        return written;
+    }
+
+    private void enqueue(Event event, long size) {
+        event.sequence = sequence.getAndIncrement();
+        if (event.sequence > lostSequence)
+            return;
+        event.size = size;
+        long pending = pendingBytes.getAndAdd(size);
+        if (pending == 0 || pending + size <= MAX_PENDING_BYTES) {
+            queue.add(event);
+            return;
+        }
+        pendingBytes.addAndGet(-size);
+        synchronized (this) {
+            if (event.sequence < lostSequence)
+                lostSequence = event.sequence;
+        }
+    }
+
+    /**
+     * Records the whole state of the grid. Must be called while holding the
+     * lock of the whole grid.
+     */
+    void state(Timeline.Checkpoint checkpoint) {
+        Event event = new Event(EVENT_STATE, checkpoint.getGeneration());
+        event.checkpoint = checkpoint;
+        enqueue(event, (4 + 1 + 8 * Hexagon.EDIT_STATE_SIZE) * (long) checkpoint
+            .getHexagonCount());
+    }
+
+    /**
+     * Records the next cells of a hexagon that changed in the current
+     * generation. Called by the stepping thread.
+     */
+    void hexagonChanged(int index, long lo, long hi) {
+        if (changed == changedIndices.length) {
+            changedIndices = Arrays.copyOf(changedIndices, 2 * changed);
+            changedCells = Arrays.copyOf(changedCells, 4 * changed);
+        }
+        changedIndices[changed] = index;
+        changedCells[2 * changed] = lo;
+        changedCells[2 * changed + 1] = hi;
+        ++changed;
+    }
+
+    /**
+     * Records the hexagons changed since the previous generation. Called by
+     * the stepping thread, while holding the locks of the changed hexagons.
+     *
+     * @param generation the number of the generation that was completed
+     */
+    void generationCompleted(long generation) {
+        Event event = new Event(EVENT_GENERATION, generation);
+        event.indices = Arrays.copyOf(changedIndices, changed);
+        event.states = Arrays.copyOf(changedCells, 2 * changed);
+        changed = 0;
+        enqueue(event, 4 * event.indices.length + 8 * event.states.length);
+    }
+
+    /**
+     * Records an edit as the XOR deltas of the edit states of the given
+     * hexagons. Must be called while holding the locks of the hexagons.
+     */
+    void edit(long generation, Hexagon[] hexagons, long[] delta) {
+        Event event = new Event(EVENT_EDIT, generation);
+        event.hexagons = hexagons;
+        event.states = delta;
+        enqueue(event, 8 * delta.length);
+    }
+
+    /**
+     * Records a rotation of a hexagon. Must be called while holding the lock
+     * of the neighborhood of the hexagon.
+     */
+    void rotation(long generation, Hexagon hexagon, int sixths) {
+        Event event = new Event(EVENT_ROTATION, generation);
+        event.hexagons = new Hexagon[] { hexagon };
+        event.value = sixths;
+        enqueue(event, 0);
+    }
+
+    /**
+     * Records a change of the rule. Must be called while holding the step
+     * lock.
+     */
+    void rule(long generation, LifeRule rule) {
+        Event event = new Event(EVENT_RULE, generation);
+        event.rule = rule;
+        enqueue(event, 0);
+    }
+
+    private void writeEvents() {
+        while (true) {
+            Event event = queue.poll();
+            try {
+                if (event == null) {
+                    // Write out what has been encoded while waiting
+                    flush();
+                    event = queue.take();
+                }
+                if (event.type == EVENT_END) {
+                    flush();
+                    return;
+                }
+                pendingBytes.addAndGet(-event.size);
+                if (event.sequence < lostSequence) {
+                    write(event);
+                    ++written;
+                }
+            } catch (IOException e) {
+                // Drop the rest of the events, so that the trace ends at a
+                // complete event if possible
+                log.error("Could not write the trace " + file, e);
+                lostSequence = 0;
+                buffer.clear();
+            } catch (InterruptedException e) {
+                log.warn("Trace writer interrupted");
+                return;
+            }
+        }
+    }
+
+    private void write(Event event) throws IOException {
+        ensure(1 + 8);
+        buffer.put(event.type);
+        buffer.putLong(event.generation);
+        switch (event.type) {
+        case EVENT_STATE:
+            writeState(event.checkpoint);
+            break;
+
+        case EVENT_GENERATION:
+            ensure(4);
+            buffer.putInt(event.indices.length);
+            for (int i = 0; i < event.indices.length; ++i) {
+                ensure(4 + 2 * 8);
+                buffer.putInt(event.indices[i]);
+                buffer.putLong(event.states[2 * i]);
+                buffer.putLong(event.states[2 * i + 1]);
+            }
+            break;
+
+        case EVENT_EDIT:
+            ensure(4);
+            buffer.putInt(event.hexagons.length);
+            for (int i = 0; i < event.hexagons.length; ++i) {
+                ensure(4 + Hexagon.EDIT_STATE_SIZE * 8);
+                buffer.putInt(event.hexagons[i].getIndex());
+                for (int k = 0; k < Hexagon.EDIT_STATE_SIZE; ++k) {
+                    buffer.putLong(event.states[i * Hexagon.EDIT_STATE_SIZE + k]);
+                }
+            }
+            break;
+
+        case EVENT_ROTATION:
+            ensure(2 * 4);
+            buffer.putInt(event.hexagons[0].getIndex());
+            buffer.putInt(event.value);
+            break;
+
+        case EVENT_RULE:
+            ensure(2 * 4);
+            buffer.putInt(event.rule.getBirthMask());
+            buffer.putInt(event.rule.getSurvivalMask());
+            break;
+
+        default:
+            throw new IllegalStateException("Invalid trace event type: " + event.type);
+        }
+    }
+
+    /**
+     * Writes the layout of the grid, the rule and the hexagons of the
+     * checkpoint. The layout of the grid does not change, so it can be read
+     * from the writer thread.
+     */
+    private void writeState(Timeline.Checkpoint checkpoint) throws IOException {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        ensure(4 * 4);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(checkpoint.getRule().getBirthMask());
+        buffer.putInt(checkpoint.getRule().getSurvivalMask());
+        // The positions of the hexagons that are present, as a bit vector
+        long bits = 0;
+        int positions = width * height;
+        for (int position = 0; position < positions; ++position) {
+            if (grid.getHexagon(position % width, position / width).isAlive())
+                bits |= 1L << (position % 64);
+            if (position % 64 == 63 || position == positions - 1) {
+                ensure(8);
+                buffer.putLong(bits);
+                bits = 0;
+            }
+        }
+
+        long[] state = new long[Hexagon.EDIT_STATE_SIZE];
+        ensure(4);
+        buffer.putInt(checkpoint.getHexagonCount());
+        for (int i = 0; i < checkpoint.getHexagonCount(); ++i) {
+            ensure(4 + 1 + state.length * 8);
+            int orientation = checkpoint.getState(i, state, 0);
+            buffer.putInt(checkpoint.getHexagon(i));
+            buffer.put((byte) orientation);
+            for (long word : state) {
+                buffer.putLong(word);
+            }
+        }
+    }
+
+    /**
+     * Makes room for the given number of bytes in the buffer.
+     */
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes)
+            flush();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+}
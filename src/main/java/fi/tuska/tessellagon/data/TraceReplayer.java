@@ -0,0 +1,383 @@
+package fi.tuska.tessellagon.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Replays a trace written by a {@link TraceRecorder}. The grid is created
+ * from the state at the start of the trace, and the recorded events are
+ * applied to it one generation at a time: the cells of the changed
+ * hexagons are copied as they were recorded, so the replay does not
+ * calculate the simulation.
+ *
+ * <p>
+ * The replay can be run headlessly as fast as the trace can be read (see
+ * {@link #replayToEnd()}), or registered to a {@link SimulationScheduler}
+ * in place of the grid, so that each scheduled step replays a generation
+ * at the rate of the scheduler. A trace that ends with an incomplete event,
+ * for example because the recording was interrupted, ends at the last
+ * complete event.
+ *
+ * @author Tuukka Haapasalo
+ */
+public final class TraceReplayer implements BatchStepListener {
+
+    private static final Logger log = Logger.getLogger(TraceReplayer.class);
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File file;
+    private final FileInputStream input;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(
+        ByteOrder.LITTLE_ENDIAN);
+    private boolean endOfFile = false;
+    private boolean finished = false;
+
+    private HexGrid grid;
+    /** The hexagons changed by the generations replayed in the current step. */
+    private HexagonSet changedHexagons;
+    private long events = 0;
+
+    private TraceReplayer(File file, FileInputStream input) {
+        this.file = file;
+        this.input = input;
+        this.channel = input.getChannel();
+        buffer.limit(0);
+    }
+
+    /**
+     * Opens the given trace, and creates the grid from the state at the
+     * start of the trace.
+     *
+     * @throws IOException if the file cannot be read, or is not a trace
+     */
+    public static TraceReplayer open(File file) throws IOException {
+        TraceReplayer replayer = new TraceReplayer(file, new FileInputStream(file));
+        try {
+            replayer.readHeader();
+        } catch (IOException e) {
+            replayer.close();
+            throw e;
+        }
+        log.info("Replaying the trace " + file);
+        return replayer;
+    }
+
+    public HexGrid getGrid() {
+        return grid;
+    }
+
+    /**
+     * @return true if all the events of the trace have been replayed
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the number of events replayed so far, including the initial
+     * state
+     */
+    public synchronized long getEventCount() {
+        return events;
+    }
+
+    /**
+     * Replays the next generation, if the trace has not ended.
+     */
+    @Override
+    public void stepSimulation() {
+        step(1);
+    }
+
+    /**
+     * Replays the given number of generations, or until the trace ends.
+     * Errors are logged, and end the replay.
+     */
+    @Override
+    public void step(int generations) {
+        try {
+            replay(generations);
+        } catch (IOException e) {
+            log.error("Could not replay the trace " + file, e);
+            synchronized (this) {
+                finished = true;
+            }
+        }
+    }
+
+    /**
+     * Replays the events of the trace until the given number of generations
+     * have been replayed, or the trace ends. The edits and the rule changes
+     * are replayed as they come, between the generations.
+     *
+     * @return the number of generations replayed; less than requested if
+     * the trace ended
+     * @throws IOException if the trace cannot be read, or is invalid
+     */
+    public synchronized int replay(int generations) throws IOException {
+        int replayed = 0;
+        try {
+            while (replayed < generations && !finished) {
+                byte type = readEvent();
+                if (type == TraceRecorder.EVENT_GENERATION)
+                    ++replayed;
+            }
+        } finally {
+            if (changedHexagons != null) {
+                grid.replayCompleted(changedHexagons);
+                changedHexagons.clear();
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Replays the rest of the trace.
+     *
+     * @return the number of generations replayed
+     * @throws IOException if the trace cannot be read, or is invalid
+     */
+    public long replayToEnd() throws IOException {
+        long replayed = 0;
+        int batch;
+        do {
+            batch = replay(Integer.MAX_VALUE);
+            replayed += batch;
+        } while (batch > 0);
+        return replayed;
+    }
+
+    public synchronized void close() throws IOException {
+        finished = true;
+        input.close();
+    }
+
+    private void readHeader() throws IOException {
+        if (!fill(2 * 8) || buffer.getLong() != TraceRecorder.MAGIC)
+            throw new IOException(file + " is not a trace");
+        long version = buffer.getLong();
+        if (version != TraceRecorder.VERSION)
+            throw new IOException("Unsupported trace version " + version);
+        if (readEvent() != TraceRecorder.EVENT_STATE)
+            throw new IOException("The trace " + file + " does not start with a state");
+    }
+
+    /**
+     * Reads the next event and applies it to the grid. The whole event is
+     * read before applying it, so that an incomplete event at the end of the
+     * trace is ignored.
+     *
+     * @return the type of the event, or zero if the trace ended
+     */
+    private byte readEvent() throws IOException {
+        if (!fill(1 + 8))
+            return end();
+        byte type = buffer.get();
+        long generation = buffer.getLong();
+        switch (type) {
+        case TraceRecorder.EVENT_STATE:
+            if (!readState(generation))
+                return end();
+            break;
+
+        case TraceRecorder.EVENT_GENERATION: {
+            if (!fill(4))
+                return end();
+            int count = readCount();
+            int[] hexagons = new int[count];
+            long[] cells = new long[2 * count];
+            for (int i = 0; i < count; ++i) {
+                if (!fill(4 + 2 * 8))
+                    return end();
+                hexagons[i] = readIndex();
+                cells[2 * i] = buffer.getLong();
+                cells[2 * i + 1] = buffer.getLong();
+            }
+            grid.replayGeneration(generation, hexagons, cells, changedHexagons);
+            break;
+        }
+
+        case TraceRecorder.EVENT_EDIT: {
+            int stateSize = Hexagon.EDIT_STATE_SIZE;
+            if (!fill(4))
+                return end();
+            int count = readCount();
+            int[] hexagons = new int[count];
+            long[] delta = new long[count * stateSize];
+            for (int i = 0; i < count; ++i) {
+                if (!fill(4 + stateSize * 8))
+                    return end();
+                hexagons[i] = readIndex();
+                for (int k = 0; k < stateSize; ++k) {
+                    delta[i * stateSize + k] = buffer.getLong();
+                }
+            }
+            RegionLock lock = grid.lockAll();
+            try {
+                for (int i = 0; i < count; ++i) {
+                    grid.getTopology().getHexagon(hexagons[i]).applyEditDelta(delta, i
+                        * stateSize);
+                }
+            } finally {
+                lock.unlock();
+            }
+            break;
+        }
+
+        case TraceRecorder.EVENT_ROTATION: {
+            if (!fill(2 * 4))
+                return end();
+            int index = readIndex();
+            int sixths = buffer.getInt();
+            Hexagon hexagon = grid.getTopology().getHexagon(index);
+            RegionLock lock = hexagon.lockNeighborhood();
+            try {
+                hexagon.rotate(sixths);
+            } finally {
+                lock.unlock();
+            }
+            break;
+        }
+
+        case TraceRecorder.EVENT_RULE: {
+            if (!fill(2 * 4))
+                return end();
+            int birth = buffer.getInt();
+            int survival = buffer.getInt();
+            checkStarted();
+            grid.setRule(LifeRule.fromMasks(birth, survival));
+            break;
+        }
+
+        default:
+            throw new IOException("Invalid trace event type " + type + " in " + file);
+        }
+        ++events;
+        return type;
+    }
+
+    /**
+     * Reads the whole state of the grid, and creates the grid from it if
+     * this is the first state of the trace.
+     *
+     * @return false if the trace ended in the middle of the state
+     */
+    private boolean readState(long generation) throws IOException {
+        if (!fill(4 * 4))
+            return false;
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        LifeRule rule = LifeRule.fromMasks(buffer.getInt(), buffer.getInt());
+        if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE)
+            throw new IOException("Invalid grid size " + width + "x" + height + " in " + file);
+        if (grid != null && (width != grid.getWidth() || height != grid.getHeight()))
+            throw new IOException("The grid size changes in " + file);
+
+        int positions = width * height;
+        BitSet present = new BitSet(positions);
+        for (int position = 0; position < positions; position += 64) {
+            if (!fill(8))
+                return false;
+            long bits = buffer.getLong();
+            for (int bit = 0; bit < 64 && position + bit < positions; ++bit) {
+                if ((bits & (1L << bit)) != 0)
+                    present.set(position + bit);
+            }
+        }
+
+        int stateSize = Hexagon.EDIT_STATE_SIZE;
+        if (!fill(4))
+            return false;
+        int count = buffer.getInt();
+        if (count < 0 || count > present.cardinality())
+            throw new IOException("Invalid hexagon count " + count + " in " + file);
+        int[] hexagons = new int[count];
+        long[] states = new long[count * stateSize];
+        byte[] orientations = new byte[count];
+        for (int i = 0; i < count; ++i) {
+            if (!fill(4 + 1 + stateSize * 8))
+                return false;
+            hexagons[i] = buffer.getInt();
+            orientations[i] = buffer.get();
+            for (int k = 0; k < stateSize; ++k) {
+                states[i * stateSize + k] = buffer.getLong();
+            }
+        }
+
+        if (grid == null) {
+            grid = new HexGrid(width, height, present);
+            changedHexagons = new HexagonSet(grid.getTopology().size());
+        }
+        for (int index : hexagons) {
+            checkIndex(index);
+        }
+        grid.restore(Timeline.Checkpoint.fromStates(generation, rule, hexagons, states,
+            orientations));
+        return true;
+    }
+
+    /**
+     * @return the number of hexagons in a change set, which cannot exceed
+     * the number of hexagons in the grid
+     */
+    private int readCount() throws IOException {
+        checkStarted();
+        int count = buffer.getInt();
+        if (count < 0 || count > grid.getTopology().size())
+            throw new IOException("Invalid hexagon count " + count + " in " + file);
+        return count;
+    }
+
+    private int readIndex() throws IOException {
+        int index = buffer.getInt();
+        checkIndex(index);
+        return index;
+    }
+
+    private void checkIndex(int index) throws IOException {
+        checkStarted();
+        if (index < 0 || index >= grid.getTopology().size())
+            throw new IOException("Invalid hexagon index " + index + " in " + file);
+    }
+
+    private void checkStarted() throws IOException {
+        if (grid == null)
+            throw new IOException("The trace " + file + " does not start with a state");
+    }
+
+    private byte end() {
+        if (buffer.hasRemaining())
+            log.warn("The trace " + file + " ends with an incomplete event");
+        finished = true;
+        log.info("Finished replaying the trace " + file + ": " + events + " event(s)");
+        return 0;
+    }
+
+    /**
+     * Reads more of the trace into the buffer, until the given number of
+     * bytes can be read from it.
+     *
+     * @return false if the trace ends before that
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes)
+            return true;
+        buffer.compact();
+        while (buffer.position() < bytes && !endOfFile) {
+            if (channel.read(buffer) < 0)
+                endOfFile = true;
+        }
+        buffer.flip();
+        return buffer.remaining() >= bytes;
+    }
+
+}
@@ -16,19 +16,30 @@ public class World {
         PatternType.class);
 
     public World() {
-        loadPatterns();
     }
 
-    public Hexagon getPattern(PatternType type) {
-        return patterns.get(type);
+    /**
+     * Loads the given patterns, so that they are not read from disk when
+     * they are first stamped.
+     */
+    public void preloadPatterns(PatternType... types) {
+        for (PatternType type : types) {
+            getPattern(type);
+        }
     }
 
-    private void loadPatterns() {
-        for (PatternType t : PatternType.values()) {
-            log.debug("Loading pattern " + t);
-            Hexagon pattern = HexagonPatternLoader.loadPattern(t.name());
-            patterns.put(t, pattern);
+    /**
+     * Returns the given pattern. The patterns are loaded when they are first
+     * needed, unless they have been preloaded.
+     */
+    public synchronized Hexagon getPattern(PatternType type) {
+        Hexagon pattern = patterns.get(type);
+        if (pattern == null) {
+            log.debug("Loading pattern " + type);
+            pattern = HexagonPatternLoader.loadPattern(type.name());
+            patterns.put(type, pattern);
         }
+        return pattern;
     }
 
 }
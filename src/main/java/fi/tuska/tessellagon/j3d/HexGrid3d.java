@@ -1,8 +1,12 @@
 package fi.tuska.tessellagon.j3d;
 
 import java.awt.Point;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,8 +20,12 @@ import javax.vecmath.Vector3f;
 
 import org.apache.log4j.Logger;
 
+import fi.tuska.tessellagon.data.EditJournal;
 import fi.tuska.tessellagon.data.HexGrid;
 import fi.tuska.tessellagon.data.Hexagon;
+import fi.tuska.tessellagon.data.RegionLock;
+import fi.tuska.tessellagon.data.SimulatorStepListener;
+import fi.tuska.tessellagon.data.TraceRecorder;
 import fi.tuska.tessellagon.data.World.PatternType;
 import fi.tuska.tessellagon.j3d.behaviour.HexagonRotator;
 
@@ -52,6 +60,8 @@ public class HexGrid3d extends Object3dImpl implements ObjectPickListener, Objec
 
     private static final Logger log = Logger.getLogger(HexGrid3d.class);
 
+    private static final File TRACE_DIR = new File("data/traces");
+
     private final Map<Point, HexagonRotator> rotators;
     private final Map<Point, Hexagon3d> hexagons;
     private final World3d world;
@@ -59,15 +69,89 @@ public class HexGrid3d extends Object3dImpl implements ObjectPickListener, Objec
     private final int height;
 
     private final HexGrid hexGrid;
+    /**
+     * True if the grid is driven by something else than the simulation, so
+     * that the user cannot edit, rotate or undo (for example in a replay).
+     */
+    private final boolean readOnly;
+    /** The recording of the session, if one has been started. */
+    private TraceRecorder recorder;
 
     public HexGrid3d(World3d world, HexGrid hexGrid) {
+        this(world, hexGrid, hexGrid);
+    }
+
+    /**
+     * Creates a view of a grid that is stepped by the given listener, for
+     * example a {@link fi.tuska.tessellagon.data.TraceReplayer}. Unless the
+     * listener is the grid itself, the view is read-only: picking, the mouse
+     * wheel and undo/redo are ignored, as edits would be overwritten by the
+     * listener.
+     */
+    public HexGrid3d(World3d world, HexGrid hexGrid, SimulatorStepListener stepper) {
         this.hexGrid = hexGrid;
+        this.readOnly = stepper != hexGrid;
         this.width = hexGrid.getWidth();
         this.height = hexGrid.getHeight();
         this.world = world;
         this.rotators = new HashMap<Point, HexagonRotator>(2 * width * height);
         this.hexagons = new HashMap<Point, Hexagon3d>(2 * width * height);
-        world.registerSimulatorStepListener(hexGrid);
+        world.registerSimulatorStepListener(stepper);
+        world.getCanvas().addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                undoRedo(e);
+                if (e.isControlDown() && e.getKeyCode() == KeyEvent.VK_R)
+                    toggleRecording();
+            }
+        });
+    }
+
+    /**
+     * Starts recording the session into a new trace in the trace directory,
+     * or stops the recording. Starting and stopping wait for the simulation
+     * step in progress, so they are done on a separate thread instead of
+     * the event dispatch thread.
+     */
+    private void toggleRecording() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HexGrid3d.this) {
+                    try {
+                        if (recorder != null) {
+                            TraceRecorder stopped = recorder;
+                            recorder = null;
+                            stopped.stop();
+                        } else {
+                            if (!TRACE_DIR.isDirectory() && !TRACE_DIR.mkdirs())
+                                throw new IOException("Cannot create " + TRACE_DIR);
+                            recorder = TraceRecorder.start(hexGrid, new File(TRACE_DIR,
+                                "session-" + System.currentTimeMillis() + ".trace"));
+                        }
+                    } catch (IOException e) {
+                        log.error("Could not record the session", e);
+                    }
+                }
+            }
+        }, "Recording").start();
+    }
+
+    /**
+     * Undoes the latest edit on Ctrl+Z, and redoes it on Ctrl+Y or
+     * Ctrl+Shift+Z, unless the view is read-only.
+     */
+    private void undoRedo(KeyEvent e) {
+        if (!e.isControlDown() || readOnly)
+            return;
+        EditJournal journal = hexGrid.getJournal();
+        if (e.getKeyCode() == KeyEvent.VK_Z && !e.isShiftDown()) {
+            if (!journal.undo())
+                log.debug("Nothing to undo");
+        } else if (e.getKeyCode() == KeyEvent.VK_Y || e.getKeyCode() == KeyEvent.VK_Z) {
+            if (!journal.redo())
+                log.debug("Nothing to redo");
+        }
     }
 
     public double getGridWidthInUnits() {
@@ -130,7 +214,7 @@ public class HexGrid3d extends Object3dImpl implements ObjectPickListener, Objec
         Hexagon hex = hexGrid.getHexagon(x, y);
         if (!hex.isAlive())
             return null;
-        Hexagon3d shape = new Hexagon3d(hex);
+        Hexagon3d shape = new Hexagon3d(hex, world.getTextureRepainter());
         hexagons.put(new Point(x, y), shape);
 
         TransformGroup scaledHexagonTG = createScaledHexagon(shape);
@@ -194,6 +278,8 @@ public class HexGrid3d extends Object3dImpl implements ObjectPickListener, Objec
 
     @Override
     public void objectPicked(PickInfo result, MouseEvent event) {
+        if (readOnly)
+            return;
         boolean leftButton = (event.getModifiers() & MouseEvent.BUTTON1_MASK) != 0;
         Shape3D s = (Shape3D) result.getNode();
         if (s != null) {
@@ -203,13 +289,20 @@ public class HexGrid3d extends Object3dImpl implements ObjectPickListener, Objec
                 log.debug("HexGrid3d object picked: " + point);
 
                 Hexagon hexagon = hexagons.get(point).getHexagon();
-                synchronized (HexGrid.HEX_LOCK) {
+                EditJournal journal = hexGrid.getJournal();
+                // Loading the pattern may read it from disk, so not under the lock
+                Hexagon pat = world.getWorld().getPattern(
+                    leftButton ? PatternType.Glider : PatternType.Corner);
+                RegionLock lock = hexagon.lockNeighborhood();
+                try {
                     if (hexagon.isActive()) {
-                        Hexagon pat = world.getWorld().getPattern(
-                            leftButton ? PatternType.Glider : PatternType.Corner);
+                        EditJournal.Edit edit = journal.begin(hexagon);
                         hexagon.setPattern(pat);
+                        journal.commit(edit);
                         // WorldPopulator.addRandomCells(hexagon, 0.4);
                     }
+                } finally {
+                    lock.unlock();
                 }
             }
         }
@@ -217,6 +310,8 @@ public class HexGrid3d extends Object3dImpl implements ObjectPickListener, Objec
 
     @Override
     public void objectWheel(PickInfo result, MouseWheelEvent event) {
+        if (readOnly)
+            return;
         boolean clockwise = event.getWheelRotation() < 0;
         // Primitive p = (Primitive) result.getNode(PickResult.PRIMITIVE);
         Shape3D s = (Shape3D) result.getNode();
@@ -229,10 +324,9 @@ public class HexGrid3d extends Object3dImpl implements ObjectPickListener, Objec
                 HexagonRotator rot = rotators.get(point);
                 assert rot != null;
                 Hexagon hexagon = hexagons.get(point).getHexagon();
-                synchronized (HexGrid.HEX_LOCK) {
-                    if (!hexagon.isRotating()) {
-                        rot.rotate(clockwise);
-                    }
+                // The rotator checks the state again while holding the lock
+                if (!hexagon.getSnapshot().isRotating()) {
+                    rot.rotate(clockwise);
                 }
             }
         }
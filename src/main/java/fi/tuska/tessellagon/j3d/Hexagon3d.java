@@ -3,6 +3,7 @@ package fi.tuska.tessellagon.j3d;
 import java.awt.Point;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.media.j3d.Appearance;
 import javax.media.j3d.BranchGroup;
@@ -24,8 +25,9 @@ import com.sun.j3d.utils.geometry.NormalGenerator;
 
 import fi.tuska.tessellagon.data.Cell;
 import fi.tuska.tessellagon.data.DataChangedListener;
-import fi.tuska.tessellagon.data.HexGrid;
+import fi.tuska.tessellagon.data.EditJournal;
 import fi.tuska.tessellagon.data.Hexagon;
+import fi.tuska.tessellagon.data.RegionLock;
 
 /**
  * Reminder: Coordinate system: +x is to right; +y is gravitational up, +z is
@@ -56,8 +58,12 @@ public class Hexagon3d extends Object3dImpl implements ObjectPickListener, Objec
 
     private HexagonTextureDrawer customTexture;
 
-    public Hexagon3d(Hexagon hexagon) {
+    private final TextureRepainter repainter;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    public Hexagon3d(Hexagon hexagon, TextureRepainter repainter) {
         this.hexagon = hexagon;
+        this.repainter = repainter;
         this.x = hexagon.getX();
         this.y = hexagon.getY();
         this.hexagon.addListener(this);
@@ -209,34 +215,72 @@ public class Hexagon3d extends Object3dImpl implements ObjectPickListener, Objec
             log.debug("Closest intersection point: " + intPoint + " is cell at " + cellCoords
                 + " = " + cell);
             if (cell != null) {
-                cell.toggleAlive();
-                hexagon.invalidate();
+                EditJournal journal = hexagon.getGrid().getJournal();
+                RegionLock lock = hexagon.lockNeighborhood();
+                try {
+                    EditJournal.Edit edit = journal.begin(hexagon);
+                    cell.toggleAlive();
+                    journal.commit(edit);
+                    hexagon.invalidate();
+                } finally {
+                    lock.unlock();
+                }
             }
         }
     }
 
     public void finishRotation(boolean clockwise) {
-        hexagon.rotate(clockwise);
-        customTexture.rotate(clockwise);
-        hexagon.setRotating(false);
-        hexagon.invalidate();
+        // Rotating copies the shared cells to the neighbors
+        RegionLock lock = hexagon.lockNeighborhood();
+        try {
+            hexagon.rotate(clockwise);
+            hexagon.getGrid().getJournal().recordRotation(hexagon, clockwise ? 1 : -1);
+            hexagon.setRotating(false);
+            hexagon.invalidate();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void startRotation(boolean clockwise) {
-        hexagon.setRotating(true);
+        RegionLock lock = hexagon.lockNeighborhood();
+        try {
+            hexagon.setRotating(true);
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Marks the texture as dirty; it is redrawn on the next frame by the
+     * texture repainter. May be called from any thread.
+     */
     @Override
     public void dataChanged() {
-        customTexture.drawHexagon();
+        if (dirty.compareAndSet(false, true)) {
+            repainter.queue(this);
+        }
+    }
+
+    /**
+     * Redraws the texture if it has changed. Called by the texture repainter
+     * on the renderer thread.
+     */
+    void repaint() {
+        if (dirty.compareAndSet(true, false) && customTexture != null) {
+            customTexture.drawHexagon();
+        }
     }
 
     @Override
     public void objectWheel(PickInfo result, MouseWheelEvent event) {
         boolean clockwise = event.getWheelRotation() < 0;
-        synchronized (HexGrid.HEX_LOCK) {
+        RegionLock lock = hexagon.lockNeighborhood();
+        try {
             startRotation(clockwise);
             finishRotation(clockwise);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -9,6 +9,7 @@ import org.apache.log4j.Logger;
 
 import fi.tuska.tessellagon.data.Cell;
 import fi.tuska.tessellagon.data.Hexagon;
+import fi.tuska.tessellagon.data.HexagonSnapshot;
 
 public class HexagonTextureDrawer extends CustomTexture {
 
@@ -32,8 +33,6 @@ public class HexagonTextureDrawer extends CustomTexture {
     private final int drawHeight;
     private final int drawWidth;
 
-    private int rotation = 0;
-
     private static BufferedImage[] bgImages = null;
 
     static {
@@ -61,12 +60,14 @@ public class HexagonTextureDrawer extends CustomTexture {
     }
 
     public void drawHexagon() {
-        Graphics g = drawBackground(bgImages[rotation]);
+        HexagonSnapshot snapshot = hexagon.getSnapshot();
+        // The background follows the orientation of the hexagon
+        Graphics g = drawBackground(bgImages[snapshot.getOrientation()]);
 
         for (int x = 0; x < 7; ++x) {
             for (int y = 0; y < 21; ++y) {
-                Cell cell = hexagon.getCell(x, y);
-                if (cell != null && (cell.isAlive() || cell.isStone())) {
+                Cell.Type type = snapshot.getCellType(x, y);
+                if (type != null && type != Cell.Type.Dead) {
                     int xpos = 0;
                     int ypos = BORDER_WIDTH_Y + (20 - y) * drawHeight / 20;
                     if (y % 2 == 0) {
@@ -75,9 +76,9 @@ public class HexagonTextureDrawer extends CustomTexture {
                         xpos = BORDER_WIDTH_X
                             + (int) ((x * 1.5f + .75f) * (float) drawWidth / 9f);
                     }
-                    log.debug("Drawing cell " + x + "," + y + ": " + cell + " to " + xpos + ","
+                    log.debug("Drawing cell " + x + "," + y + ": " + type + " to " + xpos + ","
                         + ypos);
-                    drawCell(g, xpos, ypos, cell.getType());
+                    drawCell(g, xpos, ypos, type);
                 }
             }
         }
@@ -85,13 +86,6 @@ public class HexagonTextureDrawer extends CustomTexture {
         updateTexture();
     }
 
-    public void rotate(boolean clockwise) {
-        rotation = (rotation + (clockwise ? 1 : 5)) % 6;
-        if (log.isDebugEnabled())
-            log.debug("Rotated hexagon texture " + (clockwise ? "" : "counter")
-                + "clockwise; using texture " + rotation);
-    }
-
     public Point cellToTextureCoordinate(int x, int y) {
         int xpos = 0;
         int ypos = BORDER_WIDTH_Y + (21 - y) * drawHeight / 20;
@@ -0,0 +1,79 @@
+package fi.tuska.tessellagon.j3d;
+
+import java.util.Enumeration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.media.j3d.Behavior;
+import javax.media.j3d.BoundingSphere;
+import javax.media.j3d.WakeupCondition;
+import javax.media.j3d.WakeupOnBehaviorPost;
+import javax.media.j3d.WakeupOnElapsedFrames;
+
+/**
+ * Repaints the textures of the changed hexagons once per rendered frame.
+ * The simulation thread only queues the changed hexagons, so the simulation
+ * rate does not depend on the cost of drawing the textures, and a hexagon
+ * that changes several times between two frames is drawn only once. The
+ * textures are drawn from the published hexagon snapshots, so the repainter
+ * never waits for the simulation. The repainter sleeps until a hexagon is
+ * queued: the first queued hexagon posts a behavior ID that wakes it up, so
+ * an idle grid costs nothing per frame.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class TextureRepainter extends Behavior {
+
+    /** The behavior ID posted when the first hexagon is queued. */
+    private static final int REPAINT_POST = 1;
+
+    private final Queue<Hexagon3d> dirtyHexagons = new ConcurrentLinkedQueue<Hexagon3d>();
+    /** Whether a repaint has been posted and not processed yet. */
+    private final AtomicBoolean posted = new AtomicBoolean(false);
+
+    private final WakeupCondition postCriteria = new WakeupOnBehaviorPost(this, REPAINT_POST);
+    private final WakeupCondition frameCriteria = new WakeupOnElapsedFrames(0);
+
+    public TextureRepainter() {
+        setSchedulingBounds(new BoundingSphere());
+    }
+
+    /**
+     * Queues the hexagon for repainting. The caller must make sure that each
+     * hexagon is queued only once until it has been repainted.
+     */
+    public void queue(Hexagon3d hexagon) {
+        dirtyHexagons.add(hexagon);
+        if (posted.compareAndSet(false, true))
+            postId(REPAINT_POST);
+    }
+
+    @Override
+    public void initialize() {
+        // Hexagons queued before the behavior went live posted in vain
+        posted.set(false);
+        waitForQueue();
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void processStimulus(Enumeration criteria) {
+        // Cleared first, so that the hexagons queued from now on post again
+        posted.set(false);
+        Hexagon3d hexagon;
+        while ((hexagon = dirtyHexagons.poll()) != null) {
+            hexagon.repaint();
+        }
+        waitForQueue();
+    }
+
+    /**
+     * Sleeps until the next post, or only until the next frame if there
+     * already are hexagons waiting.
+     */
+    private void waitForQueue() {
+        wakeupOn(dirtyHexagons.isEmpty() ? postCriteria : frameCriteria);
+    }
+
+}
@@ -12,11 +12,8 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
 
-import javax.media.j3d.Behavior;
-import javax.media.j3d.BoundingSphere;
 import javax.media.j3d.BranchGroup;
 import javax.media.j3d.Canvas3D;
 import javax.media.j3d.GraphicsConfigTemplate3D;
@@ -24,8 +21,6 @@ import javax.media.j3d.ImageComponent2D;
 import javax.media.j3d.PickInfo;
 import javax.media.j3d.Texture2D;
 import javax.media.j3d.Transform3D;
-import javax.media.j3d.WakeupCondition;
-import javax.media.j3d.WakeupOnElapsedTime;
 import javax.swing.JFrame;
 import javax.vecmath.Point3d;
 import javax.vecmath.Vector3d;
@@ -37,6 +32,7 @@ import com.sun.j3d.utils.pickfast.PickCanvas;
 import com.sun.j3d.utils.universe.SimpleUniverse;
 import com.sun.j3d.utils.universe.ViewingPlatform;
 
+import fi.tuska.tessellagon.data.SimulationScheduler;
 import fi.tuska.tessellagon.data.SimulatorStepListener;
 import fi.tuska.tessellagon.data.World;
 import fi.tuska.util.Pair;
@@ -54,10 +50,10 @@ public class World3d {
     private final SimpleUniverse universe;
     private final Canvas3D canvas;
     private final JFrame frame;
-    private List<SimulatorStepListener> simulatorStepListeners = new ArrayList<SimulatorStepListener>();
     private List<Pair<PickCanvas, ObjectPickListener>> objectPickListeners = new ArrayList<Pair<PickCanvas, ObjectPickListener>>();
     private List<Pair<PickCanvas, ObjectWheelListener>> objectWheelListeners = new ArrayList<Pair<PickCanvas, ObjectWheelListener>>();
-    private TimedBehavior timedBehavior = new TimedBehavior();
+    private final SimulationScheduler scheduler = new SimulationScheduler(SIMULATION_STEP_MILLIS);
+    private final TextureRepainter textureRepainter = new TextureRepainter();
 
     private World world;
 
@@ -76,13 +72,14 @@ public class World3d {
         canvas.addKeyListener(keyListener);
         canvas.addMouseWheelListener(mouseWheelListener);
 
-        BranchGroup timerBG = new BranchGroup();
-        timerBG.addChild(timedBehavior);
-        universe.addBranchGraph(timerBG);
+        BranchGroup repainterBG = new BranchGroup();
+        repainterBG.addChild(textureRepainter);
+        universe.addBranchGraph(repainterBG);
     }
 
     public void quit() {
         log.info("Exiting the game");
+        scheduler.stop();
         frame.setVisible(false);
         frame.dispose();
 
@@ -92,6 +89,7 @@ public class World3d {
     public void run() {
         log.info("Starting to run the world");
         frame.setVisible(true);
+        scheduler.start();
     }
 
     public Canvas3D getCanvas() {
@@ -102,8 +100,16 @@ public class World3d {
         return world;
     }
 
+    public SimulationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public TextureRepainter getTextureRepainter() {
+        return textureRepainter;
+    }
+
     public void registerSimulatorStepListener(SimulatorStepListener listener) {
-        simulatorStepListeners.add(listener);
+        scheduler.addListener(listener);
     }
 
     public void registerObjectPickListener(BranchGroup group, ObjectPickListener listener) {
@@ -232,30 +238,4 @@ public class World3d {
         }
     };
 
-    private class TimedBehavior extends Behavior {
-
-        private WakeupCondition wakeupCriteria = new WakeupOnElapsedTime(SIMULATION_STEP_MILLIS);
-
-        public TimedBehavior() {
-            setSchedulingBounds(new BoundingSphere());
-        }
-
-        @Override
-        public void initialize() {
-            this.wakeupOn(wakeupCriteria);
-        }
-
-        @SuppressWarnings("rawtypes")
-        @Override
-        public void processStimulus(Enumeration criteria) {
-            // log.info("Timer tick");
-
-            for (SimulatorStepListener listener : simulatorStepListeners) {
-                listener.stepSimulation();
-            }
-
-            this.wakeupOn(wakeupCriteria);
-        }
-    }
-
 }
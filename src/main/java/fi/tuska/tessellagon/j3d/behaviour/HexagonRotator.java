@@ -15,7 +15,6 @@ import javax.vecmath.AxisAngle4d;
 
 import org.apache.log4j.Logger;
 
-import fi.tuska.tessellagon.data.HexGrid;
 import fi.tuska.tessellagon.data.Hexagon;
 import fi.tuska.tessellagon.j3d.Hexagon3d;
 
@@ -59,7 +58,7 @@ public class HexagonRotator {
     }
 
     public void rotate(boolean clockwise) {
-        synchronized (HexGrid.HEX_LOCK) {
+        synchronized (this) {
             if (rotating) {
                 return;
             }
@@ -82,7 +81,7 @@ public class HexagonRotator {
     }
 
     private void finishRotation() {
-        synchronized (HexGrid.HEX_LOCK) {
+        synchronized (this) {
             rotInt.setAlpha(zeroAlpha);
             hexagon.finishRotation(nextRotationClockwise);
             rotating = false;
@@ -120,13 +119,11 @@ public class HexagonRotator {
         @SuppressWarnings("rawtypes")
         public void processStimulus(Enumeration criteria) {
             if (timeElapsed.hasTriggered()) {
-                synchronized (HexGrid.HEX_LOCK) {
-                    if (log.isDebugEnabled())
-                        log.debug("Rotation complete for hexagon " + hexagon.getX() + ","
-                            + hexagon.getY());
-                    timeElapsed = new WakeupOnElapsedTime(ROTATION_TIME_MILLIS);
-                    finishRotation();
-                }
+                if (log.isDebugEnabled())
+                    log.debug("Rotation complete for hexagon " + hexagon.getX() + ","
+                        + hexagon.getY());
+                timeElapsed = new WakeupOnElapsedTime(ROTATION_TIME_MILLIS);
+                finishRotation();
             } else if (postSchedulingStart.hasTriggered()) {
                 if (log.isDebugEnabled())
                     log.debug("Noted that we should wait for rotation to complete for hexagon "
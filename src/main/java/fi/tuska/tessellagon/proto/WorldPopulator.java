@@ -1,5 +1,9 @@
 package fi.tuska.tessellagon.proto;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
 import javax.media.j3d.Appearance;
 import javax.media.j3d.BoundingSphere;
 import javax.media.j3d.BranchGroup;
@@ -19,10 +23,11 @@ import org.apache.log4j.Logger;
 
 import com.sun.j3d.utils.geometry.Sphere;
 
-import fi.tuska.tessellagon.data.Cell;
+import fi.tuska.tessellagon.data.GridPopulator;
 import fi.tuska.tessellagon.data.HexGrid;
 import fi.tuska.tessellagon.data.Hexagon;
 import fi.tuska.tessellagon.data.LevelLoader;
+import fi.tuska.tessellagon.data.TraceReplayer;
 import fi.tuska.tessellagon.j3d.HexGrid3d;
 import fi.tuska.tessellagon.j3d.Hexagon3d;
 import fi.tuska.tessellagon.j3d.TestSquare3d;
@@ -32,6 +37,8 @@ public class WorldPopulator {
 
     private static final Logger log = Logger.getLogger(WorldPopulator.class);
 
+    private static final Random random = new Random();
+
     private World3d world;
 
     public WorldPopulator(World3d world) {
@@ -56,6 +63,19 @@ public class WorldPopulator {
         // world.setNominalViewingTransform();
     }
 
+    /**
+     * Shows the replay of a recorded session. The replay advances at the
+     * rate of the simulation scheduler of the world.
+     *
+     * @throws IOException if the trace cannot be read
+     */
+    public void replayTrace(File trace) throws IOException {
+        addLights();
+        TraceReplayer replayer = TraceReplayer.open(trace);
+        world.addDrawableObject(new HexGrid3d(world, replayer.getGrid(), replayer));
+        world.setCameraPosition();
+    }
+
     public void populateSquare() {
         addLights();
         // addTestHexagon();
@@ -66,18 +86,7 @@ public class WorldPopulator {
     }
 
     public static void addRandomCells(Hexagon hexagon, double aliveProbability) {
-        for (int x = 0; x < 7; ++x) {
-            for (int y = 0; y < 21; ++y) {
-                Cell cell = hexagon.getCell(x, y);
-                if (cell != null)
-                    if (Math.random() < aliveProbability)
-                        cell.setAlive();
-                    else
-                        cell.setDead();
-            }
-        }
-        hexagon.enforceSharedCells();
-        hexagon.invalidate();
+        GridPopulator.addRandomCells(hexagon, aliveProbability, random);
     }
 
     public void populateHexagon() {
@@ -0,0 +1,146 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests caching the compiled patterns, replacing the stale entries and
+ * discarding the invalid ones.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class AssetCacheTest {
+
+    private static final File CACHE_DIR = new File("data/cache");
+
+    private File source;
+
+    @Before
+    public void createSource() throws IOException {
+        source = File.createTempFile("cached", ".pat");
+        writeSource("first");
+    }
+
+    @After
+    public void deleteEntries() {
+        for (File entry : getEntries()) {
+            entry.delete();
+        }
+        source.delete();
+    }
+
+    @Test
+    public void storedPatternIsLoaded() {
+        assertNull(AssetCache.loadPattern(source));
+        Hexagon pattern = createPattern(TestGrids.SEED);
+        AssetCache.storePattern(source, pattern);
+        assertEquals(1, getEntries().size());
+        assertSameCells(pattern, AssetCache.loadPattern(source));
+    }
+
+    @Test
+    public void staleEntriesAreDeleted() throws IOException {
+        AssetCache.storePattern(source, createPattern(TestGrids.SEED));
+        File stale = getEntries().get(0);
+        // A different length gives a new key
+        writeSource("second version");
+        assertNull(AssetCache.loadPattern(source));
+        Hexagon pattern = createPattern(TestGrids.SEED + 1);
+        AssetCache.storePattern(source, pattern);
+        assertFalse("The stale entry was not deleted", stale.exists());
+        assertEquals(1, getEntries().size());
+        assertSameCells(pattern, AssetCache.loadPattern(source));
+    }
+
+    @Test
+    public void invalidEntryIsReplaced() throws IOException {
+        AssetCache.storePattern(source, createPattern(TestGrids.SEED));
+        File entry = getEntries().get(0);
+        RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+        try {
+            raf.writeLong(0);
+        } finally {
+            raf.close();
+        }
+        assertNull(AssetCache.loadPattern(source));
+        assertFalse("The invalid entry was not discarded", entry.exists());
+
+        Hexagon pattern = createPattern(TestGrids.SEED + 1);
+        AssetCache.storePattern(source, pattern);
+        assertTrue(entry.exists());
+        assertSameCells(pattern, AssetCache.loadPattern(source));
+    }
+
+    private void writeSource(String contents) throws IOException {
+        FileWriter writer = new FileWriter(source);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return the cache entries of the source file
+     */
+    private List<File> getEntries() {
+        List<File> entries = new ArrayList<File>();
+        File[] files = CACHE_DIR.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().contains(source.getName()))
+                    entries.add(file);
+            }
+        }
+        return entries;
+    }
+
+    private static Hexagon createPattern(long seed) {
+        Hexagon pattern = new Hexagon(-1, -1, true);
+        Random random = new Random(seed);
+        Cell.Type[] types = Cell.Type.values();
+        for (int cell = 0; cell < Hexagon.NUMBER_OF_CELLS; ++cell) {
+            Cell target = pattern.getCell(HexagonLayout.getX(cell), HexagonLayout.getY(cell));
+            switch (types[random.nextInt(types.length)]) {
+            case Alive:
+                target.setAlive();
+                break;
+            case Spawner:
+                target.setSpawner();
+                break;
+            case Stone:
+                target.setStone();
+                break;
+            default:
+                // Dead cell
+            }
+        }
+        return pattern;
+    }
+
+    private static void assertSameCells(Hexagon expected, Hexagon actual) {
+        assertNotNull("The pattern was not cached", actual);
+        for (int cell = 0; cell < Hexagon.NUMBER_OF_CELLS; ++cell) {
+            int x = HexagonLayout.getX(cell);
+            int y = HexagonLayout.getY(cell);
+            assertEquals("Cell " + x + "," + y, expected.getCellType(x, y), actual
+                .getCellType(x, y));
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the batched step mode against the scalar steps. The test grids
+ * have more active hexagons than fit in a single batch.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class BatchStepperTest {
+
+    @Test
+    public void batchedModeMatchesScalarSteps() {
+        List<byte[]> expected = TestGrids.simulate(TestGrids.SEED);
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        grid.setStepMode(HexGrid.StepMode.Batched);
+        for (int g = 1; g <= TestGrids.GENERATIONS; ++g) {
+            grid.step(1);
+            TestGrids.assertGrid("Batched mode", expected.get(g), grid, g);
+        }
+    }
+
+    @Test
+    public void parallelBatchedModeMatchesScalarSteps() {
+        List<byte[]> expected = TestGrids.simulate(TestGrids.SEED);
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        grid.setStepMode(HexGrid.StepMode.Batched);
+        grid.setParallelism(2);
+        try {
+            grid.step(TestGrids.GENERATIONS);
+        } finally {
+            grid.setParallelism(1);
+        }
+        TestGrids.assertGrid("Parallel batched mode", expected.get(TestGrids.GENERATIONS),
+            grid, TestGrids.GENERATIONS);
+    }
+
+}
@@ -0,0 +1,83 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that skipping the generations of a detected cycle gives the same
+ * cells as stepping each generation one cell at a time.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class CycleDetectorTest {
+
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 11;
+    /** Sparse enough for the grid to settle into a cycle quickly. */
+    private static final double PROBABILITY = 0.08;
+    private static final int GENERATIONS = 800;
+    private static final int MAX_STEP = 40;
+
+    @Test
+    public void skippedCyclesMatchCellByCellSteps() {
+        int detected = 0;
+        for (long seed = 1; seed <= 4; ++seed) {
+            if (checkCycles(seed))
+                ++detected;
+        }
+        assertTrue("No cycles detected", detected > 0);
+    }
+
+    /**
+     * Steps the grid in random batches, toggling a cell once a cycle has
+     * been detected to break it.
+     *
+     * @return true if a cycle was detected
+     */
+    private boolean checkCycles(long seed) {
+        HexGrid grid = new HexGrid(WIDTH, HEIGHT);
+        GridPopulator.populate(grid, PROBABILITY, new Random(seed));
+        grid.step(0);
+        LifeRule rule = LifeRule.DEFAULT;
+        byte[] expected = TestGrids.describe(grid.getSnapshot());
+        Random random = new Random(seed);
+        boolean detected = false;
+        long generation = 0;
+        while (generation < GENERATIONS) {
+            int generations = 1 + random.nextInt(MAX_STEP);
+            grid.step(generations);
+            for (int g = 0; g < generations; ++g)
+                expected = TestGrids.stepCellByCell(grid, expected, rule);
+            generation += generations;
+            String what = "Seed " + seed + ", period " + grid.getCyclePeriod();
+            assertEquals(what + ": generation", generation, grid.getGeneration());
+            assertArrayEquals(what + ": differs in generation " + generation, expected,
+                TestGrids.describe(grid.getSnapshot()));
+
+            if (grid.getCyclePeriod() > 0 && !detected) {
+                detected = true;
+                toggleCell(grid, random);
+                expected = TestGrids.describe(grid);
+                assertEquals(what + ": cycle not broken", 0, grid.getCyclePeriod());
+            }
+        }
+        return detected;
+    }
+
+    private static void toggleCell(HexGrid grid, Random random) {
+        Hexagon hexagon = grid.getHexagon(random.nextInt(WIDTH), random.nextInt(HEIGHT));
+        RegionLock lock = hexagon.lockNeighborhood();
+        try {
+            int cell = random.nextInt(Hexagon.NUMBER_OF_CELLS);
+            hexagon.getCell(HexagonLayout.getX(cell), HexagonLayout.getY(cell)).toggleAlive();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
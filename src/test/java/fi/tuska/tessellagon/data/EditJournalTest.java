@@ -0,0 +1,151 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests undoing and redoing the edits of the journal, both in the
+ * generation of the edit and after the simulation has advanced.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class EditJournalTest {
+
+    private static final int FIRST = TestGrids.GENERATIONS / 4;
+    private static final int SECOND = TestGrids.GENERATIONS / 2;
+
+    /**
+     * Undoing the edits right away must give the cells from before the
+     * edits, and redoing them the edited cells, which step as if the edits
+     * had only been made once.
+     */
+    @Test
+    public void undoInGenerationOfEdit() {
+        List<byte[]> expected = TestGrids.simulate(TestGrids.SEED);
+        HexGrid reference = TestGrids.createGrid(TestGrids.SEED);
+        reference.step(FIRST);
+        TestGrids.edit(reference, TestGrids.SEED, 0, false);
+        reference.step(0);
+        byte[] edited = TestGrids.describe(reference.getSnapshot());
+        reference.step(TestGrids.GENERATIONS - FIRST);
+
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        EditJournal journal = grid.getJournal();
+        grid.step(FIRST);
+        TestGrids.edit(grid, TestGrids.SEED, 0, true);
+        assertEquals(FIRST, journal.getUndoGeneration());
+
+        // Each round of edits is an edit of the cells and a rotation
+        // The grid snapshot is published by the steps, so publish the undos
+        assertTrue(journal.undo() && journal.undo());
+        assertFalse("Too many edits recorded", journal.canUndo());
+        grid.step(0);
+        TestGrids.assertGrid("Undone edits", expected.get(FIRST), grid, FIRST);
+
+        assertTrue(journal.redo() && journal.redo());
+        assertFalse("Too many edits to redo", journal.canRedo());
+        grid.step(0);
+        TestGrids.assertGrid("Redone edits", edited, grid, FIRST);
+        grid.step(TestGrids.GENERATIONS - FIRST);
+        TestGrids.assertGrid("Grid stepped after redo", TestGrids.describe(reference
+            .getSnapshot()), grid, TestGrids.GENERATIONS);
+    }
+
+    /**
+     * Undoing edits after the simulation has advanced must rotate the
+     * hexagons back and toggle the edited cells in the current generation,
+     * without the timeline, and redoing them must toggle and rotate again.
+     */
+    @Test
+    public void undoInLaterGeneration() {
+        HexGrid reference = TestGrids.createGrid(TestGrids.SEED);
+        reference.step(FIRST);
+        TestGrids.edit(reference, TestGrids.SEED, 0, false);
+        reference.step(SECOND - FIRST);
+        Hexagon hexagon = TestGrids.getEditedHexagon(reference, TestGrids.SEED, 0);
+        rotateAndToggle(hexagon, -2);
+        reference.step(0);
+        byte[] undone = TestGrids.describe(reference.getSnapshot());
+        rotateAndToggle(hexagon, 2);
+        reference.step(0);
+        byte[] redone = TestGrids.describe(reference.getSnapshot());
+
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        grid.getTimeline().setEnabled(false);
+        EditJournal journal = grid.getJournal();
+        grid.step(FIRST);
+        TestGrids.edit(grid, TestGrids.SEED, 0, true);
+        grid.step(SECOND - FIRST);
+
+        assertTrue(journal.undo() && journal.undo());
+        grid.step(0);
+        TestGrids.assertGrid("Undone edits", undone, grid, SECOND);
+        assertTrue(journal.redo() && journal.redo());
+        grid.step(0);
+        TestGrids.assertGrid("Redone edits", redone, grid, SECOND);
+    }
+
+    /**
+     * A removed stone must be restored as a stone by the undo, even if the
+     * cell has come alive since, and the grid must step as if the stone had
+     * been placed again.
+     */
+    @Test
+    public void undoRestoresStones() {
+        int x = HexagonLayout.WIDTH / 2;
+        int y = HexagonLayout.HEIGHT / 2;
+        HexGrid reference = TestGrids.createGrid(TestGrids.SEED);
+        Hexagon hexagon = TestGrids.getEditedHexagon(reference, TestGrids.SEED, 0);
+        RegionLock lock = hexagon.lockNeighborhood();
+        try {
+            hexagon.getCell(x, y).setStone();
+        } finally {
+            lock.unlock();
+        }
+        reference.step(SECOND);
+
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        EditJournal journal = grid.getJournal();
+        hexagon = TestGrids.getEditedHexagon(grid, TestGrids.SEED, 0);
+        lock = hexagon.lockNeighborhood();
+        try {
+            hexagon.getCell(x, y).setStone();
+            EditJournal.Edit edit = journal.begin(hexagon);
+            hexagon.getCell(x, y).set(new Cell());
+            journal.commit(edit);
+            // Not recorded, as if the cell had been born since
+            hexagon.getCell(x, y).setAlive();
+        } finally {
+            lock.unlock();
+        }
+
+        assertTrue(journal.undo());
+        assertEquals(Cell.Type.Stone, hexagon.getCellType(x, y));
+        grid.step(SECOND);
+        TestGrids.assertGrid("Restored stone", TestGrids.describe(reference.getSnapshot()),
+            grid, SECOND);
+        assertTrue(journal.redo());
+        assertEquals(Cell.Type.Dead, hexagon.getCellType(x, y));
+    }
+
+    private static void rotateAndToggle(Hexagon hexagon, int sixths) {
+        RegionLock lock = hexagon.lockNeighborhood();
+        try {
+            if (sixths < 0) {
+                hexagon.rotate(sixths);
+                TestGrids.toggleCells(hexagon);
+            } else {
+                TestGrids.toggleCells(hexagon);
+                hexagon.rotate(sixths);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
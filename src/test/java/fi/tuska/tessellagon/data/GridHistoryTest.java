@@ -0,0 +1,103 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests seeking a grid through the history recorded in its timeline,
+ * including its edits and rule changes.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class GridHistoryTest {
+
+    private static final int SEEKS = 30;
+
+    private HexGrid grid;
+    private Timeline timeline;
+    /** The cells of each generation of the recorded history. */
+    private List<byte[]> expected;
+
+    /**
+     * Records the history, with edits and a rule change, with a checkpoint
+     * every ten generations. The cells of each generation are taken from a
+     * reference grid that is edited in the same way.
+     */
+    @Before
+    public void recordHistory() {
+        HexGrid reference = TestGrids.createGrid(TestGrids.SEED);
+        expected = new ArrayList<byte[]>();
+        grid = TestGrids.createGrid(TestGrids.SEED);
+        timeline = grid.getTimeline();
+        timeline.setInterval(10);
+        for (int g = 0; g <= TestGrids.GENERATIONS; ++g) {
+            for (int round = 0; round < TestGrids.EDITS.length; ++round) {
+                if (TestGrids.EDITS[round] == g) {
+                    TestGrids.edit(reference, TestGrids.SEED, round, false);
+                    TestGrids.edit(grid, TestGrids.SEED, round, false);
+                }
+            }
+            if (g == TestGrids.RULE_CHANGE) {
+                reference.setRule(TestGrids.OTHER_RULE);
+                grid.setRule(TestGrids.OTHER_RULE);
+            }
+            reference.step(0);
+            expected.add(TestGrids.describe(reference.getSnapshot()));
+            if (g < TestGrids.GENERATIONS) {
+                reference.step(1);
+                grid.step(1);
+            }
+        }
+        TestGrids.assertGrid("Recorded grid", expected.get(TestGrids.GENERATIONS), grid,
+            TestGrids.GENERATIONS);
+    }
+
+    @Test
+    public void seekToRandomGenerations() {
+        Random random = new Random(TestGrids.SEED + 3);
+        for (int k = 0; k < SEEKS; ++k) {
+            int target = random.nextInt(TestGrids.GENERATIONS + 1);
+            grid.seek(target);
+            TestGrids.assertGrid("Grid sought to " + target, expected.get(target), grid, target);
+        }
+        grid.seek(TestGrids.GENERATIONS);
+        TestGrids.assertGrid("Grid sought to the end", expected.get(TestGrids.GENERATIONS),
+            grid, TestGrids.GENERATIONS);
+    }
+
+    @Test
+    public void seekInTrimmedTimeline() {
+        // Only the latest checkpoint fits
+        timeline.setMaxBytes(1);
+        assertEquals("The timeline was not trimmed", 1, timeline.size());
+        long first = timeline.getFirstGeneration();
+        grid.seek(first);
+        TestGrids.assertGrid("Grid sought to the only checkpoint", expected.get((int) first),
+            grid, first);
+        try {
+            grid.seek(first - 1);
+            fail("Sought before the first checkpoint");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        grid.seek(TestGrids.GENERATIONS);
+        TestGrids.assertGrid("Grid sought forward", expected.get(TestGrids.GENERATIONS), grid,
+            TestGrids.GENERATIONS);
+    }
+
+    @Test
+    public void disabledTimelineRecordsNothing() {
+        timeline.setEnabled(false);
+        grid.step(5);
+        assertEquals(0, timeline.size());
+        assertEquals(0, timeline.getBytes());
+    }
+
+}
@@ -0,0 +1,118 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests saving grids and loading them back, also when the later saves to
+ * the same file only write the hexagons that changed since the previous
+ * one.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class GridSaveFileTest {
+
+    private static final byte JUNK = 0x55;
+
+    private File directory;
+    private File file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("saves", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        file = new File(directory, "grid.save");
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void incrementalSaves() throws IOException {
+        File other = new File(directory, "other.save");
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        checkSave("First save", grid, file);
+        assertEquals("Saved an unchanged grid again", 0, GridSaveFile.save(grid, file));
+
+        // The edit and the rotation change the hexagon, and the owners of
+        // its shared borders
+        TestGrids.edit(grid, TestGrids.SEED, 0, false);
+        grid.step(0);
+        assertTrue("Saved more than the edits", checkSave("Edited grid", grid, file) <= 7);
+
+        grid.step(TestGrids.GENERATIONS / 2);
+        checkSave("Stepped grid", grid, file);
+        TestGrids.edit(grid, TestGrids.SEED, 1, false);
+        grid.step(TestGrids.GENERATIONS / 2);
+        checkSave("Edited and stepped grid", grid, file);
+
+        // Saving elsewhere in between must not lose the changes
+        grid.step(5);
+        checkSave("Grid saved elsewhere", grid, other);
+        grid.step(5);
+        checkSave("Grid saved back", grid, file);
+
+        grid.seek(TestGrids.GENERATIONS / 4);
+        checkSave("Sought grid", grid, file);
+    }
+
+    /**
+     * A file of the right size that is not a save is replaced by a new file,
+     * rather than truncated and rewritten in place, so that the mappings of
+     * the old file are not affected.
+     */
+    @Test
+    public void replaceOtherFile() throws IOException {
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        GridSaveFile.save(grid, file);
+        int length = (int) file.length();
+        byte[] junk = new byte[length];
+        Arrays.fill(junk, JUNK);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer mapping;
+        try {
+            raf.write(junk);
+            mapping = raf.getChannel().map(MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close();
+        }
+
+        checkSave("Replaced file", grid, file);
+        assertEquals(length, file.length());
+        assertEquals("The old file was modified", JUNK, mapping.get(0));
+        assertEquals("The old file was modified", JUNK, mapping.get(length - 1));
+        assertArrayEquals("Temporary files were left behind", new String[] { file.getName() },
+            directory.list());
+    }
+
+    /**
+     * Saves the grid, and checks that loading the file gives the same cells.
+     *
+     * @return the number of hexagon records written
+     */
+    private static int checkSave(String what, HexGrid grid, File file) throws IOException {
+        int written = GridSaveFile.save(grid, file);
+        HexGrid loaded = GridSaveFile.load(file);
+        TestGrids.assertGrid(what + " loaded", TestGrids.describe(grid.getSnapshot()), loaded,
+            grid.getGeneration());
+        return written;
+    }
+
+}
@@ -0,0 +1,42 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the population counts of the grid snapshots.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class GridSnapshotTest {
+
+    /**
+     * Each shared border cell must be counted once, like
+     * {@link SparseHexGrid#getPopulation()} counts them.
+     */
+    @Test
+    public void populationCountsSharedCellsOnce() {
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        for (int g = 0; g <= TestGrids.GENERATIONS; ++g) {
+            long expected = 0;
+            long hexagons = 0;
+            for (int y = 0; y < grid.getHeight(); ++y) {
+                for (int x = 0; x < grid.getWidth(); ++x) {
+                    Hexagon hexagon = grid.getHexagon(x, y);
+                    if (!hexagon.isAlive())
+                        continue;
+                    expected += hexagon.getOwnedPopulation();
+                    hexagons += grid.getSnapshot().getHexagon(x, y).getPopulation();
+                }
+            }
+            assertTrue("No population in generation " + g, expected > 0);
+            assertEquals("Population in generation " + g, expected, grid.getSnapshot()
+                .getPopulation());
+            assertEquals("Hexagon populations in generation " + g, expected, hexagons);
+            grid.step(1);
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests the cell views of the hexagons.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class HexagonCellTest {
+
+    @Test
+    public void cellViewsAreShared() {
+        HexGrid grid = TestGrids.createActiveGrid(TestGrids.SEED);
+        Hexagon hexagon = grid.getHexagon(2, 3);
+        int x = HexagonLayout.WIDTH / 2;
+        int y = HexagonLayout.HEIGHT / 2;
+        Cell cell = hexagon.getCell(x, y);
+        assertSame(cell, hexagon.getCell(x, y));
+
+        RegionLock lock = hexagon.lockNeighborhood();
+        try {
+            cell.set(new Cell());
+            assertEquals(Cell.Type.Dead, hexagon.getCell(x, y).getType());
+            cell.setAlive();
+            assertEquals(Cell.Type.Alive, hexagon.getCellType(x, y));
+            hexagon.getCell(x, y).setStone();
+            assertEquals(Cell.Type.Stone, cell.getType());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Test
+    public void sharedBorderCellsReadTheOwner() {
+        HexGrid grid = TestGrids.createActiveGrid(TestGrids.SEED);
+        for (int y = 0; y < grid.getHeight(); ++y) {
+            for (int x = 0; x < grid.getWidth(); ++x) {
+                Hexagon hexagon = grid.getHexagon(x, y);
+                if (!hexagon.isAlive())
+                    continue;
+                for (int cell = 0; cell < Hexagon.NUMBER_OF_CELLS; ++cell) {
+                    int cx = HexagonLayout.getX(cell);
+                    int cy = HexagonLayout.getY(cell);
+                    assertEquals("Cell " + cx + "," + cy + " of " + x + "," + y, hexagon
+                        .getCellType(cx, cy), hexagon.getCell(cx, cy).getType());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests rotating hexagons against moving their cells one at a time.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class HexagonRotationTest {
+
+    private static final int ROTATIONS = 40;
+
+    /**
+     * Rotating a hexagon only moves its shared cells at once. Each cell must
+     * read as the cell it was rotated from, and the grid must step as if
+     * all the cells had been moved, which the other grid does cell by cell.
+     */
+    @Test
+    public void rotationsMatchMovedCells() {
+        HexGrid rotated = TestGrids.createGrid(TestGrids.SEED);
+        HexGrid moved = TestGrids.createGrid(TestGrids.SEED);
+        Random random = new Random(TestGrids.SEED + 2);
+        for (int k = 0; k < ROTATIONS; ++k) {
+            int x = random.nextInt(TestGrids.WIDTH);
+            int y = random.nextInt(TestGrids.HEIGHT);
+            int sixths = 1 + random.nextInt(HexagonRotator.ORIENTATIONS - 1);
+            Hexagon hexagon = rotated.getHexagon(x, y);
+            if (!hexagon.isAlive())
+                continue;
+            Cell.Type[] before = new Cell.Type[Hexagon.NUMBER_OF_CELLS];
+            for (int cell = 0; cell < before.length; ++cell) {
+                before[cell] = hexagon.getCellType(HexagonLayout.getX(cell), HexagonLayout
+                    .getY(cell));
+            }
+            RegionLock lock = hexagon.lockNeighborhood();
+            try {
+                hexagon.rotate(sixths);
+            } finally {
+                lock.unlock();
+            }
+
+            Hexagon target = moved.getHexagon(x, y);
+            lock = target.lockNeighborhood();
+            try {
+                for (int cell = 0; cell < before.length; ++cell) {
+                    int cx = HexagonLayout.getX(cell);
+                    int cy = HexagonLayout.getY(cell);
+                    Cell.Type type = before[HexagonRotator.getSourceCell(cell, sixths)];
+                    assertEquals("Cell " + cx + "," + cy + " of the rotated hexagon " + x + ","
+                        + y, type, hexagon.getCellType(cx, cy));
+                    target.getCell(cx, cy).set(createCell(type));
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (k % 4 == 3) {
+                rotated.step(1);
+                moved.step(1);
+                TestGrids.assertGrid("Rotated grid", TestGrids.describe(moved.getSnapshot()),
+                    rotated, moved.getGeneration());
+            }
+        }
+        rotated.step(TestGrids.GENERATIONS);
+        moved.step(TestGrids.GENERATIONS);
+        TestGrids.assertGrid("Rotated grid", TestGrids.describe(moved.getSnapshot()), rotated,
+            moved.getGeneration());
+    }
+
+    private static Cell createCell(Cell.Type type) {
+        Cell cell = new Cell();
+        switch (type) {
+        case Alive:
+            cell.setAlive();
+            break;
+        case Spawner:
+            cell.setSpawner();
+            break;
+        case Stone:
+            cell.setStone();
+            break;
+        default:
+            // Dead cell
+        }
+        return cell;
+    }
+
+}
@@ -0,0 +1,70 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the bit-parallel calculation of the generations of the packed
+ * hexagons against the rule applied to each cell separately.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class HexagonStepTest {
+
+    private static final int GENERATIONS = 10;
+    private static final int SPECIAL_CELLS = 4;
+
+    @Test
+    public void stepMatchesCellByCellRule() {
+        checkSteps(LifeRule.DEFAULT);
+    }
+
+    @Test
+    public void stepMatchesCellByCellRuleWithOtherRule() {
+        checkSteps(LifeRule.parse("B2/S34"));
+    }
+
+    private void checkSteps(LifeRule rule) {
+        HexGrid grid = TestGrids.createActiveGrid(TestGrids.SEED);
+        grid.setRule(rule);
+        addSpecialCells(grid, new Random(TestGrids.SEED + 5));
+        for (int g = 1; g <= GENERATIONS; ++g) {
+            byte[] expected = TestGrids.stepCellByCell(grid, TestGrids.describe(grid), rule);
+            grid.step(1);
+            assertArrayEquals("Generation " + g + " with " + rule, expected, TestGrids
+                .describe(grid.getSnapshot()));
+        }
+    }
+
+    /**
+     * Turns some random cells of each hexagon into stones and spawners.
+     */
+    private static void addSpecialCells(HexGrid grid, Random random) {
+        for (int y = 0; y < grid.getHeight(); ++y) {
+            for (int x = 0; x < grid.getWidth(); ++x) {
+                Hexagon hexagon = grid.getHexagon(x, y);
+                if (!hexagon.isAlive())
+                    continue;
+                RegionLock lock = hexagon.lockNeighborhood();
+                try {
+                    for (int k = 0; k < SPECIAL_CELLS; ++k) {
+                        int cell = random.nextInt(Hexagon.NUMBER_OF_CELLS);
+                        Cell target = hexagon.getCell(HexagonLayout.getX(cell), HexagonLayout
+                            .getY(cell));
+                        if (k % 2 == 0) {
+                            target.setStone();
+                        } else {
+                            target.setSpawner();
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests that the inactive hexagons do not change while the grid is
+ * stepped.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class InactiveBorderTest {
+
+    /**
+     * The inactive hexagons must not change, including the shared cells on
+     * their borders, whichever side owns them.
+     */
+    @Test
+    public void inactiveHexagonsAreFrozen() {
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        List<Hexagon> inactive = new ArrayList<Hexagon>();
+        List<byte[]> initial = new ArrayList<byte[]>();
+        for (int y = 0; y < grid.getHeight(); ++y) {
+            for (int x = 0; x < grid.getWidth(); ++x) {
+                Hexagon hexagon = grid.getHexagon(x, y);
+                if (hexagon.isAlive() && !hexagon.isActive()) {
+                    inactive.add(hexagon);
+                    initial.add(TestGrids.describe(hexagon.getSnapshot()));
+                }
+            }
+        }
+        assertFalse("No inactive hexagons", inactive.isEmpty());
+        for (int g = 1; g <= TestGrids.GENERATIONS; ++g) {
+            grid.step(1);
+            for (int k = 0; k < inactive.size(); ++k) {
+                Hexagon hexagon = inactive.get(k);
+                HexagonSnapshot snapshot = grid.getSnapshot().getHexagon(hexagon.getX(),
+                    hexagon.getY());
+                assertArrayEquals("Inactive hexagon " + hexagon.getX() + "," + hexagon.getY()
+                    + " changed in generation " + g, initial.get(k), TestGrids
+                    .describe(snapshot));
+            }
+        }
+    }
+
+}
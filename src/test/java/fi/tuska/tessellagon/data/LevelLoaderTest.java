@@ -0,0 +1,82 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests parsing the level files, and reporting the errors in them.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class LevelLoaderTest {
+
+    private static final String HEADER = "level.width = 2\nlevel.height = 2\ndata\n";
+
+    private File level;
+
+    @Before
+    public void createLevel() throws IOException {
+        AssetCache.setEnabled(false);
+        level = File.createTempFile("test", ".lvl", new File("data/levels"));
+    }
+
+    @After
+    public void deleteLevel() {
+        level.delete();
+        AssetCache.setEnabled(true);
+    }
+
+    @Test
+    public void stonesAreLoaded() throws IOException {
+        HexGrid grid = load(HEADER + "O B\nB M\n");
+        assertEquals(2, grid.getWidth());
+        assertEquals(2, grid.getHeight());
+        int x = HexagonLayout.WIDTH / 2;
+        int y = HexagonLayout.HEIGHT / 2;
+        assertEquals(Cell.Type.Stone, grid.getHexagon(1, 1).getCellType(x, y));
+        assertEquals(Cell.Type.Stone, grid.getHexagon(0, 0).getCellType(x, y));
+        assertEquals(Cell.Type.Dead, grid.getHexagon(0, 1).getCellType(x, y));
+    }
+
+    @Test
+    public void stoneOutsideGridIsRejected() throws IOException {
+        // The last slot of the even row 0 has no hexagon
+        try {
+            load(HEADER + "O O\nO B\n");
+            fail("Stone outside the grid was accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(level.getPath() + ":5:3: "));
+        }
+    }
+
+    @Test
+    public void missingHexagonsAreRejected() throws IOException {
+        try {
+            load(HEADER + "O O\nO\n");
+            fail("Missing hexagon was accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("expected 4 hexagons, got 3"));
+        }
+    }
+
+    private HexGrid load(String contents) throws IOException {
+        FileWriter writer = new FileWriter(level);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+        String name = level.getName();
+        return LevelLoader.loadLevel(name.substring(0, name.length() - ".lvl".length()));
+    }
+
+}
@@ -0,0 +1,43 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the memoizing engine against the scalar steps.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class MemoizedEvolverTest {
+
+    /** Long enough for the small grids to settle into a repeating state. */
+    private static final int LONG_RUN = 1000;
+
+    @Test
+    public void advanceMatchesScalarSteps() {
+        List<byte[]> expected = TestGrids.simulate(TestGrids.SEED);
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        long advanced = new MemoizedEvolver(grid).advance(TestGrids.GENERATIONS);
+        assertEquals(TestGrids.GENERATIONS, advanced);
+        TestGrids.assertGrid("Memoized advance", expected.get(TestGrids.GENERATIONS), grid,
+            TestGrids.GENERATIONS);
+    }
+
+    @Test
+    public void longAdvanceMatchesScalarSteps() {
+        HexGrid reference = TestGrids.createGrid(TestGrids.SEED);
+        for (int g = 0; g < LONG_RUN; ++g) {
+            reference.step(1);
+        }
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        MemoizedEvolver evolver = new MemoizedEvolver(grid);
+        evolver.advance(LONG_RUN / 2);
+        evolver.advance(LONG_RUN / 2);
+        TestGrids.assertGrid("Memoized advance", TestGrids.describe(reference.getSnapshot()),
+            grid, LONG_RUN);
+    }
+
+}
@@ -0,0 +1,45 @@
+package fi.tuska.tessellagon.data;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests stepping a grid on several threads against the scalar steps.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class ParallelStepTest {
+
+    private static final int PARALLELISM = 3;
+
+    @Test
+    public void parallelGenerationsMatchScalarSteps() {
+        List<byte[]> expected = TestGrids.simulate(TestGrids.SEED);
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        grid.setParallelism(PARALLELISM);
+        try {
+            for (int g = 1; g <= TestGrids.GENERATIONS; ++g) {
+                grid.step(1);
+                TestGrids.assertGrid("Parallel step", expected.get(g), grid, g);
+            }
+        } finally {
+            grid.setParallelism(1);
+        }
+    }
+
+    @Test
+    public void parallelBatchMatchesScalarSteps() {
+        List<byte[]> expected = TestGrids.simulate(TestGrids.SEED);
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        grid.setParallelism(PARALLELISM);
+        try {
+            grid.step(TestGrids.GENERATIONS);
+        } finally {
+            grid.setParallelism(1);
+        }
+        TestGrids.assertGrid("Parallel stepping", expected.get(TestGrids.GENERATIONS), grid,
+            TestGrids.GENERATIONS);
+    }
+
+}
@@ -0,0 +1,257 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fi.tuska.tessellagon.data.HexGrid.Direction;
+
+/**
+ * Small randomly filled grids for the tests, and helpers for comparing
+ * them. Grids created with the same seed are identical, so a grid stepped
+ * in some other way can be compared to a reference grid stepped one
+ * generation at a time in the scalar step mode.
+ *
+ * @author Tuukka Haapasalo
+ */
+final class TestGrids {
+
+    static final int WIDTH = 12;
+    static final int HEIGHT = 24;
+    static final int GENERATIONS = 60;
+    static final long SEED = 42;
+    /** The generations in which the recorded histories edit the grid. */
+    static final int[] EDITS = { 7, 23, 41 };
+    /** The generation in which the recorded histories change the rule. */
+    static final int RULE_CHANGE = 30;
+    static final LifeRule OTHER_RULE = LifeRule.parse("B2/S34");
+
+    private static final double PROBABILITY = 0.35;
+    /** One in this many hexagons is made inactive. */
+    private static final int INACTIVE_ONE_IN = 6;
+
+    private TestGrids() {
+        // No need to instantiate, just use the static methods
+    }
+
+    /**
+     * Creates a grid filled with random cells, with some of the hexagons
+     * inactive.
+     */
+    static HexGrid createGrid(long seed) {
+        HexGrid grid = createActiveGrid(seed);
+        Random random = new Random(seed + 1);
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                Hexagon hexagon = grid.getHexagon(x, y);
+                if (hexagon.isAlive() && random.nextInt(INACTIVE_ONE_IN) == 0)
+                    hexagon.toggleActive();
+            }
+        }
+        // Publish the seeded state
+        grid.step(0);
+        return grid;
+    }
+
+    /**
+     * Creates a grid filled with random cells, all of its hexagons active.
+     */
+    static HexGrid createActiveGrid(long seed) {
+        HexGrid grid = new HexGrid(WIDTH, HEIGHT);
+        GridPopulator.populate(grid, PROBABILITY, new Random(seed));
+        grid.step(0);
+        return grid;
+    }
+
+    /**
+     * Steps a new grid one generation at a time in the scalar step mode.
+     *
+     * @return the cells of each generation, starting from the seeded one
+     */
+    static List<byte[]> simulate(long seed) {
+        HexGrid grid = createGrid(seed);
+        List<byte[]> generations = new ArrayList<byte[]>();
+        generations.add(describe(grid.getSnapshot()));
+        for (int g = 1; g <= GENERATIONS; ++g) {
+            grid.step(1);
+            generations.add(describe(grid.getSnapshot()));
+        }
+        return generations;
+    }
+
+    /**
+     * Toggles some cells of a randomly chosen hexagon and rotates it, the
+     * same way for each grid. The cells and the rotation are recorded in
+     * the journal as separate edits, if requested.
+     */
+    static void edit(HexGrid grid, long seed, int round, boolean record) {
+        Hexagon hexagon = getEditedHexagon(grid, seed, round);
+        EditJournal journal = grid.getJournal();
+        RegionLock lock = hexagon.lockNeighborhood();
+        try {
+            EditJournal.Edit edit = journal.begin(hexagon);
+            toggleCells(hexagon);
+            if (record)
+                journal.commit(edit);
+            hexagon.rotate(2);
+            if (record)
+                journal.recordRotation(hexagon, 2);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the hexagon edited by {@link #edit(HexGrid, long, int, boolean)}
+     */
+    static Hexagon getEditedHexagon(HexGrid grid, long seed, int round) {
+        Random random = new Random(seed + 10 + round);
+        Hexagon hexagon;
+        do {
+            hexagon = grid.getHexagon(random.nextInt(WIDTH), random.nextInt(HEIGHT));
+        } while (!hexagon.isAlive());
+        return hexagon;
+    }
+
+    /**
+     * Toggles the cells edited by {@link #edit(HexGrid, long, int, boolean)},
+     * leaving the stones and spawners as they are. The neighborhood of the
+     * hexagon must be locked by the caller.
+     */
+    static void toggleCells(Hexagon hexagon) {
+        for (int k = 0; k < 10; ++k) {
+            Cell cell = hexagon.getCell(HexagonLayout.getX(k * 10), HexagonLayout.getY(k * 10));
+            if (!cell.isSpecial())
+                cell.toggleAlive();
+        }
+    }
+
+    /**
+     * Checks that the grid is at the given generation, and that its latest
+     * snapshot has the expected cells.
+     */
+    static void assertGrid(String what, byte[] expected, HexGrid grid, long generation) {
+        assertEquals(what + ": generation", generation, grid.getGeneration());
+        assertArrayEquals(what + " differs from the reference in generation " + generation,
+            expected, describe(grid.getSnapshot()));
+    }
+
+    /**
+     * Calculates the next generation of the given cells one cell at a time,
+     * through the cell neighbor tables, for grids whose hexagons are all
+     * active.
+     *
+     * @param layout the grid that gives the positions of the hexagons
+     * @param cells the cells of the grid, as described by
+     * {@link #describe(GridSnapshot)}
+     * @return the cells of the next generation
+     */
+    static byte[] stepCellByCell(HexGrid layout, byte[] cells, LifeRule rule) {
+        int size = HexagonLayout.WIDTH * HexagonLayout.HEIGHT;
+        byte[] result = cells.clone();
+        Direction[] directions = Direction.values();
+        for (int y = 0; y < layout.getHeight(); ++y) {
+            for (int x = 0; x < layout.getWidth(); ++x) {
+                Hexagon hexagon = layout.getHexagon(x, y);
+                if (!hexagon.isAlive())
+                    continue;
+                for (int cell = 0; cell < Hexagon.NUMBER_OF_CELLS; ++cell) {
+                    int position = getPosition(layout, hexagon, cell);
+                    if (cells[position] != Cell.Type.Dead.ordinal()
+                        && cells[position] != Cell.Type.Alive.ordinal())
+                        continue;
+                    int neighbors = 0;
+                    for (Direction direction : directions) {
+                        int source = HexagonLayout.getNeighborSource(direction, cell);
+                        Hexagon owner = source == HexagonLayout.SELF ? hexagon : hexagon
+                            .getNeighbor(directions[source]);
+                        if (!owner.isAlive())
+                            continue;
+                        byte type = cells[getPosition(layout, owner, HexagonLayout
+                            .getNeighborCell(direction, cell))];
+                        if (type == Cell.Type.Alive.ordinal()
+                            || type == Cell.Type.Spawner.ordinal())
+                            ++neighbors;
+                    }
+                    boolean alive = cells[position] == Cell.Type.Alive.ordinal() ? rule
+                        .survives(neighbors) : rule.isBorn(neighbors);
+                    result[position] = (byte) (alive ? Cell.Type.Alive : Cell.Type.Dead)
+                        .ordinal();
+                }
+            }
+        }
+        assert result.length == layout.getWidth() * layout.getHeight() * size;
+        return result;
+    }
+
+    private static int getPosition(HexGrid layout, Hexagon hexagon, int cell) {
+        return (hexagon.getX() + hexagon.getY() * layout.getWidth()) * HexagonLayout.WIDTH
+            * HexagonLayout.HEIGHT + HexagonLayout.getX(cell) + HexagonLayout.getY(cell)
+            * HexagonLayout.WIDTH;
+    }
+
+    /**
+     * @return the current types of all the cells of the grid, as described
+     * by {@link #describe(GridSnapshot)}, read from the hexagons instead of
+     * the latest snapshot
+     */
+    static byte[] describe(HexGrid grid) {
+        int cells = HexagonLayout.WIDTH * HexagonLayout.HEIGHT;
+        byte[] result = new byte[grid.getWidth() * grid.getHeight() * cells];
+        for (int y = 0; y < grid.getHeight(); ++y) {
+            for (int x = 0; x < grid.getWidth(); ++x) {
+                Hexagon hexagon = grid.getHexagon(x, y);
+                if (!hexagon.isAlive())
+                    continue;
+                for (int cx = 0; cx < HexagonLayout.WIDTH; ++cx) {
+                    for (int cy = 0; cy < HexagonLayout.HEIGHT; ++cy) {
+                        Cell.Type type = hexagon.getCellType(cx, cy);
+                        result[(x + y * grid.getWidth()) * cells + cx + cy
+                            * HexagonLayout.WIDTH] = (byte) (type != null ? type.ordinal()
+                            : -1);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the types of all the cells of the grid, as ordinals
+     */
+    static byte[] describe(GridSnapshot snapshot) {
+        int cells = HexagonLayout.WIDTH * HexagonLayout.HEIGHT;
+        byte[] result = new byte[snapshot.getWidth() * snapshot.getHeight() * cells];
+        for (int y = 0; y < snapshot.getHeight(); ++y) {
+            for (int x = 0; x < snapshot.getWidth(); ++x) {
+                HexagonSnapshot hexagon = snapshot.getHexagon(x, y);
+                if (hexagon != null) {
+                    byte[] types = describe(hexagon);
+                    System.arraycopy(types, 0, result, (x + y * snapshot.getWidth()) * cells,
+                        cells);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the types of the cells of the hexagon, as ordinals, with -1
+     * for the positions that are not cells
+     */
+    static byte[] describe(HexagonSnapshot hexagon) {
+        byte[] result = new byte[HexagonLayout.WIDTH * HexagonLayout.HEIGHT];
+        for (int x = 0; x < HexagonLayout.WIDTH; ++x) {
+            for (int y = 0; y < HexagonLayout.HEIGHT; ++y) {
+                Cell.Type type = hexagon.getCellType(x, y);
+                result[x + y * HexagonLayout.WIDTH] = (byte) (type != null ? type.ordinal()
+                    : -1);
+            }
+        }
+        return result;
+    }
+
+}
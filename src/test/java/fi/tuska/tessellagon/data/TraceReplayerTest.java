@@ -0,0 +1,73 @@
+package fi.tuska.tessellagon.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests replaying a session recorded with a {@link TraceRecorder}.
+ *
+ * @author Tuukka Haapasalo
+ */
+public class TraceReplayerTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("test", ".trace");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    /**
+     * Replaying a recorded session must give the recorded state in each
+     * generation, including the edits, the rotations and the rule change.
+     */
+    @Test
+    public void replayRecordedSession() throws IOException {
+        List<byte[]> expected = new ArrayList<byte[]>();
+        HexGrid grid = TestGrids.createGrid(TestGrids.SEED);
+        TraceRecorder recorder = TraceRecorder.start(grid, file);
+        for (int g = 0; g <= TestGrids.GENERATIONS; ++g) {
+            expected.add(TestGrids.describe(grid.getSnapshot()));
+            for (int round = 0; round < TestGrids.EDITS.length; ++round) {
+                if (TestGrids.EDITS[round] == g)
+                    TestGrids.edit(grid, TestGrids.SEED, round, true);
+            }
+            if (g == TestGrids.RULE_CHANGE)
+                grid.setRule(TestGrids.OTHER_RULE);
+            if (g < TestGrids.GENERATIONS)
+                grid.step(1);
+        }
+        recorder.stop();
+        assertFalse("The recording overflowed", recorder.isOverflowed());
+
+        TraceReplayer replayer = TraceReplayer.open(file);
+        try {
+            HexGrid replayed = replayer.getGrid();
+            TestGrids.assertGrid("Replayed grid", expected.get(0), replayed, 0);
+            for (int g = 1; g <= TestGrids.GENERATIONS; ++g) {
+                assertEquals("The trace ended at generation " + g, 1, replayer.replay(1));
+                TestGrids.assertGrid("Replayed grid", expected.get(g), replayed, g);
+            }
+            assertEquals("The trace continues after the recording", 0, replayer.replay(1));
+            assertTrue(replayer.isFinished());
+        } finally {
+            replayer.close();
+        }
+    }
+
+}